@@ -9,10 +9,14 @@ import com.p2pchat.crypto.KeyManager;
 import com.p2pchat.net.ConnectionManager;
 import com.p2pchat.storage.DatabaseConnection;
 import com.p2pchat.storage.MySQLStorage;
+import com.p2pchat.storage.dao.MessageDAO;
 import com.p2pchat.util.Config;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 public class CLIApp {
@@ -23,6 +27,7 @@ public class CLIApp {
     private MySQLStorage storage;
     private User currentUser;
     private boolean isAdminMode = false;
+    private int pageSize = 20;
     private static final String ADMIN_SECRET_KEY = "admin123"; // Change this to your preferred key
     
     public static void main(String[] args) {
@@ -55,6 +60,7 @@ public class CLIApp {
     private void initializeComponents() {
         try {
             Config config = new Config();
+            pageSize = Math.max(1, config.getClientPageSize());
             
             
             
@@ -262,7 +268,7 @@ public class CLIApp {
                     break;
                     
                 case "inbox":
-                    showInbox();
+                    showInbox(scanner);
                     break;
                     
                 case "chats":
@@ -271,12 +277,20 @@ public class CLIApp {
                     
                 case "chat":
                     if (parts.length >= 2) {
-                        showConversation(parts[1]);
+                        showConversation(parts[1], scanner);
                     } else {
                         System.out.println("❌ Usage: chat <phoneNumber>");
                     }
                     break;
                     
+                case "search":
+                    if (parts.length >= 2) {
+                        searchMessages(input.substring(command.length()).trim());
+                    } else {
+                        System.out.println("❌ Usage: search <words>");
+                    }
+                    break;
+                    
                 case "contacts":
                     showContacts();
                     break;
@@ -344,6 +358,23 @@ public class CLIApp {
                     showDatabaseStatistics();
                     break;
                     
+                case "db-backfill":
+                    if (storage != null) {
+                        int updated = storage.backfillConversationIds();
+                        System.out.println("✅ Conversation backfill done (" + updated + " messages updated)");
+                    } else {
+                        System.out.println("❌ Database not available");
+                    }
+                    break;
+                    
+                case "db-search":
+                    if (parts.length >= 2) {
+                        searchAllMessages(input.substring(command.length()).trim(), scanner);
+                    } else {
+                        System.out.println("❌ Usage: db-search <words>");
+                    }
+                    break;
+                    
                 case "users-list":
                     listAllUsers();
                     break;
@@ -573,10 +604,10 @@ public class CLIApp {
                 FileManager.FileMeta fileMeta = fileManager.saveFile(file, currentUser.getPhoneNumber());
                 System.out.println("✅ File saved locally: " + fileMeta.getOriginalName());
                 
-                // Send a message about the file
-                String fileMessage = "📎 FILE: " + fileMeta.getOriginalName() + " (" + 
-                                   FileManager.formatFileSize(fileMeta.getFileSize()) + ") - ID: " + fileMeta.getFileId();
-                messageManager.sendMessage(recipientPhone, fileMessage);
+                // Announce it; the recipient pulls the bytes from this client's peer port
+                messageManager.sendFileMessage(recipientPhone, fileMeta.getFileId(), fileMeta.getFilePath(),
+                                               fileMeta.getOriginalName(), fileMeta.getFileSize());
+                System.out.println("📎 File ID: " + fileMeta.getFileId());
             } else {
                 System.out.println("❌ File not found: " + filePath);
             }
@@ -591,8 +622,13 @@ public class CLIApp {
             return;
         }
         
+        if (messageManager == null) {
+            System.out.println("❌ Message manager not available");
+            return;
+        }
+        
         try {
-            boolean success = FileManager.downloadFile(fileId, currentUser.getPhoneNumber());
+            boolean success = messageManager.downloadFile(fileId);
             if (success) {
                 System.out.println("✅ File downloaded successfully!");
             } else {
@@ -630,6 +666,9 @@ public class CLIApp {
             if (storage.addContact(currentUser.getPhoneNumber(), phoneNumber, nickname)) {
                 System.out.println("✅ Contact added: " + phoneNumber + 
                                  (nickname.isEmpty() ? "" : " (" + nickname + ")"));
+                if (connectionManager != null) {
+                    connectionManager.notifyContactAdded(phoneNumber);
+                }
             } else {
                 System.out.println("❌ Failed to add contact");
             }
@@ -638,7 +677,7 @@ public class CLIApp {
         }
     }
     
-    private void showInbox() {
+    private void showInbox(Scanner scanner) {
         if (currentUser == null) {
             System.out.println("❌ Please login first");
             return;
@@ -649,28 +688,42 @@ public class CLIApp {
             return;
         }
         
-        List<Message> messages = messageManager.getInbox();
-        if (messages.isEmpty()) {
+        MessageDAO.Page page = messageManager.getInboxPage(null, pageSize);
+        if (page.getMessages().isEmpty()) {
             System.out.println("📭 No new messages");
             return;
         }
         
-        System.out.println("\n📨 INBOX (" + messages.size() + " messages)");
+        System.out.println("\n📨 INBOX");
         System.out.println("═".repeat(80));
         
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("MMM dd, HH:mm");
         
-        for (Message msg : messages) {
-            String time = msg.getCreatedAt().format(formatter);
-            String senderInfo = msg.getSenderPhone().equals(currentUser.getPhoneNumber()) ? 
-                               "You" : msg.getSenderPhone();
+        while (true) {
+            for (Message msg : page.getMessages()) {
+                String time = msg.getCreatedAt().format(formatter);
+                String senderInfo = msg.getSenderPhone().equals(currentUser.getPhoneNumber()) ? 
+                                   "You" : msg.getSenderPhone();
+                
+                System.out.printf("🕒 %s | 👤 %s\n", time, senderInfo);
+                System.out.printf("   💬 %s\n", msg.getDisplayText());
+                System.out.println("   ──────────────────────────────────────────────────────────────────");
+            }
             
-            System.out.printf("🕒 %s | 👤 %s\n", time, senderInfo);
-            System.out.printf("   💬 %s\n", msg.getDisplayText());
-            System.out.println("   ──────────────────────────────────────────────────────────────────");
+            if (!page.hasMore() || !askForMore(scanner)) {
+                return;
+            }
+            page = messageManager.getInboxPage(page.getNext(), pageSize);
         }
     }
     
+    // Pages are only loaded when asked for, so long histories never sit in memory at once
+    private boolean askForMore(Scanner scanner) {
+        System.out.print("⏬ Enter for older messages, q to stop: ");
+        String answer = scanner.nextLine().trim();
+        return !answer.equalsIgnoreCase("q");
+    }
+    
     private void showConversations() {
         if (currentUser == null) {
             System.out.println("❌ Please login first");
@@ -712,7 +765,7 @@ public class CLIApp {
         }
     }
     
-    private void showConversation(String otherUserPhone) {
+    private void showConversation(String otherUserPhone, Scanner scanner) {
         if (currentUser == null) {
             System.out.println("❌ Please login first");
             return;
@@ -723,39 +776,80 @@ public class CLIApp {
             return;
         }
         
-        if (storage != null) {
-            try {
-                List<Message> messages = storage.getConversationMessages(currentUser.getPhoneNumber(), otherUserPhone);
-                if (messages.isEmpty()) {
-                    System.out.println("💬 No messages with " + otherUserPhone);
-                    return;
-                }
-                
-                System.out.println("\n💬 CHAT WITH " + otherUserPhone);
-                System.out.println("═".repeat(80));
+        if (messageManager == null) {
+            System.out.println("❌ Message manager not available");
+            return;
+        }
+        
+        MessageDAO.Page page = messageManager.getConversationPage(otherUserPhone, null, pageSize);
+        if (page.getMessages().isEmpty()) {
+            System.out.println("💬 No messages with " + otherUserPhone);
+            return;
+        }
+        
+        System.out.println("\n💬 CHAT WITH " + otherUserPhone);
+        System.out.println("═".repeat(80));
+        
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("MMM dd, HH:mm");
+        
+        // Newest page first; each page is printed oldest to newest
+        while (true) {
+            List<Message> messages = new ArrayList<>(page.getMessages());
+            Collections.reverse(messages);
+            
+            for (Message msg : messages) {
+                String time = msg.getCreatedAt().format(formatter);
+                boolean isSent = msg.getSenderPhone().equals(currentUser.getPhoneNumber());
+                String sender = isSent ? "You" : otherUserPhone;
+                String align = isSent ? "→" : "←";
                 
-                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("MMM dd, HH:mm");
+                System.out.printf("%s 🕒 %s | 👤 %s\n", align, time, sender);
+                System.out.printf("   %s %s\n", getMessageEmoji(msg), msg.getDisplayText());
                 
-                for (Message msg : messages) {
-                    String time = msg.getCreatedAt().format(formatter);
-                    boolean isSent = msg.getSenderPhone().equals(currentUser.getPhoneNumber());
-                    String sender = isSent ? "You" : otherUserPhone;
-                    String align = isSent ? "→" : "←";
-                    
-                    System.out.printf("%s 🕒 %s | 👤 %s\n", align, time, sender);
-                    System.out.printf("   %s %s\n", getMessageEmoji(msg), msg.getDisplayText());
-                    
-                    if (msg.isFileMessage() && msg.getFileSize() != null) {
-                        System.out.printf("   📊 %s\n", FileManager.formatFileSize(msg.getFileSize()));
-                    }
-                    
-                    System.out.println();
+                if (msg.isFileMessage() && msg.getFileSize() != null) {
+                    System.out.printf("   📊 %s\n", FileManager.formatFileSize(msg.getFileSize()));
                 }
-            } catch (Exception e) {
-                System.err.println("❌ Error loading conversation: " + e.getMessage());
+                
+                System.out.println();
             }
-        } else {
-            System.out.println("📴 Offline mode - conversation not available");
+            
+            if (!page.hasMore() || !askForMore(scanner)) {
+                return;
+            }
+            page = messageManager.getConversationPage(otherUserPhone, page.getNext(), pageSize);
+            System.out.println("─".repeat(80));
+        }
+    }
+    
+    private void searchMessages(String query) {
+        if (currentUser == null) {
+            System.out.println("❌ Please login first");
+            return;
+        }
+        
+        if (messageManager == null) {
+            System.out.println("❌ Message manager not available");
+            return;
+        }
+        
+        List<Message> results = messageManager.searchMessages(query);
+        if (results.isEmpty()) {
+            System.out.println("🔍 No messages match: " + query);
+            return;
+        }
+        
+        System.out.println("\n🔍 SEARCH: " + query);
+        System.out.println("═".repeat(80));
+        
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("MMM dd, HH:mm");
+        for (Message msg : results) {
+            String time = msg.getCreatedAt().format(formatter);
+            String senderInfo = msg.getSenderPhone().equals(currentUser.getPhoneNumber()) ? 
+                               "You → " + msg.getReceiverPhone() : msg.getSenderPhone();
+            
+            System.out.printf("🕒 %s | 👤 %s\n", time, senderInfo);
+            System.out.printf("   💬 %s\n", msg.getDisplayText());
+            System.out.println("   ──────────────────────────────────────────────────────────────────");
         }
     }
     
@@ -837,6 +931,21 @@ public class CLIApp {
         System.out.println("👤 User: " + (currentUser != null ? currentUser.getDisplayName() : "Not logged in"));
         System.out.println("🌐 Server: " + (messageManager != null && messageManager.isConnectedToServer() ? "✅ Connected" : "❌ Disconnected"));
         System.out.println("💾 Storage: " + (storage != null ? "✅ Available" : "📴 Offline"));
+        
+        if (messageManager != null && currentUser != null && storage != null) {
+            Map<String, Object> counts = messageManager.getMessageStatistics();
+            if (!counts.isEmpty()) {
+                System.out.println("📬 Messages: " + counts.get("sentMessages") + " sent, " + counts.get("receivedMessages") +
+                                 " received, " + counts.get("unreadMessages") + " unread");
+            }
+        }
+        
+        if (messageManager != null) {
+            Map<String, Object> cache = messageManager.getCacheStatistics();
+            System.out.println("🗂️  Cache: " + cache.get("messages") + " messages in " + cache.get("conversations") +
+                             " chats, " + cache.get("hits") + " hits, " + cache.get("misses") + " misses, " +
+                             cache.get("evictions") + " evictions");
+        }
     }
     
     private String getMessageEmoji(Message msg) {
@@ -870,6 +979,24 @@ public class CLIApp {
         System.out.println("═".repeat(80));
         System.out.println("Status: " + (storage != null ? "✅ Connected" : "❌ Disconnected"));
         System.out.println("Connection: " + (DatabaseConnection.isConnected() ? "✅ Active" : "❌ Inactive"));
+        
+        Map<String, Object> pool = DatabaseConnection.getPoolStatistics();
+        if (!pool.isEmpty()) {
+            System.out.println("Pool: " + pool.get("active") + " active, " + pool.get("idle") + " idle, " +
+                             pool.get("waiting") + " waiting (max " + pool.get("maxSize") + ")");
+            System.out.println("Pool totals: " + pool.get("created") + " created, " + pool.get("borrowed") + " borrowed, " +
+                             pool.get("timeouts") + " timeouts, " + pool.get("leaks") + " leaks");
+            System.out.printf("Pool wait: avg %.2f ms, max %.2f ms%n", pool.get("avgWaitMs"), pool.get("maxWaitMs"));
+        }
+        
+        if (storage != null) {
+            Map<String, Object> writes = storage.getWriteBehindStatistics();
+            if (!writes.isEmpty()) {
+                System.out.println("Write-behind: " + writes.get("pending") + " pending, " + writes.get("retrying") + " retrying, " +
+                                 writes.get("flushes") + " flushes (" + writes.get("failedFlushes") + " failed), " +
+                                 writes.get("messagesWritten") + " messages written");
+            }
+        }
     }
     
  // In CLIApp.java - add this admin command
@@ -906,7 +1033,8 @@ public class CLIApp {
         if (storage != null) {
             System.out.println("Total Users: " + storage.getUserCount());
             System.out.println("Total Messages: " + storage.getMessageCount());
-            System.out.println("Total Files: " + storage.getFileCount());
+            System.out.println("Total Files: " + storage.getFileCount() +
+                             " (" + storage.getDistinctFileContentCount() + " distinct contents)");
         } else {
             System.out.println("❌ Database not available");
         }
@@ -926,6 +1054,37 @@ public class CLIApp {
         System.out.println("Message listing feature to be implemented");
     }
     
+    private void searchAllMessages(String query, Scanner scanner) {
+        if (storage == null) {
+            System.out.println("❌ Database not available");
+            return;
+        }
+        
+        MessageDAO.SearchPage page = storage.searchMessages(null, query, 0, pageSize);
+        if (page.getMessages().isEmpty()) {
+            System.out.println("🔍 No messages match: " + query);
+            return;
+        }
+        
+        System.out.println("\n🔍 ALL MESSAGES MATCHING: " + query);
+        System.out.println("═".repeat(80));
+        
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("MMM dd, HH:mm");
+        while (true) {
+            for (Message msg : page.getMessages()) {
+                System.out.printf("🕒 %s | 👤 %s → %s\n", msg.getCreatedAt().format(formatter),
+                                  msg.getSenderPhone(), msg.getReceiverPhone());
+                System.out.printf("   💬 %s\n", msg.getDisplayText());
+                System.out.println("   ──────────────────────────────────────────────────────────────────");
+            }
+            
+            if (!page.hasMore() || !askForMore(scanner)) {
+                return;
+            }
+            page = storage.searchMessages(null, query, page.getNextOffset(), pageSize);
+        }
+    }
+    
     private void listAllConnections() {
         System.out.println("\n🔗 ALL CONNECTIONS");
         System.out.println("═".repeat(80));
@@ -963,6 +1122,7 @@ public class CLIApp {
         System.out.println("  inbox                 - Show received messages");
         System.out.println("  chats                 - Show conversations");
         System.out.println("  chat <phone>          - Show chat with user");
+        System.out.println("  search <words>        - Search your messages (prefixes match)");
         
         System.out.println("\n👥 Contacts:");
         System.out.println("  add-contact <phone>   - Add user to contacts");
@@ -990,11 +1150,13 @@ public class CLIApp {
         System.out.println("  db-status             - Check database status");
         System.out.println("  db-tables             - Show all tables");
         System.out.println("  db-stats              - Show database statistics");
+        System.out.println("  db-backfill           - Fill conversation ids on old messages");
         System.out.println("  db-reset              - Reset database (WARNING)");
         
         System.out.println("\n📊 Monitoring:");
         System.out.println("  users-list            - List all users");
         System.out.println("  messages-list         - List all messages");
+        System.out.println("  db-search <words>     - Search all messages (FULLTEXT)");
         System.out.println("  connections-list      - List all connections");
         System.out.println("  system-status         - Show full system status");
         
@@ -1007,6 +1169,7 @@ public class CLIApp {
         try {
             if (messageManager != null) {
                 messageManager.disconnectFromServer();
+                messageManager.shutdown();
             }
             if (storage != null) {
                 storage.close();
@@ -0,0 +1,318 @@
+package com.p2pchat.core;
+
+import com.p2pchat.util.HashingPipeline;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed store for file bytes, keyed by SHA-256
+ * (blobs/ab/abcdef...). Hashing runs through HashingPipeline, overlapped
+ * with the reads and the copy. Sent copies and received files are hard links to
+ * their blob, so keeping the same bytes again costs a hash but no copy and no
+ * extra disk. Blobs are read-only: a view cannot be edited in place and
+ * change every other view. A blob whose only link is its own entry here is
+ * unreferenced and removed by collectGarbage().
+ *
+ * Link counts are the reference count: file_chunks only has rows for sent
+ * files and needs the database, while every view, sent or received, is a
+ * link. Several clients may share the store, so anything that checks for a
+ * blob and then links it holds a shared lock on blobs/.lock for both steps,
+ * and collectGarbage() only runs under the exclusive lock.
+ */
+public class BlobStore {
+    private static final int MAX_REMEMBERED_DIGESTS = 256;
+    // Temp files younger than this may belong to a copy still running, here or in another client
+    private static final long TMP_GRACE_MS = TimeUnit.HOURS.toMillis(1);
+    private static final String LOCK_FILE = ".lock";
+
+    private final Path root;
+    // In-process side of the store lock; the file lock below covers other processes
+    private final ReentrantReadWriteLock storeLock = new ReentrantReadWriteLock();
+    // Threads here share one shared file lock (a JVM may not hold overlapping ones); guarded by fileLockGuard
+    private final ReentrantLock fileLockGuard = new ReentrantLock();
+    private FileChannel lockChannel;
+    private FileLock sharedLock;
+    private int sharedHolders = 0;
+    // path|size|mtime|inode -> digest, so sending an unchanged file again skips hashing it
+    private final Map<String, String> recentDigests = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_REMEMBERED_DIGESTS;
+        }
+    };
+
+    public BlobStore(Path root) {
+        this.root = root;
+    }
+
+    public static final class Stored {
+        private final String digest;
+        private final boolean duplicate;
+
+        Stored(String digest, boolean duplicate) {
+            this.digest = digest;
+            this.duplicate = duplicate;
+        }
+
+        public String getDigest() { return digest; }
+        // True when the bytes were already stored and nothing was copied
+        public boolean isDuplicate() { return duplicate; }
+    }
+
+    // Stores a copy of source unless the same bytes are already here, and makes target a view of it
+    public Stored put(Path source, Path target) throws IOException {
+        String digest = digestOf(source);
+        lockShared();
+        try {
+            if (Files.exists(pathOf(digest))) {
+                link(pathOf(digest), target);
+                return new Stored(digest, true);
+            }
+        } finally {
+            unlockShared();
+        }
+        Path tmp = tempPath();
+        try {
+            // Keyed by what was actually copied, in case source changed after it was hashed
+            digest = HashingPipeline.copy(source, tmp);
+            lockShared();
+            try {
+                boolean installed = install(tmp, pathOf(digest));
+                link(pathOf(digest), target);
+                return new Stored(digest, !installed);
+            } finally {
+                unlockShared();
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Takes in a file already under storage (a finished download): it becomes a view of its blob
+    public Stored adopt(Path file) throws IOException {
+        return adopt(file, HashingPipeline.hash(file));
+    }
+
+    // digest must be the file's SHA-256, e.g. computed while it was received
+    public Stored adopt(Path file, String digest) throws IOException {
+        lockShared();
+        try {
+            return adoptLocked(file, digest);
+        } finally {
+            unlockShared();
+        }
+    }
+
+    private Stored adoptLocked(Path file, String digest) throws IOException {
+        Path blob = pathOf(digest);
+        if (Files.exists(blob)) {
+            // Same bytes already stored: drop this copy for a link
+            materialize(digest, file);
+            return new Stored(digest, true);
+        }
+        Files.createDirectories(blob.getParent());
+        try {
+            Files.createLink(blob, file);
+            blob.toFile().setWritable(false, false);
+        } catch (FileAlreadyExistsException e) {
+            materialize(digest, file);
+            return new Stored(digest, true);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // No hard links here: the store keeps its own copy
+            Path tmp = tempPath();
+            try {
+                install(tmp, pathOf(HashingPipeline.copy(file, tmp)));
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        return new Stored(digest, false);
+    }
+
+    // Makes target a hard link to the blob, replacing whatever was there; copies where links are unsupported
+    public Path materialize(String digest, Path target) throws IOException {
+        lockShared();
+        try {
+            Path blob = pathOf(digest);
+            if (!Files.exists(blob)) {
+                throw new NoSuchFileException(blob.toString());
+            }
+            return link(blob, target);
+        } finally {
+            unlockShared();
+        }
+    }
+
+    // Another view of the same bytes as source (itself a view), without hashing it
+    public Path link(Path source, Path target) throws IOException {
+        Path parent = target.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        if (Files.exists(target) && Files.isSameFile(source, target)) {
+            return target;
+        }
+        Path tmp = parent.resolve("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            try {
+                Files.createLink(tmp, source);
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return target;
+    }
+
+    public Path pathOf(String digest) {
+        return root.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    /**
+     * Deletes blobs no view links to any more (link count 1) and temp files
+     * older than an hour. Returns the number of blobs removed; 0 where the
+     * file system does not report link counts, or when another client is
+     * storing files right now (the next run catches up).
+     */
+    public int collectGarbage() throws IOException {
+        if (!Files.isDirectory(root)) {
+            return 0;
+        }
+        storeLock.writeLock().lock();
+        try (FileLock exclusive = lockChannel().tryLock()) {
+            if (exclusive == null) {
+                return 0;
+            }
+            return collectLocked();
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    private int collectLocked() throws IOException {
+        long cutoff = System.currentTimeMillis() - TMP_GRACE_MS;
+        int removed = 0;
+        try (Stream<Path> files = Files.walk(root, 2)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (!Files.isRegularFile(file) || file.getFileName().toString().equals(LOCK_FILE)) {
+                    continue;
+                }
+                if (file.getParent().getFileName().toString().equals("tmp")) {
+                    if (Files.getLastModifiedTime(file).toMillis() < cutoff) {
+                        Files.deleteIfExists(file);
+                    }
+                    continue;
+                }
+                Object links;
+                try {
+                    links = Files.getAttribute(file, "unix:nlink");
+                } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                    return 0;
+                }
+                if (links instanceof Integer && (Integer) links <= 1) {
+                    Files.deleteIfExists(file);
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private String digestOf(Path source) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        String key = source.toAbsolutePath() + "|" + attributes.size() + "|" +
+                     attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) + "|" + attributes.fileKey();
+        synchronized (recentDigests) {
+            String digest = recentDigests.get(key);
+            if (digest != null && Files.exists(pathOf(digest))) {
+                return digest;
+            }
+        }
+        String digest = HashingPipeline.hash(source);
+        synchronized (recentDigests) {
+            recentDigests.put(key, digest);
+        }
+        return digest;
+    }
+
+    // Returns false when another writer installed the same blob first. A link, unlike
+    // rename, never replaces an existing blob that views already point at.
+    private boolean install(Path tmp, Path blob) throws IOException {
+        Files.createDirectories(blob.getParent());
+        tmp.toFile().setWritable(false, false);
+        try {
+            try {
+                Files.createLink(blob, tmp);
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                if (e instanceof FileAlreadyExistsException) {
+                    throw e;
+                }
+                Files.move(tmp, blob);
+            }
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    // Shared store lock: blobs seen by the caller stay until unlockShared()
+    private void lockShared() throws IOException {
+        storeLock.readLock().lock();
+        fileLockGuard.lock();
+        try {
+            if (sharedHolders == 0) {
+                sharedLock = lockChannel().lock(0, Long.MAX_VALUE, true);
+            }
+            sharedHolders++;
+        } catch (IOException e) {
+            storeLock.readLock().unlock();
+            throw e;
+        } finally {
+            fileLockGuard.unlock();
+        }
+    }
+
+    private void unlockShared() throws IOException {
+        fileLockGuard.lock();
+        try {
+            if (--sharedHolders == 0) {
+                sharedLock.release();
+                sharedLock = null;
+            }
+        } finally {
+            fileLockGuard.unlock();
+            storeLock.readLock().unlock();
+        }
+    }
+
+    // Opened once and kept for the life of the store
+    private FileChannel lockChannel() throws IOException {
+        fileLockGuard.lock();
+        try {
+            if (lockChannel == null) {
+                Files.createDirectories(root);
+                lockChannel = FileChannel.open(root.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            return lockChannel;
+        } finally {
+            fileLockGuard.unlock();
+        }
+    }
+
+    private Path tempPath() throws IOException {
+        Path dir = root.resolve("tmp");
+        Files.createDirectories(dir);
+        return dir.resolve(UUID.randomUUID().toString());
+    }
+}
@@ -0,0 +1,389 @@
+package com.p2pchat.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * fileId -> stored file, so lookups no longer scan the sent directory.
+ *
+ * Entries are held in memory and appended to a log (index/files.log), one
+ * CRC32C-checked record per saved file. A record cut short at the end is a
+ * torn tail (another client still appending it, or a crash) and is read
+ * again later; only a damaged record with more log after it makes the log
+ * be rebuilt. New files go to sent/ sharded by id prefix
+ * (sent/ab/cd/<id>_<name>), so a miss only lists one small directory.
+ * Several local clients can share one storage directory: on a miss the log
+ * is first read from where this client left off, picking up files the
+ * others saved. Appends and reads hold a shared lock on index/files.lock
+ * and a rebuild the exclusive one, so no append lands in a log that is
+ * being replaced.
+ */
+public class FileIndex {
+    private static final String LOG_FILE = "files.log";
+    private static final String LOCK_FILE = "files.lock";
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+    private static final int ID_LENGTH = 36; // UUID
+
+    private final Path sentDir;
+    private final Path logFile;
+    private final Map<String, FileManager.FileMeta> entries = new HashMap<>();
+    private boolean loaded = false;
+    private long logOffset = 0;
+    // Identity of the log file logOffset refers to; another client's rebuild replaces the file
+    private Object logKey;
+    private FileChannel lockChannel;
+
+    private enum LogState { COMPLETE, TORN_TAIL, CORRUPT }
+
+    public FileIndex(Path baseDir) {
+        this.sentDir = baseDir.resolve("sent");
+        this.logFile = baseDir.resolve("index").resolve(LOG_FILE);
+    }
+
+    // Where a new file is stored: sent/<id[0..2]>/<id[2..4]>/<id>_<name>
+    public Path pathFor(String fileId, String safeFileName) {
+        return sentDir.resolve(fileId.substring(0, 2)).resolve(fileId.substring(2, 4))
+                .resolve(fileId + "_" + safeFileName);
+    }
+
+    public synchronized void add(FileManager.FileMeta meta) throws IOException {
+        ensureLoaded();
+        entries.put(meta.getFileId(), meta);
+        append(meta);
+    }
+
+    public synchronized Optional<FileManager.FileMeta> find(String fileId) {
+        try {
+            ensureLoaded();
+            FileManager.FileMeta meta = entries.get(fileId);
+            if (meta == null) {
+                // Saved by another client since we last looked
+                if (readLog() == LogState.CORRUPT) {
+                    rebuild();
+                }
+                meta = entries.get(fileId);
+            }
+            if (meta == null && fileId.length() >= 4) {
+                meta = findInShard(fileId);
+            }
+            if (meta != null && !Files.isRegularFile(Paths.get(meta.getFilePath()))) {
+                entries.remove(fileId);
+                meta = null;
+            }
+            return Optional.ofNullable(meta);
+        } catch (IOException e) {
+            System.err.println("❌ File index error: " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void ensureLoaded() throws IOException {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        // A damaged record mid-log would hide every record after it
+        if (!Files.exists(logFile) || readLog() == LogState.CORRUPT) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Rewrites the log from every record still readable in it plus whatever
+     * is in sent/ (old flat layout or sharded) without a record, so owners,
+     * upload times and content hashes survive. Runs under the exclusive lock
+     * and first checks that no other client rebuilt it meanwhile.
+     */
+    private void rebuild() throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(logFile.getParent());
+        FileLock exclusive = lockChannel().lock();
+        try {
+            entries.clear();
+            logOffset = 0;
+            logKey = null;
+            if (Files.exists(logFile) && readLogLocked() != LogState.CORRUPT) {
+                return;
+            }
+            entries.clear();
+            int salvaged = salvage();
+            int found = 0;
+            if (Files.isDirectory(sentDir)) {
+                try (Stream<Path> files = Files.walk(sentDir, 3)) {
+                    for (Path file : (Iterable<Path>) files::iterator) {
+                        FileManager.FileMeta meta = Files.isRegularFile(file) ? describe(file) : null;
+                        if (meta != null && !entries.containsKey(meta.getFileId())) {
+                            entries.put(meta.getFileId(), meta);
+                            found++;
+                        }
+                    }
+                }
+            }
+            entries.values().removeIf(meta -> !Files.isRegularFile(Paths.get(meta.getFilePath())));
+            Path tmp = logFile.resolveSibling(LOG_FILE + ".tmp");
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16)) {
+                for (FileManager.FileMeta meta : entries.values()) {
+                    out.write(encode(meta));
+                }
+            }
+            Files.move(tmp, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logOffset = Files.size(logFile);
+            logKey = fileKey();
+            System.out.println("✅ File index built: " + entries.size() + " files (" + salvaged + " kept from the log, " +
+                             found + " found in sent/) in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } finally {
+            exclusive.release();
+        }
+    }
+
+    // Every intact record in the log, skipping past damaged stretches a byte at a time
+    private int salvage() throws IOException {
+        if (!Files.exists(logFile)) {
+            return 0;
+        }
+        int salvaged = 0;
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ)) {
+            long end = channel.size();
+            long offset = 0;
+            ByteBuffer header = ByteBuffer.allocate(4);
+            while (end - offset >= 8) {
+                header.clear();
+                readFully(channel, header, offset);
+                int length = header.getInt(0);
+                FileManager.FileMeta meta = null;
+                if (length > 0 && length <= MAX_RECORD_BYTES && end - offset >= 8L + length) {
+                    ByteBuffer record = ByteBuffer.allocate(length + 4);
+                    readFully(channel, record, offset + 4);
+                    CRC32C crc = new CRC32C();
+                    crc.update(record.array(), 0, length);
+                    if ((int) crc.getValue() == record.getInt(length)) {
+                        try {
+                            meta = decode(Arrays.copyOf(record.array(), length));
+                        } catch (IOException e) {
+                            // Checksum matched by chance on garbage; keep scanning
+                        }
+                    }
+                }
+                if (meta != null) {
+                    entries.put(meta.getFileId(), meta);
+                    salvaged++;
+                    offset += 8L + length;
+                } else {
+                    offset++;
+                }
+            }
+        }
+        return salvaged;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    // A file saved but not yet logged (crash in between) is still found in its shard
+    private FileManager.FileMeta findInShard(String fileId) throws IOException {
+        Path shard = sentDir.resolve(fileId.substring(0, 2)).resolve(fileId.substring(2, 4));
+        if (!Files.isDirectory(shard)) {
+            return null;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(shard, fileId + "_*")) {
+            for (Path file : stream) {
+                FileManager.FileMeta meta = describe(file);
+                if (meta != null) {
+                    entries.put(fileId, meta);
+                    return meta;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static FileManager.FileMeta describe(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        if (name.length() <= ID_LENGTH + 1 || name.charAt(ID_LENGTH) != '_') {
+            return null;
+        }
+        String originalName = name.substring(ID_LENGTH + 1);
+        int dot = originalName.lastIndexOf('.');
+        LocalDateTime modified = LocalDateTime.ofInstant(Files.getLastModifiedTime(file).toInstant(), ZoneId.systemDefault());
+        return new FileManager.FileMeta(name.substring(0, ID_LENGTH), originalName, file.toString(), Files.size(file),
+                dot > 0 ? originalName.substring(dot + 1) : "", "unknown", modified);
+    }
+
+    // One write with O_APPEND, so records of clients sharing the log never interleave
+    private void append(FileManager.FileMeta meta) throws IOException {
+        ByteBuffer record = ByteBuffer.wrap(encode(meta));
+        FileLock shared = lockChannel().lock(0, Long.MAX_VALUE, true);
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        } finally {
+            shared.release();
+        }
+    }
+
+    // Record: length, payload, CRC32C of the payload. The content hash is last and empty when unknown
+    private static byte[] encode(FileManager.FileMeta meta) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeUTF(meta.getFileId());
+        out.writeUTF(meta.getOriginalName());
+        out.writeUTF(meta.getFilePath());
+        out.writeLong(meta.getFileSize());
+        out.writeUTF(meta.getFileType());
+        out.writeUTF(meta.getOwnerPhone());
+        out.writeLong(meta.getUploadedAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        out.writeUTF(meta.getContentHash() != null ? meta.getContentHash() : "");
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.toByteArray(), 4, bytes.size() - 4);
+        out.writeInt((int) crc.getValue());
+
+        byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(0, record.length - 8);
+        return record;
+    }
+
+    private LogState readLog() throws IOException {
+        if (!Files.exists(logFile)) {
+            return LogState.COMPLETE;
+        }
+        FileLock shared = lockChannel().lock(0, Long.MAX_VALUE, true);
+        try {
+            return readLogLocked();
+        } finally {
+            shared.release();
+        }
+    }
+
+    /**
+     * Reads records from logOffset on, from the start if another client
+     * replaced the log. Stops before a record cut short at the end (torn
+     * tail, read again next time) or a damaged one with more log after it
+     * (corrupt).
+     */
+    private LogState readLogLocked() throws IOException {
+        if (!Files.exists(logFile)) {
+            return LogState.COMPLETE;
+        }
+        Object key = fileKey();
+        if (key == null || !key.equals(logKey) || Files.size(logFile) < logOffset) {
+            logOffset = 0;
+            logKey = key;
+        }
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ)) {
+            if (channel.size() <= logOffset) {
+                return LogState.COMPLETE;
+            }
+            channel.position(logOffset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+            long offset = logOffset;
+            long end = channel.size();
+            LogState state = LogState.COMPLETE;
+            while (offset < end) {
+                if (end - offset < 8) {
+                    state = LogState.TORN_TAIL;
+                    break;
+                }
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_BYTES) {
+                    // A crash can leave zeros where the last record was going
+                    state = zerosToEnd(channel, offset, end) ? LogState.TORN_TAIL : LogState.CORRUPT;
+                    break;
+                }
+                if (end - offset < 8L + length) {
+                    state = LogState.TORN_TAIL;
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                int checksum = in.readInt();
+                CRC32C crc = new CRC32C();
+                crc.update(payload);
+                FileManager.FileMeta meta = null;
+                if ((int) crc.getValue() == checksum) {
+                    try {
+                        meta = decode(payload);
+                    } catch (IOException e) {
+                        // Treated like a checksum failure
+                    }
+                }
+                if (meta == null) {
+                    state = offset + 8 + length == end ? LogState.TORN_TAIL : LogState.CORRUPT;
+                    break;
+                }
+                entries.put(meta.getFileId(), meta);
+                offset += 8L + length;
+            }
+            logOffset = offset;
+            return state;
+        }
+    }
+
+    private static boolean zerosToEnd(FileChannel channel, long offset, long end) throws IOException {
+        if (end - offset > MAX_RECORD_BYTES + 8) {
+            return false;
+        }
+        ByteBuffer rest = ByteBuffer.allocate((int) (end - offset));
+        readFully(channel, rest, offset);
+        for (byte b : rest.array()) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Object fileKey() throws IOException {
+        return Files.readAttributes(logFile, BasicFileAttributes.class).fileKey();
+    }
+
+    // Opened once; every FileIndex method is synchronized, so this JVM never holds two locks on it
+    private FileChannel lockChannel() throws IOException {
+        if (lockChannel == null) {
+            Files.createDirectories(logFile.getParent());
+            lockChannel = FileChannel.open(logFile.resolveSibling(LOCK_FILE), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return lockChannel;
+    }
+
+    private static FileManager.FileMeta decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String fileId = in.readUTF();
+        String originalName = in.readUTF();
+        String filePath = in.readUTF();
+        long fileSize = in.readLong();
+        String fileType = in.readUTF();
+        String ownerPhone = in.readUTF();
+        LocalDateTime uploadedAt = LocalDateTime.ofInstant(Instant.ofEpochMilli(in.readLong()), ZoneId.systemDefault());
+        // Records written before content hashes were kept end here
+        String contentHash = in.available() > 0 ? in.readUTF() : "";
+        return new FileManager.FileMeta(fileId, originalName, filePath, fileSize, fileType, ownerPhone, uploadedAt,
+                contentHash.isEmpty() ? null : contentHash);
+    }
+}
@@ -16,6 +16,10 @@ public class FileManager {
         "mp4", "avi", "mkv", "mov",
         "zip", "rar", "7z"
     );
+    // File bytes live once per content; sent/ and received/ entries are hard links into it
+    private static final BlobStore BLOBS = new BlobStore(Paths.get(BASE_STORAGE_PATH, "blobs"));
+    private static final FileIndex INDEX = new FileIndex(Paths.get(BASE_STORAGE_PATH));
+    private static final OfferTokens OFFERS = new OfferTokens(Paths.get(BASE_STORAGE_PATH, "offer.key"));
     
     private MySQLStorage storage;
     
@@ -32,6 +36,7 @@ public class FileManager {
                 Files.createDirectories(storagePath.resolve("sent"));
                 Files.createDirectories(storagePath.resolve("received"));
                 Files.createDirectories(storagePath.resolve("temp"));
+                Files.createDirectories(storagePath.resolve("blobs"));
             }
         } catch (IOException e) {
             System.err.println("❌ Failed to initialize file storage: " + e.getMessage());
@@ -53,14 +58,10 @@ public class FileManager {
         }
         
         String fileId = UUID.randomUUID().toString();
-        String safeFileName = fileId + "_" + sanitizeFileName(file.getName());
-        Path targetPath = Paths.get(BASE_STORAGE_PATH, "sent", safeFileName);
+        Path targetPath = INDEX.pathFor(fileId, sanitizeFileName(file.getName()));
         
-        // Create directories if they don't exist
-        Files.createDirectories(targetPath.getParent());
-        
-        // Copy file to storage
-        Files.copy(file.toPath(), targetPath, StandardCopyOption.REPLACE_EXISTING);
+        // Store the content once, then link the sent entry to it
+        BlobStore.Stored stored = BLOBS.put(file.toPath(), targetPath);
         
         FileMeta meta = new FileMeta(
             fileId,
@@ -69,16 +70,22 @@ public class FileManager {
             file.length(),
             fileExtension,
             ownerPhone,
-            LocalDateTime.now()
+            LocalDateTime.now(),
+            stored.getDigest()
         );
+        INDEX.add(meta);
         
         // Save file metadata to database (NO CHUNK DATA)
         if (storage != null) {
             try {
                 boolean saved = storage.saveFileMetadata(fileId, file.getName(), targetPath.toString(), 
-                                   file.length(), fileExtension, ownerPhone);
+                                   file.length(), fileExtension, ownerPhone, stored.getDigest());
                 if (saved) {
                     System.out.println("✅ File metadata saved to database");
+                    if (stored.isDuplicate()) {
+                        System.out.println("♻️  Same content stored " + storage.getFileReferenceCount(stored.getDigest()) +
+                                         " times, kept once on disk");
+                    }
                 } else {
                     System.err.println("❌ Failed to save file metadata");
                 }
@@ -88,36 +95,25 @@ public class FileManager {
             }
         }
         
-        System.out.println("✅ File saved locally: " + file.getName() + " (" + formatFileSize(file.length()) + ")");
+        System.out.println("✅ File saved locally: " + file.getName() + " (" + formatFileSize(file.length()) +
+                         (stored.isDuplicate() ? ", already stored, no copy made" : "") + ")");
         
         return meta;
     }
     
     public static boolean downloadFile(String fileId, String userPhone) {
-        try {
-            // Look for the file in sent directory
-            Path sentDir = Paths.get(BASE_STORAGE_PATH, "sent");
-            if (Files.exists(sentDir)) {
-                try (DirectoryStream<Path> stream = Files.newDirectoryStream(sentDir, fileId + "_*")) {
-                    for (Path filePath : stream) {
-                        String originalName = filePath.getFileName().toString()
-                            .substring(fileId.length() + 1); // Remove fileId_ prefix
-                        
-                        // Create user's download directory
-                        Path downloadDir = Paths.get(BASE_STORAGE_PATH, "received", userPhone);
-                        Files.createDirectories(downloadDir);
-                        
-                        Path targetPath = downloadDir.resolve(originalName);
-                        Files.copy(filePath, targetPath, StandardCopyOption.REPLACE_EXISTING);
-                        
-                        System.out.println("✅ File downloaded to: " + targetPath);
-                        return true;
-                    }
-                }
-            }
-            
+        Optional<FileMeta> meta = INDEX.find(fileId);
+        if (!meta.isPresent()) {
             System.out.println("❌ File not found with ID: " + fileId);
             return false;
+        }
+        try {
+            Path targetPath = Paths.get(BASE_STORAGE_PATH, "received", userPhone, meta.get().getOriginalName());
+            // Same bytes as the sent entry: link, do not copy
+            BLOBS.link(Paths.get(meta.get().getFilePath()), targetPath);
+            
+            System.out.println("✅ File downloaded to: " + targetPath);
+            return true;
             
         } catch (IOException e) {
             System.err.println("❌ Download failed: " + e.getMessage());
@@ -125,36 +121,39 @@ public class FileManager {
         }
     }
     
-    // Helper method to get file info by ID
-    public static Optional<FileMeta> getFileInfo(String fileId) {
+    // Where a file received from a peer is stored: received/<userPhone>/<name>
+    public static Path getReceivedPath(String userPhone, String fileName) {
+        // The name comes from the sender; keep only a plain file name
+        String name = Paths.get(fileName).getFileName().toString().replaceAll("[^a-zA-Z0-9.-]", "_");
+        return Paths.get(BASE_STORAGE_PATH, "received", userPhone, name);
+    }
+    
+    // A finished download joins the blob store; a file received before costs no extra disk.
+    // digest is the SHA-256 computed while receiving, or null to hash the file here
+    public static void storeReceived(Path file, String digest) {
         try {
-            Path sentDir = Paths.get(BASE_STORAGE_PATH, "sent");
-            if (Files.exists(sentDir)) {
-                try (DirectoryStream<Path> stream = Files.newDirectoryStream(sentDir, fileId + "_*")) {
-                    for (Path filePath : stream) {
-                        String originalName = filePath.getFileName().toString()
-                            .substring(fileId.length() + 1);
-                        
-                        // Use static helper method to get file extension
-                        String fileExtension = getFileExtensionStatic(originalName);
-                        
-                        return Optional.of(new FileMeta(
-                            fileId,
-                            originalName,
-                            filePath.toString(),
-                            Files.size(filePath),
-                            fileExtension,
-                            "unknown",
-                            LocalDateTime.now()
-                        ));
-                    }
-                }
+            BlobStore.Stored stored = digest != null ? BLOBS.adopt(file, digest) : BLOBS.adopt(file);
+            if (stored.isDuplicate()) {
+                System.out.println("♻️  Already had this content, " + file.getFileName() + " now shares it");
             }
         } catch (IOException e) {
-            System.err.println("❌ Error getting file info: " + e.getMessage());
+            // The file itself is fine, it just is not deduplicated
+            System.err.println("⚠️  Could not add " + file.getFileName() + " to the blob store: " + e.getMessage());
         }
-        
-        return Optional.empty();
+    }
+    
+    // The token a recipient presents to fetch fileId from this client
+    public static String offerToken(String fileId, String recipientPhone) throws IOException {
+        return OFFERS.issue(fileId, recipientPhone);
+    }
+    
+    public static boolean checkOfferToken(String fileId, String requesterPhone, String token) {
+        return OFFERS.verify(fileId, requesterPhone, token);
+    }
+    
+    // Helper method to get file info by ID
+    public static Optional<FileMeta> getFileInfo(String fileId) {
+        return INDEX.find(fileId);
     }
     
     // Instance method for non-static context
@@ -188,7 +187,9 @@ public class FileManager {
             LocalDateTime cutoff = LocalDateTime.now().minusDays(days);
             
             cleanupDirectory(storagePath.resolve("temp"), cutoff);
-            System.out.println("✅ Cleaned up old temporary files");
+            int blobs = BLOBS.collectGarbage();
+            System.out.println("✅ Cleaned up old temporary files" +
+                             (blobs > 0 ? " and " + blobs + " unreferenced stored file(s)" : ""));
             
         } catch (IOException e) {
             System.err.println("❌ Cleanup failed: " + e.getMessage());
@@ -223,10 +224,17 @@ public class FileManager {
         private final String fileType;
         private final String ownerPhone;
         private final LocalDateTime uploadedAt;
+        private final String contentHash;
         
         public FileMeta(String fileId, String originalName, String filePath, 
                        long fileSize, String fileType, String ownerPhone, 
                        LocalDateTime uploadedAt) {
+            this(fileId, originalName, filePath, fileSize, fileType, ownerPhone, uploadedAt, null);
+        }
+        
+        public FileMeta(String fileId, String originalName, String filePath, 
+                       long fileSize, String fileType, String ownerPhone, 
+                       LocalDateTime uploadedAt, String contentHash) {
             this.fileId = fileId;
             this.originalName = originalName;
             this.filePath = filePath;
@@ -234,6 +242,7 @@ public class FileManager {
             this.fileType = fileType;
             this.ownerPhone = ownerPhone;
             this.uploadedAt = uploadedAt;
+            this.contentHash = contentHash;
         }
         
         // Getters
@@ -244,5 +253,7 @@ public class FileManager {
         public String getFileType() { return fileType; }
         public String getOwnerPhone() { return ownerPhone; }
         public LocalDateTime getUploadedAt() { return uploadedAt; }
+        // SHA-256 of the content, null when not known
+        public String getContentHash() { return contentHash; }
     }
 }
\ No newline at end of file
@@ -0,0 +1,394 @@
+package com.p2pchat.core;
+
+import com.p2pchat.core.models.Message;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded in-memory cache of recent messages per conversation plus the inbox.
+ *
+ * Each conversation keeps its newest messages in a fixed-size ring buffer, so
+ * appends are O(1) and a busy conversation cannot grow past its capacity.
+ * Conversations and the inbox are kept in least-recently-viewed order; only
+ * reads move an entry to the hot end, so incoming messages do not keep a chat
+ * nobody looks at alive. When the total message count or estimated size goes
+ * over its limit, whole entries are evicted from the cold end. A conversation that only received appends
+ * (never loaded from storage) is "partial": it serves status lookups, but
+ * getConversation reports a miss so callers load the real history.
+ *
+ * Every cached copy is also indexed by message id, kept in step with ring
+ * inserts, overwrites and evictions, so status changes and receipts are O(1)
+ * however many messages are cached.
+ */
+public class MessageCache {
+    // Rough per-message overhead: object headers, ids, phones, timestamps
+    private static final int MESSAGE_OVERHEAD_BYTES = 256;
+    // Recency slot of the inbox; conversation keys are phone pairs, so this cannot collide
+    private static final String INBOX_KEY = "\u0000inbox";
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final int conversationCapacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Eldest = least recently viewed (see touch); holds the inbox under INBOX_KEY once loaded
+    private final LinkedHashMap<String, Ring> conversations = new LinkedHashMap<>();
+    private final Ring inbox;
+    // id -> each ring slot holding it (one instance can sit in the inbox and a conversation)
+    private final Map<String, List<Message>> byId = new HashMap<>();
+    private boolean inboxLoaded = false;
+    private int totalMessages = 0;
+    private long totalBytes = 0;
+
+    // Metrics, guarded by lock
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long evictedMessages = 0;
+
+    private static final class Ring {
+        final Message[] buffer;
+        int head = 0; // index of the oldest message
+        int size = 0;
+        long bytes = 0;
+        boolean loaded;
+
+        Ring(int capacity) {
+            this.buffer = new Message[capacity];
+        }
+
+        // Returns the message pushed out when full, or null
+        Message add(Message message) {
+            Message dropped = null;
+            if (size == buffer.length) {
+                dropped = buffer[head];
+                buffer[head] = message;
+                head = (head + 1) % buffer.length;
+            } else {
+                buffer[(head + size) % buffer.length] = message;
+                size++;
+            }
+            return dropped;
+        }
+
+        // Oldest to newest
+        List<Message> toList() {
+            List<Message> messages = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                messages.add(buffer[(head + i) % buffer.length]);
+            }
+            return messages;
+        }
+
+        void clear() {
+            Arrays.fill(buffer, null);
+            head = 0;
+            size = 0;
+            bytes = 0;
+        }
+    }
+
+    public MessageCache(int maxMessages, long maxBytes, int conversationCapacity) {
+        this.conversationCapacity = Math.max(1, conversationCapacity);
+        this.maxMessages = Math.max(this.conversationCapacity, maxMessages);
+        this.maxBytes = maxBytes;
+        this.inbox = new Ring(this.conversationCapacity);
+    }
+
+    // Cached messages oldest to newest, or null on a miss (absent or partial)
+    public List<Message> getConversation(String key) {
+        lock.lock();
+        try {
+            Ring ring = conversations.get(key);
+            if (ring == null || !ring.loaded) {
+                misses++;
+                return null;
+            }
+            hits++;
+            touch(key, ring);
+            return ring.toList();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Whatever is cached for the conversation, loaded or not; used without storage
+    public List<Message> getRecent(String key) {
+        lock.lock();
+        try {
+            Ring ring = conversations.get(key);
+            if (ring == null) {
+                return new ArrayList<>();
+            }
+            touch(key, ring);
+            return ring.toList();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Replaces the conversation with messages loaded from storage (oldest to newest)
+    public void putConversation(String key, List<Message> messages) {
+        lock.lock();
+        try {
+            // Loaded because it is being viewed
+            Ring ring = conversations.remove(key);
+            if (ring == null) {
+                ring = new Ring(conversationCapacity);
+            } else {
+                release(ring);
+            }
+            conversations.put(key, ring);
+            for (Message message : messages) {
+                addToRing(ring, message);
+            }
+            ring.loaded = true;
+            evictIfNeeded(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void append(String key, Message message) {
+        lock.lock();
+        try {
+            Ring ring = conversations.get(key);
+            if (ring == null) {
+                ring = new Ring(conversationCapacity);
+                conversations.put(key, ring);
+            }
+            addToRing(ring, message);
+            evictIfNeeded(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Inbox newest first, or null until it was loaded from storage
+    public List<Message> getInbox() {
+        lock.lock();
+        try {
+            if (!inboxLoaded) {
+                misses++;
+                return null;
+            }
+            hits++;
+            touch(INBOX_KEY, inbox);
+            List<Message> messages = inbox.toList();
+            Collections.reverse(messages);
+            return messages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Messages newest first, as storage returns them
+    public void putInbox(List<Message> messages) {
+        lock.lock();
+        try {
+            release(inbox);
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                addToRing(inbox, messages.get(i));
+            }
+            inboxLoaded = true;
+            touch(INBOX_KEY, inbox);
+            evictIfNeeded(INBOX_KEY);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void appendInbox(Message message) {
+        lock.lock();
+        try {
+            // Before the first load, storage has it and the load will pick it up
+            if (inboxLoaded) {
+                addToRing(inbox, message);
+                evictIfNeeded(null);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Every distinct cached copy with this id; a message can sit in a conversation and the inbox
+    public List<Message> findAll(String messageId) {
+        lock.lock();
+        try {
+            List<Message> slots = byId.get(messageId);
+            if (slots == null) {
+                return new ArrayList<>(0);
+            }
+            List<Message> found = new ArrayList<>(slots.size());
+            for (Message message : slots) {
+                if (!containsInstance(found, message)) {
+                    found.add(message);
+                }
+            }
+            return found;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Sets the status on every cached copy; false if the message is not cached
+    public boolean updateStatus(String messageId, Message.MessageStatus status) {
+        lock.lock();
+        try {
+            List<Message> slots = byId.get(messageId);
+            if (slots == null) {
+                return false;
+            }
+            for (Message message : slots) {
+                message.setStatus(status);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Cached inbox messages, newest first, without counting as a view
+    public List<Message> snapshotInbox() {
+        lock.lock();
+        try {
+            List<Message> messages = inbox.toList();
+            Collections.reverse(messages);
+            return messages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            conversations.clear();
+            inbox.clear();
+            byId.clear();
+            inboxLoaded = false;
+            totalMessages = 0;
+            totalBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            stats.put("conversations", conversations.size() - (inboxLoaded ? 1 : 0));
+            stats.put("inboxCached", inboxLoaded);
+            stats.put("messages", totalMessages);
+            stats.put("bytes", totalBytes);
+            stats.put("indexedIds", byId.size());
+            stats.put("maxMessages", maxMessages);
+            stats.put("maxBytes", maxBytes);
+            stats.put("hits", hits);
+            stats.put("misses", misses);
+            stats.put("evictions", evictions);
+            stats.put("evictedMessages", evictedMessages);
+        } finally {
+            lock.unlock();
+        }
+        return stats;
+    }
+
+    private void addToRing(Ring ring, Message message) {
+        long size = estimateSize(message);
+        Message dropped = ring.add(message);
+        ring.bytes += size;
+        totalBytes += size;
+        totalMessages++;
+        index(message);
+        if (dropped != null) {
+            long droppedSize = estimateSize(dropped);
+            ring.bytes -= droppedSize;
+            totalBytes -= droppedSize;
+            totalMessages--;
+            unindex(dropped);
+        }
+    }
+
+    private void release(Ring ring) {
+        for (int i = 0; i < ring.size; i++) {
+            unindex(ring.buffer[(ring.head + i) % ring.buffer.length]);
+        }
+        totalMessages -= ring.size;
+        totalBytes -= ring.bytes;
+        ring.clear();
+    }
+
+    private void index(Message message) {
+        byId.computeIfAbsent(message.getId(), k -> new ArrayList<>(1)).add(message);
+    }
+
+    // Removes one slot's reference by identity
+    private void unindex(Message message) {
+        List<Message> slots = byId.get(message.getId());
+        if (slots == null) {
+            return;
+        }
+        for (int i = 0; i < slots.size(); i++) {
+            if (slots.get(i) == message) {
+                slots.remove(i);
+                break;
+            }
+        }
+        if (slots.isEmpty()) {
+            byId.remove(message.getId());
+        }
+    }
+
+    private static boolean containsInstance(List<Message> messages, Message message) {
+        for (Message candidate : messages) {
+            if (candidate == message) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Moves an entry to the most recently viewed end
+    private void touch(String key, Ring ring) {
+        conversations.remove(key);
+        conversations.put(key, ring);
+    }
+
+    // Evicts least recently viewed entries, never the one just touched; an evicted inbox reloads on next view
+    private void evictIfNeeded(String keep) {
+        Iterator<Map.Entry<String, Ring>> it = conversations.entrySet().iterator();
+        while (overLimit() && it.hasNext()) {
+            Map.Entry<String, Ring> eldest = it.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            evictedMessages += eldest.getValue().size;
+            release(eldest.getValue());
+            it.remove();
+            evictions++;
+            if (eldest.getValue() == inbox) {
+                inboxLoaded = false;
+            }
+        }
+    }
+
+    private boolean overLimit() {
+        return totalMessages > maxMessages || (maxBytes > 0 && totalBytes > maxBytes);
+    }
+
+    private static long estimateSize(Message message) {
+        long size = MESSAGE_OVERHEAD_BYTES;
+        if (message.getContent() != null) {
+            size += 2L * message.getContent().length();
+        }
+        if (message.getFileName() != null) {
+            size += 2L * message.getFileName().length();
+        }
+        if (message.getFilePath() != null) {
+            size += 2L * message.getFilePath().length();
+        }
+        return size;
+    }
+}
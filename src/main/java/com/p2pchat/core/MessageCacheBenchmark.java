@@ -0,0 +1,87 @@
+package com.p2pchat.core;
+
+import com.p2pchat.core.models.Message;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the cost of a status update as the message cache grows, against
+ * the old approach of scanning every cached list for the id.
+ *
+ * Usage: java -cp out com.p2pchat.core.MessageCacheBenchmark [size ...]
+ * (defaults to 1000 10000 100000 1000000 cached messages, spread over
+ * conversations of 200 messages each).
+ */
+public class MessageCacheBenchmark {
+    private static final int[] DEFAULT_SIZES = {1000, 10000, 100000, 1000000};
+    private static final int CONVERSATION_SIZE = 200;
+    private static final int UPDATES = 100000;
+    // The linear scan gets slow; fewer samples keep large sizes bounded
+    private static final int SCAN_UPDATES = 1000;
+
+    public static void main(String[] args) {
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.printf("%10s %14s %14s%n", "cached", "indexed ns/op", "scan ns/op");
+        for (int size : sizes) {
+            run(size);
+        }
+    }
+
+    private static void run(int size) {
+        MessageCache cache = new MessageCache(size, 0, CONVERSATION_SIZE);
+        List<List<Message>> lists = new ArrayList<>();
+        String[] ids = new String[size];
+
+        for (int i = 0; i < size; i++) {
+            int conversation = i / CONVERSATION_SIZE;
+            if (conversation == lists.size()) {
+                lists.add(new ArrayList<>(CONVERSATION_SIZE));
+            }
+            Message message = new Message("m" + i, "9000000001", String.valueOf(9100000000L + conversation),
+                    "benchmark message " + i, Message.MessageType.TEXT, Message.MessageStatus.SENT, LocalDateTime.now());
+            ids[i] = message.getId();
+            cache.append("c" + conversation, message);
+            lists.get(conversation).add(message);
+        }
+
+        Random random = new Random(42);
+        // Warm up the JIT before timing
+        for (int i = 0; i < UPDATES; i++) {
+            cache.updateStatus(ids[random.nextInt(size)], Message.MessageStatus.DELIVERED);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < UPDATES; i++) {
+            cache.updateStatus(ids[random.nextInt(size)], Message.MessageStatus.READ);
+        }
+        double indexed = (System.nanoTime() - start) / (double) UPDATES;
+
+        start = System.nanoTime();
+        for (int i = 0; i < SCAN_UPDATES; i++) {
+            scan(lists, ids[random.nextInt(size)], Message.MessageStatus.READ);
+        }
+        double scan = (System.nanoTime() - start) / (double) SCAN_UPDATES;
+
+        System.out.printf("%10d %14.1f %14.1f%n", size, indexed, scan);
+    }
+
+    // What updateMessageStatusInCache used to do
+    private static void scan(List<List<Message>> lists, String messageId, Message.MessageStatus status) {
+        for (List<Message> conversation : lists) {
+            for (Message message : conversation) {
+                if (message.getId().equals(messageId)) {
+                    message.setStatus(status);
+                    break;
+                }
+            }
+        }
+    }
+}
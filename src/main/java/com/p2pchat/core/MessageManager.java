@@ -4,30 +4,70 @@ import com.p2pchat.core.models.Message;
 import com.p2pchat.core.models.User;
 import com.p2pchat.crypto.KeyManager;
 import com.p2pchat.net.ConnectionManager;
+import com.p2pchat.net.FileTransfer;
+import com.p2pchat.net.MessageListener;
 import com.p2pchat.storage.MySQLStorage;
+import com.p2pchat.storage.dao.MessageDAO;
+import com.p2pchat.util.Config;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.*;
-import java.util.concurrent.*;
 
-public class MessageManager {
+public class MessageManager implements MessageListener {
     private MySQLStorage storage;
     private KeyManager keyManager;
     private ConnectionManager connectionManager;
     private User currentUser;
     private boolean connectedToServer = false;
+    // Only the newest page of a history is cached; older pages are read on demand
+    private static final int CACHED_PAGE_SIZE = 50;
     
-    // In-memory storage for quick access
-    private Map<String, List<Message>> conversationCache = new ConcurrentHashMap<>();
-    private List<Message> inboxCache = new CopyOnWriteArrayList<>();
+    // Recent messages per conversation and the inbox, bounded by count and size
+    private final MessageCache messageCache;
+    
+    // Per-user full-text index over everything sent and received, kept on disk
+    private final String searchIndexPath;
+    private final int searchIndexSnapshotEvery;
+    private volatile SearchIndex searchIndex;
+    private static final int SEARCH_RESULT_LIMIT = 50;
+    private static final int SEARCH_BUILD_PAGE_SIZE = 1000;
+    private static final String SEARCH_BUILD_COMPLETE = "complete";
     
     public MessageManager(MySQLStorage storage, KeyManager keyManager, ConnectionManager connectionManager) {
         this.storage = storage;
         this.keyManager = keyManager;
         this.connectionManager = connectionManager;
+        Config config = new Config();
+        this.messageCache = new MessageCache(config.getClientCacheMaxMessages(), config.getClientCacheMaxBytes(),
+                                             config.getClientCacheConversationCapacity());
+        this.searchIndexPath = config.getClientSearchIndexPath();
+        this.searchIndexSnapshotEvery = config.getClientSearchIndexSnapshotEvery();
+        if (storage == null) {
+            // Nothing to load from: the inbox is whatever arrives while running
+            messageCache.putInbox(new ArrayList<>());
+        }
+        if (connectionManager != null) {
+            connectionManager.setMessageListener(this);
+            // Peers pull the files this client offered straight from its storage
+            connectionManager.setFileSource(MessageManager::resolveOfferedFile);
+        }
         
         initializeMessageManager();
     }
     
+    // Only the phone the file was offered to, holding the token from the offer, gets it
+    private static FileTransfer.Source resolveOfferedFile(String fileId, String requesterPhone, String token) {
+        if (!FileManager.checkOfferToken(fileId, requesterPhone, token)) {
+            return null;
+        }
+        return FileManager.getFileInfo(fileId)
+            .map(meta -> new FileTransfer.Source(Paths.get(meta.getFilePath()), meta.getContentHash())).orElse(null);
+    }
+    
     private void initializeMessageManager() {
         System.out.println("🌐 Initializing Message Manager...");
         
@@ -63,6 +103,7 @@ public class MessageManager {
     
     public void setCurrentUser(User user) {
         this.currentUser = user;
+        openSearchIndex(user);
         if (user != null && connectionManager != null) {
             // Register user with server
             connectionManager.registerUser(user.getPhoneNumber());
@@ -98,37 +139,31 @@ public class MessageManager {
                 LocalDateTime.now()
             );
             
-            // Save to database if available
+            // Queue for the database if available; written in the next batch
             if (storage != null) {
-                boolean saved = storage.saveMessage(message);
-                if (saved) {
-                    System.out.println("✅ Message saved to database");
-                } else {
-                    System.err.println("❌ Failed to save message to database");
-                }
+                storage.saveMessageAsync(message);
                 
                 // Update conversation
                 updateConversation(currentUser.getPhoneNumber(), recipientPhone, messageText, LocalDateTime.now());
             }
             
-            // Send via server connection
+            // Cache first: acks for this id can arrive before sendMessage returns
+            updateMessageCache(message);
+            
+            // Send via server connection; DELIVERED/READ follow from the recipient's receipts
             if (connectionManager != null && connectionManager.isConnected()) {
-                boolean sent = connectionManager.sendMessage(recipientPhone, messageText);
+                boolean sent = connectionManager.sendMessage(message.getId(), recipientPhone, messageText);
                 if (sent) {
                     System.out.println("✅ Message sent via server");
-                    message.setStatus(Message.MessageStatus.DELIVERED);
                 } else {
                     System.err.println("❌ Failed to send message via server");
-                    message.setStatus(Message.MessageStatus.FAILED);
+                    advanceMessageStatus(message.getId(), Message.MessageStatus.FAILED);
                 }
             } else {
                 System.out.println("⚠️  Message queued for delivery (offline mode)");
                 message.setStatus(Message.MessageStatus.PENDING);
             }
             
-            // Update cache
-            updateMessageCache(message);
-            
             return true;
             
         } catch (Exception e) {
@@ -139,6 +174,11 @@ public class MessageManager {
     }
     
     public boolean sendFileMessage(String recipientPhone, String filePath, String fileName, long fileSize) {
+        return sendFileMessage(recipientPhone, UUID.randomUUID().toString(), filePath, fileName, fileSize);
+    }
+    
+    // fileId is the id the file was stored under, so the recipient can pull it from this client
+    public boolean sendFileMessage(String recipientPhone, String fileId, String filePath, String fileName, long fileSize) {
         if (currentUser == null) {
             System.err.println("❌ Please login first before sending files");
             return false;
@@ -150,9 +190,9 @@ public class MessageManager {
         }
         
         try {
-            // Create file message
-            String fileId = UUID.randomUUID().toString();
-            String fileMessage = "FILE:" + fileName + ":" + fileSize + ":" + fileId;
+            // Create file message; the token is what the recipient presents to fetch the file from us
+            String token = FileManager.offerToken(fileId, recipientPhone);
+            String fileMessage = "FILE:" + fileName + ":" + fileSize + ":" + fileId + ":" + token;
             
             // Create message object for file
             Message message = new Message(
@@ -171,38 +211,32 @@ public class MessageManager {
             message.setFilePath(filePath);
             message.setFileId(fileId);
             
-            // Save to database if available
+            // Queue for the database if available; written in the next batch
             if (storage != null) {
-                boolean saved = storage.saveMessage(message);
-                if (saved) {
-                    System.out.println("✅ File message saved to database");
-                } else {
-                    System.err.println("❌ Failed to save file message to database");
-                }
+                storage.saveMessageAsync(message);
                 
                 // Update conversation
                 updateConversation(currentUser.getPhoneNumber(), recipientPhone, 
                                  "Sent file: " + fileName, LocalDateTime.now());
             }
             
+            updateMessageCache(message);
+            
             // Send via server connection
             if (connectionManager != null && connectionManager.isConnected()) {
-                boolean sent = connectionManager.sendFileMessage(recipientPhone, fileName, fileSize, fileId);
+                boolean sent = connectionManager.sendFileMessage(message.getId(), recipientPhone, fileName, fileSize, fileId,
+                                                                    token);
                 if (sent) {
                     System.out.println("✅ File message sent via server");
-                    message.setStatus(Message.MessageStatus.DELIVERED);
                 } else {
                     System.err.println("❌ Failed to send file message via server");
-                    message.setStatus(Message.MessageStatus.FAILED);
+                    advanceMessageStatus(message.getId(), Message.MessageStatus.FAILED);
                 }
             } else {
                 System.out.println("⚠️  File message queued for delivery (offline mode)");
                 message.setStatus(Message.MessageStatus.PENDING);
             }
             
-            // Update cache
-            updateMessageCache(message);
-            
             return true;
             
         } catch (Exception e) {
@@ -212,18 +246,88 @@ public class MessageManager {
         }
     }
     
+    /**
+     * Downloads a received file directly from the sender's peer port. Falls
+     * back to the shared local storage when the sender cannot be reached
+     * (both clients on one machine, sender offline).
+     */
+    public boolean downloadFile(String fileId) {
+        if (currentUser == null) {
+            System.err.println("❌ Please login first");
+            return false;
+        }
+        
+        Message message = findFileMessage(fileId);
+        if (message != null && connectionManager != null && connectionManager.isConnected() &&
+            !message.getSenderPhone().equals(currentUser.getPhoneNumber())) {
+            // Older FILE messages may lack a name; the id still gives the download a place
+            String fileName = message.getFileName() != null ? message.getFileName() : fileId;
+            Path target = FileManager.getReceivedPath(currentUser.getPhoneNumber(), fileName);
+            try {
+                long expectedSize = message.getFileSize() != null ? message.getFileSize() : -1;
+                String digest = connectionManager.downloadFile(message.getSenderPhone(), fileId,
+                                                               offerToken(message.getContent()), expectedSize, target);
+                FileManager.storeReceived(target, digest);
+                message.setFilePath(target.toString());
+                recordReceivedFile(fileId, fileName, target, digest);
+                System.out.println("✅ File downloaded to: " + target);
+                return true;
+            } catch (IOException e) {
+                System.err.println("⚠️  Direct transfer failed (" + e.getMessage() + "), trying local storage");
+            }
+        }
+        
+        return FileManager.downloadFile(fileId, currentUser.getPhoneNumber());
+    }
+    
+    // The received copy gets its own file_chunks row, so content hash counts cover received files too
+    private void recordReceivedFile(String fileId, String fileName, Path file, String digest) {
+        if (storage == null) {
+            return;
+        }
+        try {
+            int dot = fileName.lastIndexOf('.');
+            storage.saveFileMetadata(fileId, fileName, file.toString(), Files.size(file),
+                                     dot > 0 ? fileName.substring(dot + 1) : "", currentUser.getPhoneNumber(), digest);
+        } catch (Exception e) {
+            System.err.println("⚠️  Could not record received file " + fileId + ": " + e.getMessage());
+        }
+    }
+    
+    // "FILE:name:size:id:token"; null for offers sent before tokens existed
+    private static String offerToken(String content) {
+        String[] parts = content != null ? content.split(":") : new String[0];
+        return parts.length >= 5 ? parts[4] : null;
+    }
+    
+    private Message findFileMessage(String fileId) {
+        for (Message message : messageCache.snapshotInbox()) {
+            if (fileId.equals(message.getFileId())) {
+                return message;
+            }
+        }
+        if (storage != null) {
+            try {
+                return storage.getMessageByFileId(fileId);
+            } catch (Exception e) {
+                System.err.println("❌ Error looking up file " + fileId + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+    
     public List<Message> getInbox() {
         // Return cached inbox if available
-        if (!inboxCache.isEmpty()) {
-            return new ArrayList<>(inboxCache);
+        List<Message> cached = messageCache.getInbox();
+        if (cached != null) {
+            return cached;
         }
         
         // Load from database if storage is available
         if (storage != null && currentUser != null) {
             try {
-                List<Message> messages = storage.getMessagesByReceiver(currentUser.getPhoneNumber());
-                inboxCache.clear();
-                inboxCache.addAll(messages);
+                List<Message> messages = storage.getInboxPage(currentUser.getPhoneNumber(), null, CACHED_PAGE_SIZE).getMessages();
+                messageCache.putInbox(messages);
                 System.out.println("✅ Loaded " + messages.size() + " messages from database");
                 return messages;
             } catch (Exception e) {
@@ -248,23 +352,85 @@ public class MessageManager {
         String cacheKey = getConversationCacheKey(currentUser.getPhoneNumber(), otherUserPhone);
         
         // Return cached conversation if available
-        if (conversationCache.containsKey(cacheKey)) {
-            return new ArrayList<>(conversationCache.get(cacheKey));
+        List<Message> cached = messageCache.getConversation(cacheKey);
+        if (cached != null) {
+            markConversationRead(cached, otherUserPhone);
+            return cached;
         }
         
         // Load from database if storage is available
         if (storage != null) {
             try {
-                List<Message> messages = storage.getConversationMessages(currentUser.getPhoneNumber(), otherUserPhone);
-                conversationCache.put(cacheKey, new CopyOnWriteArrayList<>(messages));
+                List<Message> messages = new ArrayList<>(storage.getConversationPage(
+                    currentUser.getPhoneNumber(), otherUserPhone, null, CACHED_PAGE_SIZE).getMessages());
+                Collections.reverse(messages);
+                messageCache.putConversation(cacheKey, messages);
                 System.out.println("✅ Loaded " + messages.size() + " messages for conversation with " + otherUserPhone);
+                markConversationRead(messages, otherUserPhone);
                 return messages;
             } catch (Exception e) {
                 System.err.println("❌ Error loading conversation: " + e.getMessage());
             }
+            return new ArrayList<>();
         }
         
-        return new ArrayList<>();
+        // Offline: only what was sent and received while running
+        List<Message> recent = messageCache.getRecent(cacheKey);
+        markConversationRead(recent, otherUserPhone);
+        return recent;
+    }
+    
+    // Inbox page, newest first; pass the previous page's next cursor to continue
+    public MessageDAO.Page getInboxPage(MessageDAO.Cursor before, int limit) {
+        if (currentUser == null) {
+            System.err.println("❌ Please login first");
+            return new MessageDAO.Page(new ArrayList<>(), null);
+        }
+        
+        if (storage == null) {
+            return before == null ? new MessageDAO.Page(messageCache.snapshotInbox(), null)
+                                  : new MessageDAO.Page(new ArrayList<>(), null);
+        }
+        
+        try {
+            return storage.getInboxPage(currentUser.getPhoneNumber(), before, limit);
+        } catch (Exception e) {
+            System.err.println("❌ Error loading inbox: " + e.getMessage());
+            return new MessageDAO.Page(new ArrayList<>(), null);
+        }
+    }
+    
+    // Conversation page, newest first; messages on it from the other user are marked read
+    public MessageDAO.Page getConversationPage(String otherUserPhone, MessageDAO.Cursor before, int limit) {
+        if (currentUser == null) {
+            System.err.println("❌ Please login first");
+            return new MessageDAO.Page(new ArrayList<>(), null);
+        }
+        
+        if (!isValidPhoneNumber(otherUserPhone)) {
+            System.err.println("❌ Invalid phone number: " + otherUserPhone);
+            return new MessageDAO.Page(new ArrayList<>(), null);
+        }
+        
+        MessageDAO.Page page;
+        if (storage != null) {
+            try {
+                page = storage.getConversationPage(currentUser.getPhoneNumber(), otherUserPhone, before, limit);
+            } catch (Exception e) {
+                System.err.println("❌ Error loading conversation: " + e.getMessage());
+                return new MessageDAO.Page(new ArrayList<>(), null);
+            }
+        } else {
+            List<Message> cached = new ArrayList<>();
+            if (before == null) {
+                cached.addAll(messageCache.getRecent(getConversationCacheKey(currentUser.getPhoneNumber(), otherUserPhone)));
+                Collections.reverse(cached);
+            }
+            page = new MessageDAO.Page(cached, null);
+        }
+        
+        markConversationRead(page.getMessages(), otherUserPhone);
+        return page;
     }
     
     public void requestOnlineUsers() {
@@ -277,9 +443,11 @@ public class MessageManager {
     }
     
     public List<String> getOnlineUsers() {
-        // This would typically come from server response
-        // For now, return empty list - server will push updates via ConnectionManager
-        return new ArrayList<>();
+        // Kept current by the server's presence snapshot and deltas
+        if (connectionManager == null) {
+            return new ArrayList<>();
+        }
+        return connectionManager.getOnlineUsers();
     }
     
     public boolean isConnectedToServer() {
@@ -296,26 +464,92 @@ public class MessageManager {
     
     public void markMessageAsRead(String messageId) {
         if (storage != null) {
-            boolean updated = storage.updateMessageStatus(messageId, Message.MessageStatus.READ);
-            if (updated) {
-                System.out.println("✅ Message marked as read: " + messageId);
-                // Update cache
-                updateMessageStatusInCache(messageId, Message.MessageStatus.READ);
-            }
+            storage.updateMessageStatusAsync(messageId, Message.MessageStatus.READ);
+            System.out.println("✅ Message marked as read: " + messageId);
+            // Update cache
+            updateMessageStatusInCache(messageId, Message.MessageStatus.READ);
+        }
+        
+        // Tell the sender, so their copy moves to READ as well
+        Message message = findCachedMessage(messageId);
+        if (message != null && connectionManager != null && currentUser != null &&
+            !message.getSenderPhone().equals(currentUser.getPhoneNumber())) {
+            connectionManager.sendReceipt(messageId, message.getSenderPhone(), "READ");
         }
     }
     
     public void markMessageAsDelivered(String messageId) {
         if (storage != null) {
-            boolean updated = storage.updateMessageStatus(messageId, Message.MessageStatus.DELIVERED);
-            if (updated) {
-                System.out.println("✅ Message marked as delivered: " + messageId);
-                // Update cache
-                updateMessageStatusInCache(messageId, Message.MessageStatus.DELIVERED);
+            storage.updateMessageStatusAsync(messageId, Message.MessageStatus.DELIVERED);
+            System.out.println("✅ Message marked as delivered: " + messageId);
+            // Update cache
+            updateMessageStatusInCache(messageId, Message.MessageStatus.DELIVERED);
+        }
+    }
+    
+    private void markConversationRead(List<Message> messages, String otherUserPhone) {
+        for (Message message : messages) {
+            if (message.getSenderPhone().equals(otherUserPhone) &&
+                message.getStatus() == Message.MessageStatus.DELIVERED) {
+                markMessageAsRead(message.getId());
+                message.setStatus(Message.MessageStatus.READ);
             }
         }
     }
     
+    // MessageListener callbacks from ConnectionManager
+    @Override
+    public void onMessage(String messageId, String fromPhone, String content) {
+        handleIncomingMessage(messageId, fromPhone, content);
+    }
+    
+    @Override
+    public void onServerAck(String messageId, boolean queued) {
+        if (queued) {
+            System.out.println("📥 Recipient offline, server stored message " + messageId);
+        }
+    }
+    
+    @Override
+    public void onReceipt(String messageId, String recipientPhone, String status) {
+        if ("READ".equals(status)) {
+            advanceMessageStatus(messageId, Message.MessageStatus.READ);
+        } else if ("DELIVERED".equals(status)) {
+            advanceMessageStatus(messageId, Message.MessageStatus.DELIVERED);
+        }
+    }
+    
+    @Override
+    public void onSendFailed(String messageId) {
+        advanceMessageStatus(messageId, Message.MessageStatus.FAILED);
+    }
+    
+    // Statuses only move forward (SENT -> DELIVERED -> READ), so late or repeated
+    // receipts cannot undo a newer one; FAILED is replaced by any later receipt
+    private void advanceMessageStatus(String messageId, Message.MessageStatus status) {
+        Message cached = findCachedMessage(messageId);
+        if (cached != null) {
+            Message.MessageStatus current = cached.getStatus();
+            boolean advance = status == Message.MessageStatus.FAILED
+                ? current == Message.MessageStatus.PENDING || current == Message.MessageStatus.SENT
+                : current == Message.MessageStatus.FAILED || status.ordinal() > current.ordinal();
+            if (!advance) {
+                return;
+            }
+        }
+        
+        if (storage != null) {
+            storage.updateMessageStatusAsync(messageId, status);
+        }
+        updateMessageStatusInCache(messageId, status);
+        System.out.println("📬 Message " + messageId + " " + status.name().toLowerCase());
+    }
+    
+    private Message findCachedMessage(String messageId) {
+        List<Message> found = messageCache.findAll(messageId);
+        return found.isEmpty() ? null : found.get(0);
+    }
+    
     // Utility methods
     private boolean isValidPhoneNumber(String phoneNumber) {
         return phoneNumber != null && phoneNumber.matches("[6-9][0-9]{9}") && phoneNumber.length() == 10;
@@ -329,8 +563,7 @@ public class MessageManager {
     private void updateConversation(String user1, String user2, String lastMessage, LocalDateTime lastMessageTime) {
         if (storage != null) {
             try {
-                Long conversationId = storage.findOrCreateConversation(user1, user2);
-                storage.updateConversation(conversationId, lastMessage, lastMessageTime);
+                storage.updateConversationAsync(user1, user2, lastMessage, lastMessageTime);
             } catch (Exception e) {
                 System.err.println("❌ Error updating conversation: " + e.getMessage());
             }
@@ -340,38 +573,107 @@ public class MessageManager {
     private void updateMessageCache(Message message) {
         // Update inbox cache
         if (message.getReceiverPhone().equals(currentUser.getPhoneNumber())) {
-            inboxCache.add(message);
+            messageCache.appendInbox(message);
         }
         
         // Update conversation cache
-        String cacheKey = getConversationCacheKey(message.getSenderPhone(), message.getReceiverPhone());
-        List<Message> conversation = conversationCache.getOrDefault(cacheKey, new CopyOnWriteArrayList<>());
-        conversation.add(message);
-        conversationCache.put(cacheKey, conversation);
+        messageCache.append(getConversationCacheKey(message.getSenderPhone(), message.getReceiverPhone()), message);
+        
+        SearchIndex index = searchIndex;
+        if (index != null) {
+            index.add(message);
+        }
     }
     
-    private void updateMessageStatusInCache(String messageId, Message.MessageStatus status) {
-        // Update in inbox cache
-        for (Message message : inboxCache) {
-            if (message.getId().equals(messageId)) {
-                message.setStatus(status);
-                break;
+    private void openSearchIndex(User user) {
+        closeSearchIndex();
+        if (user == null) {
+            return;
+        }
+        try {
+            SearchIndex index = new SearchIndex(Paths.get(searchIndexPath, user.getPhoneNumber()), searchIndexSnapshotEvery);
+            searchIndex = index;
+            String buildState = index.getBuildState();
+            if (!SEARCH_BUILD_COMPLETE.equals(buildState) && storage != null) {
+                // Index the stored history once, off the login path; an interrupted build resumes at its cursor
+                MessageDAO.Cursor resumeAt = parseBuildCursor(buildState);
+                Thread builder = new Thread(() -> buildSearchIndex(index, user.getPhoneNumber(), resumeAt), "search-index-build");
+                builder.setDaemon(true);
+                builder.start();
             }
+        } catch (IOException e) {
+            System.err.println("❌ Could not open search index, search is unavailable: " + e.getMessage());
         }
-        
-        // Update in conversation caches
-        for (List<Message> conversation : conversationCache.values()) {
-            for (Message message : conversation) {
-                if (message.getId().equals(messageId)) {
-                    message.setStatus(status);
+    }
+    
+    private void buildSearchIndex(SearchIndex index, String userPhone, MessageDAO.Cursor resumeAt) {
+        try {
+            int added = 0;
+            MessageDAO.Page page = storage.getUserMessagePage(userPhone, resumeAt, SEARCH_BUILD_PAGE_SIZE);
+            while (searchIndex == index) {
+                for (Message message : page.getMessages()) {
+                    if (index.add(message)) {
+                        added++;
+                    }
+                }
+                if (!page.hasMore()) {
+                    index.setBuildState(SEARCH_BUILD_COMPLETE);
+                    System.out.println("✅ Search index built: " + added + " messages");
                     break;
                 }
+                index.setBuildState(formatBuildCursor(page.getNext()));
+                page = storage.getUserMessagePage(userPhone, page.getNext(), SEARCH_BUILD_PAGE_SIZE);
             }
+        } catch (Exception e) {
+            System.err.println("❌ Error building search index: " + e.getMessage());
+        }
+    }
+    
+    // "createdAt id" of the next page to index
+    private static String formatBuildCursor(MessageDAO.Cursor cursor) {
+        return cursor.getCreatedAt() + " " + cursor.getId();
+    }
+    
+    // Null (start from the newest message) when no build ran or the marker is unreadable
+    private static MessageDAO.Cursor parseBuildCursor(String state) {
+        if (state == null) {
+            return null;
+        }
+        int space = state.indexOf(' ');
+        try {
+            return space > 0 ? new MessageDAO.Cursor(LocalDateTime.parse(state.substring(0, space)), state.substring(space + 1)) : null;
+        } catch (DateTimeParseException e) {
+            return null;
         }
     }
     
+    private void closeSearchIndex() {
+        SearchIndex index = searchIndex;
+        searchIndex = null;
+        if (index != null) {
+            index.close();
+        }
+    }
+    
+    public void shutdown() {
+        closeSearchIndex();
+        if (connectionManager != null) {
+            connectionManager.close();
+        }
+    }
+    
+    private void updateMessageStatusInCache(String messageId, Message.MessageStatus status) {
+        // O(1) through the cache's id index; covers inbox and conversation copies
+        messageCache.updateStatus(messageId, status);
+    }
+    
     // Method to handle incoming messages from ConnectionManager
     public void handleIncomingMessage(String fromUser, String content) {
+        handleIncomingMessage(null, fromUser, content);
+    }
+    
+    // Keeps the sender's id when there is one, so receipts refer to the same message
+    public void handleIncomingMessage(String messageId, String fromUser, String content) {
         if (currentUser == null) {
             System.err.println("❌ Cannot handle incoming message: no current user");
             return;
@@ -382,7 +684,7 @@ public class MessageManager {
                 Message.MessageType.FILE : Message.MessageType.TEXT;
             
             Message message = new Message(
-                UUID.randomUUID().toString(),
+                messageId != null ? messageId : UUID.randomUUID().toString(),
                 fromUser,
                 currentUser.getPhoneNumber(),
                 content,
@@ -403,7 +705,7 @@ public class MessageManager {
             
             // Save to database
             if (storage != null) {
-                storage.saveMessage(message);
+                storage.saveMessageAsync(message);
                 updateConversation(fromUser, currentUser.getPhoneNumber(), content, LocalDateTime.now());
             }
             
@@ -420,29 +722,29 @@ public class MessageManager {
     
     // Method to clear cache (useful for testing or memory management)
     public void clearCache() {
-        conversationCache.clear();
-        inboxCache.clear();
+        messageCache.clear();
+        if (storage == null) {
+            messageCache.putInbox(new ArrayList<>());
+        }
         System.out.println("✅ Message cache cleared");
     }
     
-    // Method to get message statistics
+    public Map<String, Object> getCacheStatistics() {
+        return messageCache.getStatistics();
+    }
+    
+    // Counters maintained by the database; one row lookup, no message is loaded
     public Map<String, Object> getMessageStatistics() {
         Map<String, Object> stats = new HashMap<>();
         
         if (storage != null && currentUser != null) {
             try {
-                List<Message> allMessages = storage.getMessagesByReceiver(currentUser.getPhoneNumber());
+                MessageDAO.UserStats counts = storage.getUserMessageStats(currentUser.getPhoneNumber());
                 
-                stats.put("totalMessages", allMessages.size());
-                stats.put("unreadMessages", allMessages.stream()
-                    .filter(m -> m.getStatus() == Message.MessageStatus.DELIVERED)
-                    .count());
-                stats.put("sentMessages", allMessages.stream()
-                    .filter(m -> m.getSenderPhone().equals(currentUser.getPhoneNumber()))
-                    .count());
-                stats.put("receivedMessages", allMessages.stream()
-                    .filter(m -> m.getReceiverPhone().equals(currentUser.getPhoneNumber()))
-                    .count());
+                stats.put("totalMessages", counts.getSent() + counts.getReceived());
+                stats.put("unreadMessages", counts.getUnread());
+                stats.put("sentMessages", counts.getSent());
+                stats.put("receivedMessages", counts.getReceived());
                     
             } catch (Exception e) {
                 System.err.println("❌ Error getting message statistics: " + e.getMessage());
@@ -452,7 +754,7 @@ public class MessageManager {
         return stats;
     }
     
-    // Method to search messages
+    // Ranked full-text search over the user's messages; prefix matches, every word must match
     public List<Message> searchMessages(String query) {
         List<Message> results = new ArrayList<>();
         
@@ -460,15 +762,22 @@ public class MessageManager {
             return results;
         }
         
-        String searchQuery = query.toLowerCase().trim();
+        SearchIndex index = searchIndex;
+        if (index == null) {
+            System.err.println("❌ Please login first");
+            return results;
+        }
         
-        // Search in cached messages
-        for (Message message : inboxCache) {
-            if (message.getContent().toLowerCase().contains(searchQuery) ||
-                message.getSenderPhone().contains(searchQuery) ||
-                (message.getFileName() != null && message.getFileName().toLowerCase().contains(searchQuery))) {
-                results.add(message);
+        for (SearchIndex.Result result : index.search(query, SEARCH_RESULT_LIMIT)) {
+            // The cached copy carries the current status
+            Message message = findCachedMessage(result.getMessageId());
+            if (message == null) {
+                message = new Message(result.getMessageId(), result.getSenderPhone(), result.getReceiverPhone(),
+                                      result.getContent(), result.getMessageType(), result.getStatus(),
+                                      result.getCreatedAt());
+                message.setFileName(result.getFileName());
             }
+            results.add(message);
         }
         
         System.out.println("✅ Found " + results.size() + " messages matching: " + query);
@@ -0,0 +1,123 @@
+package com.p2pchat.core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Tokens that tie a file offer to the phone it was sent to. A token is the
+ * HMAC-SHA256 of "fileId:phone" under a random secret kept next to the
+ * stored files, so the sender can check a peer's request without
+ * remembering every offer, also after a restart. Only the recipient of the
+ * FILE message learns the token, so other peers cannot pull the file even
+ * if they learn its id.
+ */
+public class OfferTokens {
+    private static final int SECRET_BYTES = 32;
+    private static final int TOKEN_BYTES = 16;
+
+    private final Path secretFile;
+    private final ReentrantLock lock = new ReentrantLock();
+    private byte[] secret;
+
+    public OfferTokens(Path secretFile) {
+        this.secretFile = secretFile;
+    }
+
+    public String issue(String fileId, String phone) throws IOException {
+        byte[] mac = mac(fileId, phone);
+        StringBuilder hex = new StringBuilder(TOKEN_BYTES * 2);
+        for (int i = 0; i < TOKEN_BYTES; i++) {
+            hex.append(String.format("%02x", mac[i]));
+        }
+        return hex.toString();
+    }
+
+    public boolean verify(String fileId, String phone, String token) {
+        if (fileId == null || phone == null || token == null) {
+            return false;
+        }
+        try {
+            // Constant time, so a peer cannot find the token byte by byte
+            return MessageDigest.isEqual(issue(fileId, phone).getBytes(StandardCharsets.US_ASCII),
+                    token.getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            System.err.println("❌ Offer secret unavailable: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private byte[] mac(String fileId, String phone) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret(), "HmacSHA256"));
+            return mac.doFinal((fileId + ":" + phone).getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+    // Loaded on first use; created once with owner-only permissions where the file system has them
+    private byte[] secret() throws IOException {
+        lock.lock();
+        try {
+            if (secret == null) {
+                if (!Files.exists(secretFile)) {
+                    create();
+                }
+                byte[] loaded = Files.readAllBytes(secretFile);
+                if (loaded.length < SECRET_BYTES) {
+                    throw new IOException("offer secret " + secretFile + " is too short");
+                }
+                secret = loaded;
+            }
+            return secret;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Never replaces an existing secret: if another client on this storage created it first, theirs is used
+    private void create() throws IOException {
+        byte[] created = new byte[SECRET_BYTES];
+        new SecureRandom().nextBytes(created);
+        Path dir = secretFile.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        // Unique name, so two clients never write the same temp file; created owner-only on POSIX
+        Path tmp = Files.createTempFile(dir, secretFile.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, created);
+            try {
+                // The link appears with the full contents, so a reader never sees a short secret
+                Files.createLink(secretFile, tmp);
+            } catch (FileAlreadyExistsException e) {
+                // Lost the race
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                // No hard links here: create in place instead
+                try {
+                    Files.write(secretFile, created, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                    restrictToOwner(secretFile);
+                } catch (FileAlreadyExistsException lost) {
+                    // Lost the race
+                }
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void restrictToOwner(Path file) throws IOException {
+        try {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+        }
+    }
+}
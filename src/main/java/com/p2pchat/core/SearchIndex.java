@@ -0,0 +1,675 @@
+package com.p2pchat.core;
+
+import com.p2pchat.core.models.Message;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Local inverted index over message text, file names and sender phones.
+ *
+ * Text is split into lowercase letter/digit tokens; each token maps to a
+ * postings list of (document, term frequency) in insertion order. Every
+ * query word matches as a prefix (exact matches weigh more), all words must
+ * match, and hits are ranked with BM25, newest first on ties.
+ *
+ * New messages are appended to a journal as they are indexed. Every
+ * snapshotEvery additions, and on close, the whole index including postings
+ * is written to a checksummed snapshot, so startup loads postings directly and
+ * only re-tokenizes the journal tail. On large indexes the interval grows to a
+ * quarter of the index size. Periodic snapshots run on a background thread:
+ * add() only captures the (append-only) docs and postings arrays and rotates
+ * the journal; the rotated journal is deleted once the snapshot is durable.
+ *
+ * The index also keeps a build marker for the initial import of stored
+ * history, so an interrupted build resumes where it stopped.
+ */
+public class SearchIndex {
+    private static final int MAGIC = 0x50325349; // "P2SI"
+    private static final int FORMAT_VERSION = 1;
+    private static final String SNAPSHOT_FILE = "index.snap";
+    private static final String JOURNAL_FILE = "index.journal";
+    // Journal taken over by a snapshot in progress; replayed first if the snapshot never finished
+    private static final String ROTATED_JOURNAL_FILE = "index.journal.old";
+    private static final String BUILD_FILE = "index.build";
+    private static final int MAX_TOKEN_LENGTH = 64;
+    // A one-letter prefix could match thousands of terms; only the most common are used
+    private static final int MAX_PREFIX_TERMS = 64;
+    private static final double PREFIX_WEIGHT = 0.5;
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private final Path dir;
+    private final int snapshotEvery;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Doc> docs = new ArrayList<>();
+    private final Map<String, Integer> docIds = new HashMap<>();
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private long totalLength = 0;
+    private FileOutputStream journalFile;
+    private DataOutputStream journal;
+    private int journaled = 0;
+    private boolean snapshotRunning = false;
+    private final ExecutorService snapshotter = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "search-index-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class Doc {
+        final String messageId;
+        final String senderPhone;
+        final String receiverPhone;
+        final Message.MessageType type;
+        final Message.MessageStatus status; // as of indexing; the cache has the live one
+        final long createdAt; // epoch millis, UTC
+        final String content;
+        final String fileName;
+        int length;
+
+        Doc(String messageId, String senderPhone, String receiverPhone, Message.MessageType type,
+            Message.MessageStatus status, long createdAt, String content, String fileName) {
+            this.messageId = messageId;
+            this.senderPhone = senderPhone;
+            this.receiverPhone = receiverPhone;
+            this.type = type;
+            this.status = status;
+            this.createdAt = createdAt;
+            this.content = content;
+            this.fileName = fileName;
+        }
+    }
+
+    // Postings as they were when a snapshot was taken; arrays are only appended to past size
+    private static final class PostingsView {
+        final String term;
+        final int[] docs;
+        final int[] freqs;
+        final int size;
+
+        PostingsView(String term, Postings postings) {
+            this.term = term;
+            this.docs = postings.docs;
+            this.freqs = postings.freqs;
+            this.size = postings.size;
+        }
+    }
+
+    private static final class Postings {
+        int[] docs = new int[4];
+        int[] freqs = new int[4];
+        int size = 0;
+
+        void add(int doc, int freq) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            docs[size] = doc;
+            freqs[size] = freq;
+            size++;
+        }
+    }
+
+    public static final class Result {
+        private final Doc doc;
+        private final double score;
+
+        private Result(Doc doc, double score) {
+            this.doc = doc;
+            this.score = score;
+        }
+
+        public String getMessageId() { return doc.messageId; }
+        public String getSenderPhone() { return doc.senderPhone; }
+        public String getReceiverPhone() { return doc.receiverPhone; }
+        public Message.MessageType getMessageType() { return doc.type; }
+        public Message.MessageStatus getStatus() { return doc.status; }
+        public String getContent() { return doc.content; }
+        public String getFileName() { return doc.fileName; }
+        public double getScore() { return score; }
+
+        public LocalDateTime getCreatedAt() {
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(doc.createdAt), ZoneOffset.UTC);
+        }
+    }
+
+    public SearchIndex(Path dir, int snapshotEvery) throws IOException {
+        this.dir = dir;
+        this.snapshotEvery = Math.max(1, snapshotEvery);
+        Files.createDirectories(dir);
+
+        lock.lock();
+        try {
+            loadSnapshot();
+            int replayed = replayJournal(dir.resolve(ROTATED_JOURNAL_FILE)) + replayJournal(dir.resolve(JOURNAL_FILE));
+            if (replayed > 0) {
+                rotateJournal();
+                writeSnapshot(new ArrayList<>(docs), totalLength, captureTerms());
+                Files.deleteIfExists(dir.resolve(ROTATED_JOURNAL_FILE));
+            }
+            openJournal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Adds a message once; repeated ids are ignored. Returns false if it was already indexed
+    public boolean add(Message message) {
+        Doc doc = new Doc(message.getId(), message.getSenderPhone(), message.getReceiverPhone(),
+                message.getMessageType(), message.getStatus(), message.getCreatedAt().toInstant(ZoneOffset.UTC).toEpochMilli(),
+                message.getContent(), message.getFileName());
+        lock.lock();
+        try {
+            if (!addDoc(doc)) {
+                return false;
+            }
+            try {
+                writeRecord(journal, encodeDoc(doc));
+                journal.flush();
+                // Grows with the index so snapshot cost stays proportional to what was added
+                if (++journaled >= Math.max(snapshotEvery, docs.size() / 4) && !snapshotRunning) {
+                    startSnapshot();
+                }
+            } catch (IOException e) {
+                System.err.println("❌ Search index journal write failed: " + e.getMessage());
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<Result> search(String query, int limit) {
+        List<String> words = tokenize(query);
+        if (words.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        lock.lock();
+        try {
+            double averageLength = docs.isEmpty() ? 1 : (double) totalLength / docs.size();
+            List<Map<String, Double>> expansions = new ArrayList<>();
+            for (String word : new LinkedHashSet<>(words)) {
+                Map<String, Double> matched = expand(word);
+                if (matched.isEmpty()) {
+                    return new ArrayList<>();
+                }
+                expansions.add(matched);
+            }
+            // Rarest word first keeps the candidate set small from the start
+            expansions.sort(Comparator.comparingLong(this::postingsCount));
+
+            Map<Integer, Double> scores = null;
+            for (Map<String, Double> matched : expansions) {
+                Map<Integer, Double> wordScores = new HashMap<>();
+                for (Map.Entry<String, Double> term : matched.entrySet()) {
+                    Postings postings = terms.get(term.getKey());
+                    double idf = Math.log(1 + (docs.size() - postings.size + 0.5) / (postings.size + 0.5));
+                    for (int i = 0; i < postings.size; i++) {
+                        int doc = postings.docs[i];
+                        if (scores != null && !scores.containsKey(doc)) {
+                            continue;
+                        }
+                        double freq = postings.freqs[i];
+                        double norm = freq * (K1 + 1) /
+                                (freq + K1 * (1 - B + B * docs.get(doc).length / averageLength));
+                        // A word counts once per document: its best matching term
+                        wordScores.merge(doc, term.getValue() * idf * norm, Math::max);
+                    }
+                }
+                if (scores == null) {
+                    scores = wordScores;
+                } else {
+                    scores.keySet().retainAll(wordScores.keySet());
+                    for (Map.Entry<Integer, Double> entry : scores.entrySet()) {
+                        entry.setValue(entry.getValue() + wordScores.get(entry.getKey()));
+                    }
+                }
+                if (scores.isEmpty()) {
+                    return new ArrayList<>();
+                }
+            }
+
+            Comparator<Result> ranking = Comparator.comparingDouble((Result r) -> r.score)
+                    .thenComparingLong(r -> r.doc.createdAt);
+            PriorityQueue<Result> top = new PriorityQueue<>(limit + 1, ranking);
+            for (Map.Entry<Integer, Double> entry : scores.entrySet()) {
+                top.add(new Result(docs.get(entry.getKey()), entry.getValue()));
+                if (top.size() > limit) {
+                    top.poll();
+                }
+            }
+            List<Result> results = new ArrayList<>(top);
+            results.sort(ranking.reversed());
+            return results;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return docs.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getTermCount() {
+        lock.lock();
+        try {
+            return terms.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Build progress marker saved with setBuildState, or null if no build has run
+    public String getBuildState() {
+        try {
+            Path file = dir.resolve(BUILD_FILE);
+            return Files.exists(file) ? new String(Files.readAllBytes(file), StandardCharsets.UTF_8) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Makes everything added so far durable, then records the marker
+    public void setBuildState(String state) {
+        lock.lock();
+        try {
+            if (journal == null) {
+                return;
+            }
+            journal.flush();
+            journalFile.getFD().sync();
+            Path tmp = dir.resolve(BUILD_FILE + ".tmp");
+            Files.write(tmp, state.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, dir.resolve(BUILD_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("❌ Search index build state write failed: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            if (journaled > 0) {
+                rotateJournal();
+                writeSnapshot(new ArrayList<>(docs), totalLength, captureTerms());
+                Files.deleteIfExists(dir.resolve(ROTATED_JOURNAL_FILE));
+            }
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Error closing search index: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Tokens of a query or document: lowercase runs of letters and digits
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (token.length() < MAX_TOKEN_LENGTH) {
+                    token.appendCodePoint(Character.toLowerCase(codePoint));
+                }
+            } else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    // File messages carry "FILE:name:size:id" as content; only the name is worth indexing
+    private static String indexedText(Doc doc) {
+        StringBuilder text = new StringBuilder();
+        if (doc.content != null && !doc.content.startsWith("FILE:")) {
+            text.append(doc.content);
+        }
+        if (doc.fileName != null) {
+            text.append(' ').append(doc.fileName);
+        }
+        if (doc.senderPhone != null) {
+            text.append(' ').append(doc.senderPhone);
+        }
+        return text.toString();
+    }
+
+    // Call with lock held
+    private boolean addDoc(Doc doc) {
+        if (docIds.containsKey(doc.messageId)) {
+            return false;
+        }
+        List<String> tokens = tokenize(indexedText(doc));
+        Map<String, Integer> freqs = new HashMap<>();
+        for (String token : tokens) {
+            freqs.merge(token, 1, Integer::sum);
+        }
+        int id = docs.size();
+        doc.length = tokens.size();
+        docs.add(doc);
+        docIds.put(doc.messageId, id);
+        for (Map.Entry<String, Integer> entry : freqs.entrySet()) {
+            terms.computeIfAbsent(entry.getKey(), k -> new Postings()).add(id, entry.getValue());
+        }
+        totalLength += doc.length;
+        return true;
+    }
+
+    // Term -> weight: the word itself at full weight, longer terms it prefixes at less
+    private Map<String, Double> expand(String word) {
+        Map<String, Double> matched = new HashMap<>();
+        List<Map.Entry<String, Postings>> prefixed = new ArrayList<>();
+        for (Map.Entry<String, Postings> entry : terms.subMap(word, true, word + Character.MAX_VALUE, false).entrySet()) {
+            if (entry.getKey().equals(word)) {
+                matched.put(word, 1.0);
+            } else {
+                prefixed.add(entry);
+            }
+        }
+        if (prefixed.size() > MAX_PREFIX_TERMS) {
+            prefixed.sort((a, b) -> Integer.compare(b.getValue().size, a.getValue().size));
+            prefixed = prefixed.subList(0, MAX_PREFIX_TERMS);
+        }
+        for (Map.Entry<String, Postings> entry : prefixed) {
+            matched.put(entry.getKey(), PREFIX_WEIGHT);
+        }
+        return matched;
+    }
+
+    private long postingsCount(Map<String, Double> matched) {
+        long count = 0;
+        for (String term : matched.keySet()) {
+            count += terms.get(term).size;
+        }
+        return count;
+    }
+
+    // Call with lock held: captures the index and hands the write to the snapshot thread
+    private void startSnapshot() throws IOException {
+        rotateJournal();
+        List<Doc> docsView = new ArrayList<>(docs);
+        long lengthView = totalLength;
+        List<PostingsView> termsView = captureTerms();
+        snapshotRunning = true;
+        snapshotter.execute(() -> {
+            try {
+                writeSnapshot(docsView, lengthView, termsView);
+                // Everything in the rotated journal is in the snapshot now
+                Files.deleteIfExists(dir.resolve(ROTATED_JOURNAL_FILE));
+            } catch (IOException e) {
+                System.err.println("❌ Search index snapshot failed: " + e.getMessage());
+            } finally {
+                lock.lock();
+                try {
+                    snapshotRunning = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+    }
+
+    // Call with lock held
+    private List<PostingsView> captureTerms() {
+        List<PostingsView> view = new ArrayList<>(terms.size());
+        for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+            view.add(new PostingsView(entry.getKey(), entry.getValue()));
+        }
+        return view;
+    }
+
+    // Call with lock held: new additions go to a fresh journal. A rotated journal left by a
+    // failed snapshot is kept and the current one appended to it, so neither is lost.
+    private void rotateJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        Path current = dir.resolve(JOURNAL_FILE);
+        Path rotated = dir.resolve(ROTATED_JOURNAL_FILE);
+        if (Files.exists(current)) {
+            if (Files.exists(rotated)) {
+                Files.write(rotated, Files.readAllBytes(current), StandardOpenOption.APPEND);
+                Files.delete(current);
+            } else {
+                Files.move(current, rotated, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        journaled = 0;
+        openJournal();
+    }
+
+    // Snapshot: header, docs, postings (delta-encoded), CRC32C of everything before it
+    private void writeSnapshot(List<Doc> docs, long totalLength, List<PostingsView> terms) throws IOException {
+        Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+        CRC32C crc = new CRC32C();
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), crc);
+             DataOutputStream out = new DataOutputStream(checked)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(docs.size());
+            for (Doc doc : docs) {
+                writeDoc(out, doc);
+                writeVarInt(out, doc.length);
+            }
+            out.writeLong(totalLength);
+            out.writeInt(terms.size());
+            for (PostingsView postings : terms) {
+                writeString(out, postings.term);
+                writeVarInt(out, postings.size);
+                int previous = 0;
+                for (int i = 0; i < postings.size; i++) {
+                    writeVarInt(out, postings.docs[i] - previous);
+                    writeVarInt(out, postings.freqs[i]);
+                    previous = postings.docs[i];
+                }
+            }
+            out.flush();
+            // Not covered by the checksum itself
+            new DataOutputStream(file).writeInt((int) crc.getValue());
+            file.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void loadSnapshot() {
+        Path file = dir.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(file)) {
+            return;
+        }
+        CRC32C crc = new CRC32C();
+        try (InputStream raw = new BufferedInputStream(Files.newInputStream(file), 1 << 16);
+             CheckedInputStream checked = new CheckedInputStream(raw, crc);
+             DataInputStream in = new DataInputStream(checked)) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("unknown snapshot format");
+            }
+            int docCount = in.readInt();
+            for (int i = 0; i < docCount; i++) {
+                Doc doc = readDoc(in);
+                doc.length = readVarInt(in);
+                docIds.put(doc.messageId, docs.size());
+                docs.add(doc);
+            }
+            totalLength = in.readLong();
+            int termCount = in.readInt();
+            for (int t = 0; t < termCount; t++) {
+                String term = readString(in);
+                int size = readVarInt(in);
+                Postings postings = new Postings();
+                postings.docs = new int[Math.max(4, size)];
+                postings.freqs = new int[Math.max(4, size)];
+                int previous = 0;
+                for (int i = 0; i < size; i++) {
+                    previous += readVarInt(in);
+                    postings.add(previous, readVarInt(in));
+                }
+                terms.put(term, postings);
+            }
+            int expected = (int) crc.getValue();
+            if (new DataInputStream(raw).readInt() != expected) {
+                throw new IOException("checksum mismatch");
+            }
+            System.out.println("✅ Search index loaded: " + docs.size() + " messages, " + terms.size() + " terms");
+        } catch (IOException | RuntimeException e) {
+            System.err.println("⚠️  Search index snapshot unreadable, starting empty: " + e);
+            docs.clear();
+            docIds.clear();
+            terms.clear();
+            totalLength = 0;
+        }
+    }
+
+    private int replayJournal(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        int replayed = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            byte[] payload;
+            while ((payload = readRecord(in)) != null) {
+                if (addDoc(readDoc(new DataInputStream(new ByteArrayInputStream(payload))))) {
+                    replayed++;
+                }
+            }
+        }
+        return replayed;
+    }
+
+    private void openJournal() throws IOException {
+        if (journal == null) {
+            journalFile = new FileOutputStream(dir.resolve(JOURNAL_FILE).toFile(), true);
+            journal = new DataOutputStream(new BufferedOutputStream(journalFile));
+        }
+    }
+
+    private static byte[] encodeDoc(Doc doc) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeDoc(out, doc);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeDoc(DataOutputStream out, Doc doc) throws IOException {
+        writeString(out, doc.messageId);
+        writeString(out, doc.senderPhone);
+        writeString(out, doc.receiverPhone);
+        writeString(out, doc.type.name());
+        writeString(out, doc.status.name());
+        out.writeLong(doc.createdAt);
+        writeString(out, doc.content);
+        writeString(out, doc.fileName);
+    }
+
+    private static Doc readDoc(DataInputStream in) throws IOException {
+        return new Doc(readString(in), readString(in), readString(in), Message.MessageType.valueOf(readString(in)),
+                Message.MessageStatus.valueOf(readString(in)), in.readLong(), readString(in), readString(in));
+    }
+
+    // [length:4][crc32c:4][payload]
+    private static void writeRecord(DataOutputStream out, byte[] payload) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(payload, 0, payload.length);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+
+    // Returns null at the end of the journal or at a torn/corrupt tail
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int expected = in.readInt();
+            if (length <= 0) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32C crc = new CRC32C();
+            crc.update(payload, 0, payload.length);
+            return (int) crc.getValue() == expected ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+}
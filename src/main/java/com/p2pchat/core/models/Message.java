@@ -16,6 +16,7 @@ public class Message {
     private String filePath;
     private String fileId;
     private String fileType;
+    private Long conversationId;
     
     // Updated constructor to match your needs
     public Message(String senderPhone, String receiverPhone, String content, 
@@ -54,6 +55,7 @@ public class Message {
     public String getFilePath() { return filePath; }
     public String getFileId() { return fileId; }
     public String getFileType() { return fileType; }
+    public Long getConversationId() { return conversationId; }
     
     // Setters
     public void setId(String id) { this.id = id; }
@@ -68,6 +70,7 @@ public class Message {
     public void setFilePath(String filePath) { this.filePath = filePath; }
     public void setFileId(String fileId) { this.fileId = fileId; }
     public void setFileType(String fileType) { this.fileType = fileType; }
+    public void setConversationId(Long conversationId) { this.conversationId = conversationId; }
     
     // Helper methods
     public boolean isTextMessage() {
@@ -0,0 +1,162 @@
+package com.p2pchat.net;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Receiver-side record of which chunks of a partial download are complete,
+ * kept in a sidecar file next to the ".part" file so an interrupted transfer
+ * resumes with only the missing chunks. Callers force the chunk data to disk
+ * before save(), so a crash can lose progress but the sidecar never claims a
+ * chunk that is not on disk.
+ */
+public final class ChunkBitmap {
+    private static final int MAGIC = 0x50324342; // "P2CB"
+    private static final int FORMAT_VERSION = 1;
+
+    private final Path file;
+    private final String fileId;
+    private final long fileSize;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final long[] words;
+    private int completed = 0;
+
+    private ChunkBitmap(Path file, String fileId, long fileSize, int chunkSize) {
+        this.file = file;
+        this.fileId = fileId;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount(fileSize, chunkSize);
+        this.words = new long[(chunkCount + 63) / 64];
+    }
+
+    // Loads the sidecar if it describes the same file, size and chunk size; otherwise starts empty
+    public static ChunkBitmap open(Path file, String fileId, long fileSize, int chunkSize) {
+        ChunkBitmap bitmap = new ChunkBitmap(file, fileId, fileSize, chunkSize);
+        if (Files.exists(file)) {
+            try {
+                bitmap.load();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("⚠️  Transfer state " + file.getFileName() + " unusable, starting over: " + e.getMessage());
+                bitmap.clear();
+            }
+        }
+        return bitmap;
+    }
+
+    public static int chunkCount(long fileSize, int chunkSize) {
+        long count = (fileSize + chunkSize - 1) / chunkSize;
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("file too large for chunk size " + chunkSize);
+        }
+        return (int) count;
+    }
+
+    public boolean isDone(int seq) {
+        return (words[seq >>> 6] & (1L << seq)) != 0;
+    }
+
+    public void markDone(int seq) {
+        if (!isDone(seq)) {
+            words[seq >>> 6] |= 1L << seq;
+            completed++;
+        }
+    }
+
+    // First missing chunk at or after from, or -1
+    public int nextMissing(int from) {
+        for (int seq = from; seq < chunkCount; seq++) {
+            if ((seq & 63) == 0 && words[seq >>> 6] == -1L) {
+                seq += 63;
+                continue;
+            }
+            if (!isDone(seq)) {
+                return seq;
+            }
+        }
+        return -1;
+    }
+
+    public long offsetOf(int seq) {
+        return (long) seq * chunkSize;
+    }
+
+    public int lengthOf(int seq) {
+        return (int) Math.min(chunkSize, fileSize - offsetOf(seq));
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public int getCompleted() {
+        return completed;
+    }
+
+    public boolean isComplete() {
+        return completed == chunkCount;
+    }
+
+    public void clear() {
+        Arrays.fill(words, 0L);
+        completed = 0;
+    }
+
+    // Header, bitmap words, CRC32C of everything before it; replaced atomically
+    public void save() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32C crc = new CRC32C();
+        try (FileOutputStream raw = new FileOutputStream(tmp.toFile());
+             CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(raw), crc);
+             DataOutputStream out = new DataOutputStream(checked)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(fileId);
+            out.writeLong(fileSize);
+            out.writeInt(chunkSize);
+            out.writeInt(chunkCount);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+            out.flush();
+            new DataOutputStream(raw).writeInt((int) crc.getValue());
+            raw.flush();
+            raw.getFD().sync();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private void load() throws IOException {
+        CRC32C crc = new CRC32C();
+        try (InputStream raw = new BufferedInputStream(Files.newInputStream(file));
+             CheckedInputStream checked = new CheckedInputStream(raw, crc);
+             DataInputStream in = new DataInputStream(checked)) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("unknown format");
+            }
+            if (!fileId.equals(in.readUTF()) || in.readLong() != fileSize ||
+                in.readInt() != chunkSize || in.readInt() != chunkCount) {
+                throw new IOException("describes a different transfer");
+            }
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+                completed += Long.bitCount(words[i]);
+            }
+            int expected = (int) crc.getValue();
+            if (new DataInputStream(raw).readInt() != expected) {
+                throw new IOException("checksum mismatch");
+            }
+        }
+    }
+}
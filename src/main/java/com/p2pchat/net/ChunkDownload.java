@@ -0,0 +1,403 @@
+package com.p2pchat.net;
+
+import com.p2pchat.util.HashingPipeline;
+import com.p2pchat.util.ThreadPools;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * One attempt at fetching the missing chunks of a file, over one or more
+ * connections to the same peer. Streams take disjoint runs of missing chunks
+ * from a shared cursor and write them with positional FileChannel writes, so
+ * they never overlap. The attempt starts with one stream and adds another
+ * each sampling interval while the added stream still raised throughput, up
+ * to maxStreams: a lossy or long link where one congestion window is the
+ * limit ends up with several streams, a link that one stream fills stays
+ * at one or two.
+ *
+ * A stream that fails puts the chunks it had asked for but not received
+ * back in a shared queue, and the remaining streams take those first.
+ *
+ * A hashing task follows the streams: whenever the chunks after the part
+ * it has hashed are complete, it reads them back (still in the page cache)
+ * and feeds them to the whole-file SHA-256, so hashing overlaps the network
+ * and only the last few chunks are hashed after the final one arrived.
+ */
+final class ChunkDownload {
+    private static final int CHUNK_HEADER_BYTES = 12;
+    // Chunks are handed out in runs of about this size; two runs are in flight per stream
+    private static final long RANGE_BYTES = 8L * 1024 * 1024;
+    private static final int RANGES_IN_FLIGHT = 2;
+    // Data is forced and the bitmap saved this often; at most this much is refetched after a crash
+    private static final long CHECKPOINT_BYTES = 64L * 1024 * 1024;
+    private static final long SAMPLE_MS = 1000;
+    private static final double MIN_GAIN = 1.10;
+    // Shared by every download: stream and hashing tasks
+    private static final ExecutorService WORKERS = ThreadPools.newDaemonExecutor("file-transfer");
+
+    private final InetSocketAddress peer;
+    private final String fileId;
+    private final String credentials;
+    private final FileTransfer.Offer offer;
+    private final long size;
+    private final int chunkSize;
+    private final ChunkBitmap chunks;
+    private final FileChannel sink;
+    private final int connectTimeoutMs;
+    private final long stallTimeoutMs;
+    private final AtomicInteger completed;
+    private final int rangeChunks;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition chunkDone = lock.newCondition();
+    private final Semaphore exited = new Semaphore(0);
+    private final AtomicLong bytes = new AtomicLong();
+    private int cursor = 0;
+    // Ranges a failed stream had in flight; handed out again before anything past the cursor
+    private final Deque<int[]> returned = new ArrayDeque<>();
+    private long sinceCheckpoint = 0;
+    private int streams = 0;
+    private volatile IOException failure;
+    private boolean stopHashing = false;
+    private volatile String digest;
+    private volatile IOException hashFailure;
+
+    ChunkDownload(InetSocketAddress peer, String fileId, String credentials, FileTransfer.Offer offer, ChunkBitmap chunks,
+                  FileChannel sink, int connectTimeoutMs, long stallTimeoutMs, AtomicInteger completed) {
+        this.peer = peer;
+        this.fileId = fileId;
+        this.credentials = credentials;
+        this.offer = offer;
+        this.size = offer.size;
+        this.chunkSize = offer.chunkSize;
+        this.chunks = chunks;
+        this.sink = sink;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.stallTimeoutMs = stallTimeoutMs;
+        this.completed = completed;
+        this.rangeChunks = (int) Math.max(1, RANGE_BYTES / chunkSize);
+    }
+
+    // Returns once every stream ended; throws if chunks are still missing
+    void run(SocketChannel control, int maxStreams) throws IOException {
+        Future<?> hasher = WORKERS.submit(this::hash);
+        try {
+            startStream(control);
+            int running = 1;
+            boolean growing = maxStreams > 1;
+            double best = 0;
+            long lastBytes = 0;
+            long lastTime = System.nanoTime();
+            while (running > 0) {
+                try {
+                    if (exited.tryAcquire(SAMPLE_MS, TimeUnit.MILLISECONDS)) {
+                        running--;
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted");
+                }
+                long now = System.nanoTime();
+                double rate = (bytes.get() - lastBytes) / ((now - lastTime) / 1e9);
+                lastBytes = bytes.get();
+                lastTime = now;
+                if (!growing) {
+                    continue;
+                }
+                if (rate > best * MIN_GAIN && running < maxStreams && remainingRanges() > running) {
+                    best = rate;
+                    startStream(null);
+                    running++;
+                } else {
+                    growing = false;
+                    System.out.println("📶 " + fileId + ": " + running + " stream(s), " +
+                                     String.format("%.1f MB/s", rate / 1024 / 1024));
+                }
+            }
+        } finally {
+            if (!chunks.isComplete()) {
+                stopHashing();
+                checkpoint();
+            }
+        }
+        if (!chunks.isComplete()) {
+            throw failure != null ? failure : new IOException((chunks.getChunkCount() - chunks.getCompleted()) +
+                                                              " chunks failed their checksum");
+        }
+        try {
+            hasher.get();
+        } catch (InterruptedException e) {
+            stopHashing();
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("hashing failed", e.getCause());
+        }
+        if (hashFailure != null) {
+            throw hashFailure;
+        }
+    }
+
+    // Hex SHA-256 of the whole file, once run() returned normally
+    String getDigest() {
+        return digest;
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    int getStreams() {
+        return streams;
+    }
+
+    private void startStream(SocketChannel channel) {
+        streams++;
+        WORKERS.execute(() -> stream(channel));
+    }
+
+    private void stream(SocketChannel control) {
+        // The next run is requested before the current one is read, so the link never idles for a round trip
+        Deque<int[]> pending = new ArrayDeque<>();
+        int[] current = null;
+        try (SocketChannel channel = control != null ? control : connect()) {
+            AtomicLong progress = new AtomicLong();
+            ScheduledFuture<?> watchdog = FileTransfer.watch(channel, progress, stallTimeoutMs);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_BYTES);
+                ByteBuffer data = ByteBuffer.allocateDirect(chunkSize);
+                CRC32C crc = new CRC32C();
+                request(channel, pending);
+                while (!pending.isEmpty()) {
+                    current = pending.poll();
+                    request(channel, pending);
+                    // current[0] advances past each chunk read, so a failure returns only the rest
+                    while (current[0] < current[1]) {
+                        receiveChunk(channel, current[0], header, data, crc, progress);
+                        current[0]++;
+                    }
+                }
+                FileTransfer.writeLine(channel, FileTransfer.DONE);
+            } finally {
+                watchdog.cancel(false);
+            }
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+            giveBack(current, pending);
+        } finally {
+            exited.release();
+        }
+    }
+
+    private void giveBack(int[] current, Deque<int[]> pending) {
+        lock.lock();
+        try {
+            if (current != null && current[0] < current[1]) {
+                returned.add(current);
+            }
+            returned.addAll(pending);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private SocketChannel connect() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            FileTransfer.Offer again = FileTransfer.requestFile(channel, peer, fileId, credentials, chunkSize,
+                    connectTimeoutMs);
+            if (again.size != size || again.chunkSize != chunkSize ||
+                (offer.sha256 != null && !offer.sha256.equalsIgnoreCase(again.sha256))) {
+                throw new IOException("peer changed the file between connections");
+            }
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void request(SocketChannel channel, Deque<int[]> pending) throws IOException {
+        while (pending.size() < RANGES_IN_FLIGHT) {
+            int[] range = nextRange();
+            if (range == null) {
+                return;
+            }
+            FileTransfer.writeLine(channel, FileTransfer.RANGE + ":" + range[0] + ":" + (range[1] - range[0]));
+            pending.add(range);
+        }
+    }
+
+    // Next run of missing chunks not yet handed to a stream, or null
+    private int[] nextRange() {
+        lock.lock();
+        try {
+            while (!returned.isEmpty()) {
+                int[] range = returned.poll();
+                while (range[0] < range[1] && chunks.isDone(range[0])) {
+                    range[0]++;
+                }
+                if (range[0] < range[1]) {
+                    return range;
+                }
+            }
+            int seq = chunks.nextMissing(cursor);
+            if (seq < 0) {
+                cursor = chunks.getChunkCount();
+                return null;
+            }
+            int end = seq + 1;
+            while (end < chunks.getChunkCount() && end - seq < rangeChunks && !chunks.isDone(end)) {
+                end++;
+            }
+            cursor = end;
+            return new int[]{seq, end};
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int remainingRanges() {
+        lock.lock();
+        try {
+            return returned.size() + (chunks.getChunkCount() - cursor) / rangeChunks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void receiveChunk(SocketChannel channel, int expected, ByteBuffer header, ByteBuffer data, CRC32C crc,
+                              AtomicLong progress) throws IOException {
+        header.clear();
+        FileTransfer.readFully(channel, header, progress);
+        header.flip();
+        int received = header.getInt();
+        int length = header.getInt();
+        int checksum = header.getInt();
+        if (received != expected || length != chunks.lengthOf(expected)) {
+            throw new IOException("unexpected chunk " + received + " (" + length + " bytes), wanted " + expected);
+        }
+        data.clear().limit(length);
+        FileTransfer.readFully(channel, data, progress);
+        bytes.addAndGet(length);
+        data.flip();
+        crc.reset();
+        crc.update(data);
+        if ((int) crc.getValue() != checksum) {
+            // Left missing; the next attempt asks for it again
+            System.err.println("⚠️  Chunk " + expected + " failed its checksum");
+            return;
+        }
+        data.rewind();
+        long offset = chunks.offsetOf(expected);
+        while (data.hasRemaining()) {
+            sink.write(data, offset + data.position());
+        }
+        markDone(expected, length);
+    }
+
+    // The bit is set only after the write returned, and checkpoints hold the lock, so a saved bit is always forced data
+    private void markDone(int seq, int length) throws IOException {
+        lock.lock();
+        try {
+            chunks.markDone(seq);
+            completed.set(chunks.getCompleted());
+            chunkDone.signal();
+            sinceCheckpoint += length;
+            if (sinceCheckpoint >= CHECKPOINT_BYTES) {
+                sink.force(false);
+                chunks.save();
+                sinceCheckpoint = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Hashes the file front to back, each run of chunks as soon as all of it is on disk
+    private void hash() {
+        MessageDigest sha256 = HashingPipeline.newDigest();
+        ByteBuffer buffer = HashingPipeline.acquireBuffer();
+        try {
+            int next = 0;
+            while (next < chunks.getChunkCount()) {
+                int end;
+                lock.lock();
+                try {
+                    while (!chunks.isDone(next) && !stopHashing) {
+                        chunkDone.await();
+                    }
+                    if (stopHashing) {
+                        return;
+                    }
+                    end = next + 1;
+                    while (end < chunks.getChunkCount() && chunks.isDone(end)) {
+                        end++;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                long position = chunks.offsetOf(next);
+                long limit = end < chunks.getChunkCount() ? chunks.offsetOf(end) : size;
+                while (position < limit) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), limit - position));
+                    int read = sink.read(buffer, position);
+                    if (read < 0) {
+                        throw new IOException("partial file shorter than " + size + " bytes");
+                    }
+                    buffer.flip();
+                    sha256.update(buffer);
+                    position += read;
+                }
+                next = end;
+            }
+            digest = HashingPipeline.toHex(sha256.digest());
+        } catch (IOException e) {
+            hashFailure = e;
+        } catch (InterruptedException e) {
+            hashFailure = new IOException("interrupted");
+        } finally {
+            HashingPipeline.releaseBuffer(buffer);
+        }
+    }
+
+    private void stopHashing() {
+        lock.lock();
+        try {
+            stopHashing = true;
+            chunkDone.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        lock.lock();
+        try {
+            sink.force(false);
+            chunks.save();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,26 +1,101 @@
 package com.p2pchat.net;
 
 import com.p2pchat.util.Config;
+import com.p2pchat.util.ThreadPools;
 import java.io.*;
 import java.net.*;
-import java.util.UUID;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 public class ConnectionManager {
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final int SEEN_MESSAGE_IDS = 10000;
+    
     private Socket serverSocket;
-    private PrintWriter out;
-    private BufferedReader in;
-    private ServerSocket peerServerSocket;
+    private OutputStream out;
+    private DataInputStream in;
+    private volatile boolean binaryProtocol = false;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private ServerSocketChannel peerServerSocket;
+    private ExecutorService peerExecutor;
+    // Resolves a file id this client offered to the local file and its digest; set by the message layer
+    private volatile FileTransfer.SourceResolver fileSource;
+    private final int transferTimeoutMs;
+    private final int transferChunkSize;
+    private final int transferStreams;
+    // Outstanding GET_PEER lookups by phone
+    private final Map<String, CompletableFuture<InetSocketAddress>> peerLookups = new ConcurrentHashMap<>();
     private boolean connected = false;
     private Config config;
     private String instanceId;
     private int peerPort;
     private boolean peerServerStarted = false;
+    // Local presence view, only written by the listener thread; -1 until the first snapshot
+    private final Set<String> presence = ConcurrentHashMap.newKeySet();
+    private volatile long presenceSeq = -1;
+    private volatile MessageListener messageListener;
+    private volatile String registeredPhone;
+    
+    // Sliding window of messages the server has not acknowledged yet, oldest first
+    private final Map<String, PendingMessage> inFlight = new LinkedHashMap<>();
+    private final ReentrantLock windowLock = new ReentrantLock();
+    private final Condition windowOpen = windowLock.newCondition();
+    // Lives as long as the manager; the task on it only while connected
+    private final ScheduledExecutorService retransmitTimer;
+    private ScheduledFuture<?> retransmitTask; // guarded by windowLock
+    private final int sendWindow;
+    private final long ackTimeoutMs;
+    private final int maxRetransmits;
+    // Recipient-side de-duplication of retransmitted messages
+    private final Map<String, Boolean> seenMessageIds = Collections.synchronizedMap(
+            new LinkedHashMap<String, Boolean>(1024, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > SEEN_MESSAGE_IDS;
+                }
+            });
+    
+    private static final class PendingMessage {
+        final Frame frame;
+        long deadline;
+        int attempts = 1;
+        
+        PendingMessage(Frame frame, long deadline) {
+            this.frame = frame;
+            this.deadline = deadline;
+        }
+    }
     
     public ConnectionManager() {
         this.config = new Config();
         this.instanceId = generateInstanceId();
         this.peerPort = findAvailablePort();
+        this.sendWindow = Math.max(1, config.getClientSendWindow());
+        this.ackTimeoutMs = Math.max(100, config.getClientAckTimeoutMs());
+        this.maxRetransmits = Math.max(0, config.getClientMaxRetransmits());
+        this.transferTimeoutMs = Math.max(1000, config.getPeerTransferTimeoutMs());
+        this.transferChunkSize = FileTransfer.clampChunkSize(config.getStorageChunkSize());
+        this.transferStreams = Math.max(1, config.getPeerTransferStreams());
+        this.retransmitTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "message-retransmit");
+            thread.setDaemon(true);
+            return thread;
+        });
         initializeConnection();
     }
     
@@ -69,13 +144,24 @@ public class ConnectionManager {
         
         try {
             serverSocket = new Socket(serverHost, serverPort);
-            out = new PrintWriter(serverSocket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()));
+            out = new BufferedOutputStream(serverSocket.getOutputStream());
+            in = new DataInputStream(new BufferedInputStream(serverSocket.getInputStream()));
+            binaryProtocol = false;
+            presence.clear();
+            presenceSeq = -1;
             connected = true;
             
-            out.println("IDENTIFY:" + instanceId + ":" + peerPort);
-            System.out.println("✅ Connected to server successfully!");
+            negotiateProtocol();
+            System.out.println("✅ Connected to server successfully!" +
+                             (binaryProtocol ? " (binary protocol v" + FrameCodec.VERSION + ")" : ""));
             startMessageListener();
+            startRetransmits();
+            
+            // After a reconnect: bind the phone again and resend anything still unacknowledged
+            if (registeredPhone != null) {
+                send(Frame.of(Frame.Type.REGISTER, registeredPhone));
+            }
+            resendInFlight();
             
         } catch (IOException e) {
             System.err.println("❌ Failed to connect to server: " + e.getMessage());
@@ -83,6 +169,35 @@ public class ConnectionManager {
         }
     }
     
+    // Offers binary framing in IDENTIFY and waits for REGISTERED before sending
+    // anything else; older servers answer without the version token and the
+    // connection stays on text lines.
+    private void negotiateProtocol() throws IOException {
+        FrameCodec.writeLine(out, "IDENTIFY:" + instanceId + ":" + peerPort + ":" + FrameCodec.VERSION_TOKEN);
+        out.flush();
+        
+        serverSocket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        try {
+            String line;
+            while ((line = FrameCodec.readLine(in)) != null) {
+                Frame frame = Frame.parseTextLine(line);
+                if (frame == null) {
+                    continue;
+                }
+                if (frame.getType() == Frame.Type.REGISTERED) {
+                    binaryProtocol = FrameCodec.VERSION_TOKEN.equals(frame.getString(1, null));
+                    handleServerMessage(frame);
+                    break;
+                }
+                handleServerMessage(frame);
+            }
+        } catch (SocketTimeoutException e) {
+            System.out.println("⚠️  No handshake reply from server, using text protocol");
+        } finally {
+            serverSocket.setSoTimeout(0);
+        }
+    }
+    
     private String getServerHostFromConfig() {
         try {
             java.lang.reflect.Method method = config.getClass().getMethod("getServerHost");
@@ -108,24 +223,27 @@ public class ConnectionManager {
         }
         
         try {
-            peerServerSocket = new ServerSocket(peerPort);
+            peerServerSocket = ServerSocketChannel.open();
+            peerServerSocket.bind(new InetSocketAddress(peerPort));
+            peerExecutor = ThreadPools.newConnectionExecutor(config.getPeerExecutor());
             peerServerStarted = true;
             System.out.println("✅ P2P server started on port " + peerPort);
             
             Thread peerServerThread = new Thread(() -> {
-                while (!peerServerSocket.isClosed()) {
+                while (peerServerSocket.isOpen()) {
                     try {
-                        Socket peerSocket = peerServerSocket.accept();
+                        SocketChannel peerSocket = peerServerSocket.accept();
                         System.out.println("🔗 New peer connection from: " + 
-                                         peerSocket.getInetAddress().getHostAddress());
-                        handlePeerConnection(peerSocket);
+                                         peerSocket.socket().getInetAddress().getHostAddress());
+                        // A file can take minutes; never hold up the accept loop
+                        peerExecutor.execute(() -> handlePeerConnection(peerSocket));
                     } catch (IOException e) {
-                        if (!peerServerSocket.isClosed()) {
+                        if (peerServerSocket.isOpen()) {
                             System.err.println("❌ Peer server error: " + e.getMessage());
                         }
                     }
                 }
-            });
+            }, "peer-accept");
             peerServerThread.setDaemon(true);
             peerServerThread.start();
             
@@ -134,37 +252,89 @@ public class ConnectionManager {
         }
     }
     
-    private void handlePeerConnection(Socket peerSocket) {
-        try {
-            BufferedReader peerIn = new BufferedReader(new InputStreamReader(peerSocket.getInputStream()));
-            PrintWriter peerOut = new PrintWriter(peerSocket.getOutputStream(), true);
-            
-            // Now using peerOut to prevent "unused variable" warning
+    private void handlePeerConnection(SocketChannel peerSocket) {
+        try (SocketChannel channel = peerSocket) {
+            PrintWriter peerOut = new PrintWriter(Channels.newOutputStream(channel), true);
             peerOut.println("HELLO:Connected to " + instanceId);
             
-            String peerMessage;
-            while ((peerMessage = peerIn.readLine()) != null) {
+            // Read unbuffered: after a file request the rest of the connection is raw file data
+            String peerMessage = FileTransfer.readRequest(channel);
+            if (peerMessage != null && peerMessage.startsWith(FileTransfer.REQUEST + ":")) {
+                handleFileTransfer(peerMessage.substring(FileTransfer.REQUEST.length() + 1).trim(), channel);
+                return;
+            }
+            
+            BufferedReader peerIn = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel)));
+            while (peerMessage != null) {
                 System.out.println("📨 Peer message: " + peerMessage);
-                if (peerMessage.startsWith("FILE:")) {
-                    handleFileTransfer(peerMessage, peerSocket);
-                }
                 // Echo back to peer using peerOut
                 peerOut.println("ECHO:" + peerMessage);
+                peerMessage = peerIn.readLine();
             }
         } catch (IOException e) {
             System.err.println("❌ Peer connection error: " + e.getMessage());
         }
     }
     
-    private void handleFileTransfer(String message, Socket peerSocket) {
-        System.out.println("📁 File transfer request: " + message);
+    private void handleFileTransfer(String request, SocketChannel channel) throws IOException {
+        // The rest of the request carries the offer token; keep it out of the log
+        System.out.println("📁 File transfer request: " + request.split(":")[0]);
+        FileTransfer.serve(channel, request, fileSource, transferTimeoutMs);
+    }
+    
+    public void setFileSource(FileTransfer.SourceResolver fileSource) {
+        this.fileSource = fileSource;
+    }
+    
+    /**
+     * Pulls a file straight from the peer that offered it: asks the server
+     * where the peer listens, then fetches it chunk by chunk into target over
+     * up to peer.transferStreams connections, resuming any earlier partial
+     * download. token is the one that came with the offer; the peer only
+     * serves the file to this client's phone with it. Returns the SHA-256 of the received file. Throws if the peer
+     * is offline or the transfer fails; target is only created on success.
+     */
+    public String downloadFile(String peerPhone, String fileId, String token, long expectedSize, Path target)
+            throws IOException {
+        if (registeredPhone == null || token == null) {
+            throw new IOException("no offer token for file " + fileId);
+        }
+        InetSocketAddress peer = lookupPeer(peerPhone);
+        if (peer == null) {
+            throw new IOException(peerPhone + " is not reachable for direct transfer");
+        }
+        System.out.println("🔗 Fetching file " + fileId + " from " + peerPhone + " at " + peer);
+        return FileTransfer.fetch(peer, fileId, registeredPhone + ":" + token, expectedSize, target, transferChunkSize,
+                transferStreams, transferTimeoutMs, transferTimeoutMs);
+    }
+    
+    // The peer endpoint as the server sees it, or null when offline or unknown
+    public InetSocketAddress lookupPeer(String peerPhone) {
+        if (!connected) {
+            return null;
+        }
+        CompletableFuture<InetSocketAddress> lookup = peerLookups.computeIfAbsent(peerPhone, k -> new CompletableFuture<>());
+        send(Frame.of(Frame.Type.GET_PEER, peerPhone));
+        try {
+            return lookup.get(HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        } finally {
+            peerLookups.remove(peerPhone, lookup);
+        }
     }
     
     public void stopPeerServer() {
-        if (peerServerSocket != null && !peerServerSocket.isClosed()) {
+        if (peerServerSocket != null && peerServerSocket.isOpen()) {
             try {
                 peerServerSocket.close();
                 peerServerStarted = false;
+                if (peerExecutor != null) {
+                    peerExecutor.shutdown();
+                }
                 System.out.println("✅ P2P server stopped");
             } catch (IOException e) {
                 System.err.println("❌ Error stopping peer server: " + e.getMessage());
@@ -175,8 +345,20 @@ public class ConnectionManager {
     private void startMessageListener() {
         Thread listenerThread = new Thread(() -> {
             try {
-                String message;
-                while (connected && (message = in.readLine()) != null) {
+                while (connected) {
+                    Frame message;
+                    if (binaryProtocol) {
+                        message = FrameCodec.read(in);
+                        if (message == null) break;
+                    } else {
+                        String line = FrameCodec.readLine(in);
+                        if (line == null) break;
+                        message = Frame.parseTextLine(line);
+                        if (message == null) {
+                            System.out.println("📨 Server message: " + line);
+                            continue;
+                        }
+                    }
                     handleServerMessage(message);
                 }
             } catch (IOException e) {
@@ -191,28 +373,223 @@ public class ConnectionManager {
         listenerThread.start();
     }
     
-    private void handleServerMessage(String message) {
+    private void handleServerMessage(Frame message) {
         System.out.println("📨 Server message: " + message);
-        if (message.startsWith("ONLINE_USERS:")) {
-            String users = message.substring("ONLINE_USERS:".length());
-            System.out.println("👥 Online users: " + users);
-        } else if (message.startsWith("MESSAGE:")) {
-            String[] parts = message.split(":", 3);
-            if (parts.length == 3) {
-                String fromUser = parts[1];
-                String content = parts[2];
-                System.out.println("💬 Message from " + fromUser + ": " + content);
+        switch (message.getType()) {
+            case ONLINE_USERS:
+                String users = message.getString(0, "");
+                System.out.println("👥 Online users: " + users);
+                break;
+            case MESSAGE:
+                if (message.getFieldCount() >= 2) {
+                    String fromUser = message.getString(0);
+                    String content = message.getString(1);
+                    System.out.println("💬 Message from " + fromUser + ": " + content);
+                    MessageListener listener = messageListener;
+                    if (listener != null) {
+                        listener.onMessage(null, fromUser, content);
+                    }
+                }
+                break;
+            case DELIVER:
+                if (message.getFieldCount() >= 3) {
+                    handleDelivery(message.getString(0), message.getString(1), message.getString(2));
+                }
+                break;
+            case SERVER_ACK:
+                if (message.getFieldCount() >= 2) {
+                    handleServerAck(message.getString(0), "QUEUED".equals(message.getString(1)));
+                }
+                break;
+            case RECEIPT:
+                if (message.getFieldCount() >= 3) {
+                    MessageListener listener = messageListener;
+                    if (listener != null) {
+                        listener.onReceipt(message.getString(0), message.getString(1), message.getString(2));
+                    }
+                }
+                break;
+            case FILE:
+                if (message.getFieldCount() >= 2) {
+                    String fromUser = message.getString(0);
+                    String fileInfo = message.getString(1);
+                    System.out.println("📁 File from " + fromUser + ": " + fileInfo);
+                }
+                break;
+            case PEER:
+                if (message.getFieldCount() >= 3) {
+                    CompletableFuture<InetSocketAddress> lookup = peerLookups.get(message.getString(0));
+                    if (lookup != null) {
+                        int port = Integer.parseInt(message.getString(1));
+                        String host = message.getString(2);
+                        lookup.complete(port > 0 && !host.isEmpty() ? new InetSocketAddress(host, port) : null);
+                    }
+                }
+                break;
+            case REGISTERED:
+                String phone = message.getString(0, "");
+                System.out.println("✅ Registered with server: " + phone);
+                break;
+            case OFFLINE_SYNC:
+                // End of an offline batch: acknowledging it lets the server delete it and send more
+                send(Frame.of(Frame.Type.OFFLINE_ACK, message.getString(0, "-1")));
+                break;
+            case PRESENCE_SNAPSHOT:
+                presence.clear();
+                presence.addAll(splitPhones(message.getString(1, "")));
+                presenceSeq = Long.parseLong(message.getString(0, "0"));
+                System.out.println("👥 Online users: " + presence.size());
+                break;
+            case PRESENCE_JOIN:
+            case PRESENCE_LEAVE:
+                applyPresenceDelta(message);
+                break;
+            default:
+                break;
+        }
+    }
+    
+    private void handleDelivery(String messageId, String fromUser, String content) {
+        // Always confirm, even duplicates: the first receipt may have been lost
+        send(Frame.of(Frame.Type.RECEIPT, messageId, fromUser, "DELIVERED"));
+        if (seenMessageIds.put(messageId, Boolean.TRUE) != null) {
+            System.out.println("🔁 Duplicate message " + messageId + " from " + fromUser + " ignored");
+            return;
+        }
+        
+        System.out.println("💬 Message from " + fromUser + ": " + content);
+        MessageListener listener = messageListener;
+        if (listener != null) {
+            listener.onMessage(messageId, fromUser, content);
+        }
+    }
+    
+    private void handleServerAck(String messageId, boolean queued) {
+        windowLock.lock();
+        try {
+            if (inFlight.remove(messageId) == null) {
+                return;
             }
-        } else if (message.startsWith("FILE:")) {
-            String[] parts = message.split(":", 3);
-            if (parts.length == 3) {
-                String fromUser = parts[1];
-                String fileInfo = parts[2];
-                System.out.println("📁 File from " + fromUser + ": " + fileInfo);
+            windowOpen.signal();
+        } finally {
+            windowLock.unlock();
+        }
+        MessageListener listener = messageListener;
+        if (listener != null) {
+            listener.onServerAck(messageId, queued);
+        }
+    }
+    
+    private void retransmitExpired() {
+        List<Frame> resend = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        windowLock.lock();
+        try {
+            Iterator<Map.Entry<String, PendingMessage>> it = inFlight.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, PendingMessage> entry = it.next();
+                PendingMessage pending = entry.getValue();
+                if (pending.deadline > now) {
+                    continue;
+                }
+                if (pending.attempts > maxRetransmits) {
+                    it.remove();
+                    failed.add(entry.getKey());
+                    windowOpen.signal();
+                } else {
+                    pending.attempts++;
+                    // Back off so a slow server is not flooded with copies
+                    pending.deadline = now + ackTimeoutMs * pending.attempts;
+                    resend.add(pending.frame);
+                }
             }
-        } else if (message.startsWith("REGISTERED:")) {
-            String phone = message.substring("REGISTERED:".length());
-            System.out.println("✅ Registered with server: " + phone);
+        } finally {
+            windowLock.unlock();
+        }
+        
+        if (connected) {
+            for (Frame frame : resend) {
+                send(frame);
+            }
+        }
+        MessageListener listener = messageListener;
+        for (String messageId : failed) {
+            System.err.println("❌ No acknowledgement for message " + messageId + ", giving up");
+            if (listener != null) {
+                listener.onSendFailed(messageId);
+            }
+        }
+    }
+    
+    private void resendInFlight() {
+        List<Frame> resend = new ArrayList<>();
+        windowLock.lock();
+        try {
+            long deadline = System.currentTimeMillis() + ackTimeoutMs;
+            for (PendingMessage pending : inFlight.values()) {
+                pending.deadline = deadline;
+                resend.add(pending.frame);
+            }
+        } finally {
+            windowLock.unlock();
+        }
+        for (Frame frame : resend) {
+            send(frame);
+        }
+    }
+    
+    private void applyPresenceDelta(Frame delta) {
+        long seq = Long.parseLong(delta.getString(0, "0"));
+        long last = presenceSeq;
+        if (last < 0 || seq <= last) {
+            // Waiting for a snapshot, or already covered by one
+            return;
+        }
+        if (seq != last + 1) {
+            System.out.println("⚠️  Presence gap (" + last + " -> " + seq + "), requesting snapshot");
+            presenceSeq = -1;
+            send(Frame.of(Frame.Type.GET_PRESENCE));
+            return;
+        }
+        
+        List<String> phones = splitPhones(delta.getString(1, ""));
+        if (delta.getType() == Frame.Type.PRESENCE_JOIN) {
+            presence.addAll(phones);
+            System.out.println("🟢 Online: " + String.join(", ", phones));
+        } else {
+            presence.removeAll(phones);
+            System.out.println("⚪ Offline: " + String.join(", ", phones));
+        }
+        presenceSeq = seq;
+    }
+    
+    private static List<String> splitPhones(String joined) {
+        List<String> phones = new ArrayList<>();
+        for (String phone : joined.split(",")) {
+            if (!phone.isEmpty()) {
+                phones.add(phone);
+            }
+        }
+        return phones;
+    }
+    
+    // Encodes as a binary frame or a text line, depending on what the server negotiated
+    private boolean send(Frame frame) {
+        writeLock.lock();
+        try {
+            if (binaryProtocol) {
+                FrameCodec.write(out, frame);
+            } else {
+                FrameCodec.writeLine(out, frame.toTextLine());
+            }
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            System.err.println("❌ Failed to write to server: " + e.getMessage());
+            return false;
+        } finally {
+            writeLock.unlock();
         }
     }
     
@@ -238,51 +615,102 @@ public class ConnectionManager {
     }
     
     public boolean sendMessage(String toUser, String content) {
+        return sendMessage(UUID.randomUUID().toString(), toUser, content);
+    }
+    
+    /**
+     * Sends a message with an id the server and the recipient acknowledge.
+     * Returns once the message is in the send window, without waiting for the
+     * ack; blocks only while the window is full. Acks, receipts and failures
+     * arrive through the MessageListener.
+     */
+    public boolean sendMessage(String messageId, String toUser, String content) {
         if (!connected) {
             System.err.println("❌ Not connected to server");
             return false;
         }
         
+        Frame frame = Frame.of(Frame.Type.POST, messageId, toUser, content);
+        windowLock.lock();
         try {
-            out.println("SEND:" + toUser + ":" + content);
-            System.out.println("✅ Message sent to " + toUser);
-            return true;
-        } catch (Exception e) {
-            System.err.println("❌ Failed to send message: " + e.getMessage());
+            while (inFlight.size() >= sendWindow) {
+                if (!windowOpen.await(ackTimeoutMs, TimeUnit.MILLISECONDS)) {
+                    System.err.println("❌ Send window full (" + sendWindow + " unacknowledged messages)");
+                    return false;
+                }
+            }
+            inFlight.put(messageId, new PendingMessage(frame, System.currentTimeMillis() + ackTimeoutMs));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return false;
+        } finally {
+            windowLock.unlock();
+        }
+        
+        // A failed write is not fatal: the retransmit timer sends it again
+        if (send(frame)) {
+            System.out.println("✅ Message sent to " + toUser);
         }
+        return true;
     }
     
-    public boolean sendFileMessage(String toUser, String fileName, long fileSize, String fileId) {
-        if (!connected) {
-            System.err.println("❌ Not connected to server");
-            return false;
+    public void sendReceipt(String messageId, String senderPhone, String status) {
+        if (connected) {
+            send(Frame.of(Frame.Type.RECEIPT, messageId, senderPhone, status));
         }
-        
+    }
+    
+    public int getInFlightCount() {
+        windowLock.lock();
         try {
-            String fileMessage = "FILE:" + fileName + ":" + fileSize + ":" + fileId;
-            out.println("SEND_FILE:" + toUser + ":" + fileMessage);
-            System.out.println("✅ File message sent to " + toUser);
-            return true;
-        } catch (Exception e) {
-            System.err.println("❌ Failed to send file message: " + e.getMessage());
-            return false;
+            return inFlight.size();
+        } finally {
+            windowLock.unlock();
         }
     }
     
+    public void setMessageListener(MessageListener messageListener) {
+        this.messageListener = messageListener;
+    }
+    
+    public boolean sendFileMessage(String toUser, String fileName, long fileSize, String fileId, String token) {
+        return sendFileMessage(UUID.randomUUID().toString(), toUser, fileName, fileSize, fileId, token);
+    }
+    
+    // File announcements travel as regular acknowledged messages; token lets only toUser fetch the file
+    public boolean sendFileMessage(String messageId, String toUser, String fileName, long fileSize, String fileId,
+                                   String token) {
+        String fileMessage = "FILE:" + fileName + ":" + fileSize + ":" + fileId + ":" + token;
+        return sendMessage(messageId, toUser, fileMessage);
+    }
+    
     public void registerUser(String phoneNumber) {
+        registeredPhone = phoneNumber;
         if (connected) {
-            out.println("REGISTER:" + phoneNumber);
+            send(Frame.of(Frame.Type.REGISTER, phoneNumber));
             System.out.println("📡 Registering with server as: " + phoneNumber);
         }
     }
     
+    // Lets the server refresh which users' presence this client receives
+    public void notifyContactAdded(String contactPhone) {
+        if (connected) {
+            send(Frame.of(Frame.Type.CONTACT_ADDED, contactPhone));
+        }
+    }
+    
     public void requestOnlineUsers() {
         if (connected) {
-            out.println("GET_ONLINE_USERS");
+            send(Frame.of(Frame.Type.GET_ONLINE_USERS));
         }
     }
     
+    public List<String> getOnlineUsers() {
+        List<String> users = new ArrayList<>(presence);
+        Collections.sort(users);
+        return users;
+    }
+    
     public boolean isConnected() {
         return connected;
     }
@@ -299,8 +727,34 @@ public class ConnectionManager {
         }
     }
     
+    private void startRetransmits() {
+        windowLock.lock();
+        try {
+            if (retransmitTask == null && !retransmitTimer.isShutdown()) {
+                long tick = Math.max(50, ackTimeoutMs / 4);
+                retransmitTask = retransmitTimer.scheduleWithFixedDelay(this::retransmitExpired, tick, tick, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            windowLock.unlock();
+        }
+    }
+    
+    private void stopRetransmits() {
+        windowLock.lock();
+        try {
+            if (retransmitTask != null) {
+                retransmitTask.cancel(false);
+                retransmitTask = null;
+            }
+        } finally {
+            windowLock.unlock();
+        }
+    }
+    
+    // Unacknowledged messages stay in the window and go out again after the next connect
     public void disconnect() {
         connected = false;
+        stopRetransmits();
         try {
             if (out != null) out.close();
             if (in != null) in.close();
@@ -311,6 +765,20 @@ public class ConnectionManager {
         }
     }
     
+    // Connects again after disconnect(); messages still unacknowledged are resent
+    public boolean reconnect() {
+        if (!connected) {
+            initializeConnection();
+        }
+        return connected;
+    }
+    
+    // Final shutdown: the manager cannot connect again afterwards
+    public void close() {
+        disconnect();
+        retransmitTimer.shutdownNow();
+    }
+    
     public String getInstanceId() {
         return instanceId;
     }
@@ -0,0 +1,398 @@
+package com.p2pchat.net;
+
+import com.p2pchat.util.Constants;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Pull-model, chunked file transfer over a direct peer connection.
+ *
+ * The receiver connects to the sender's peer port and asks for a file id and
+ * chunk size with one text line; the sender answers with a FILE_OK line
+ * carrying the size and, when the sender knows it, the SHA-256 of the
+ * content. The receiver then asks for runs of chunks it is missing
+ * ("CHUNKS:first:count"), and the sender answers each chunk with a 12-byte
+ * header (sequence number, length, CRC32C) followed by the bytes. Each
+ * chunk is read once into a per-connection direct buffer, checksummed there
+ * and written from it, so the file is not read twice and nothing is mapped.
+ *
+ * The receiver (ChunkDownload) may open several such connections and spread
+ * the missing chunks over them. It verifies every chunk before writing it at
+ * its offset in a ".part" file and records completed chunks in a ChunkBitmap
+ * sidecar. After
+ * a disconnect the transfer resumes from that bitmap, both within one fetch
+ * and on a later download of the same file, so only missing chunks are sent
+ * again. While chunks land, the receiver hashes the completed prefix of the
+ * ".part" file, so the whole-file SHA-256 is ready moments after the last
+ * chunk; a file that does not match the sender's digest is discarded and
+ * fetched again. The ".part" file is only renamed once every chunk arrived
+ * and the digest matched.
+ */
+public final class FileTransfer {
+    public static final String REQUEST = "GET_FILE";
+    static final String RANGE = "CHUNKS";
+    static final String DONE = "DONE";
+    private static final String OK = "FILE_OK";
+    private static final String ERROR = "FILE_ERR";
+    private static final int MAX_LINE_LENGTH = 1024;
+    private static final int CHUNK_HEADER_BYTES = 12;
+    // Bounds the receive buffer a peer can make us allocate
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_ATTEMPTS_WITHOUT_PROGRESS = 3;
+    private static final long RETRY_DELAY_MS = 1000;
+
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "file-transfer-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // The peer answered but will not send this file; retrying does not help
+    private static final class RefusedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RefusedException(String message) {
+            super(message);
+        }
+    }
+
+    // What the sender serves for a file id: the stored file and its SHA-256, if known
+    public static final class Source {
+        private final Path path;
+        private final String sha256;
+
+        public Source(Path path, String sha256) {
+            this.path = path;
+            this.sha256 = sha256;
+        }
+
+        public Path getPath() { return path; }
+        public String getSha256() { return sha256; }
+    }
+
+    // Resolves a requested file id for the phone asking for it; null when unknown or not offered to that phone
+    public interface SourceResolver {
+        Source resolve(String fileId, String requesterPhone, String token);
+    }
+
+    // The sender's FILE_OK: size, chunk size and the content SHA-256 (null when the sender did not send one)
+    static final class Offer {
+        final long size;
+        final int chunkSize;
+        final String sha256;
+
+        Offer(long size, int chunkSize, String sha256) {
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.sha256 = sha256;
+        }
+    }
+
+    private FileTransfer() {
+        // Utility class
+    }
+
+    public static int clampChunkSize(int chunkSize) {
+        return Math.max(Constants.CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize));
+    }
+
+    /**
+     * Sender side, after the request line was read. request is what followed
+     * "GET_FILE:" ("fileId:chunkSize:phone:token"); source maps a file id
+     * to the stored file and its digest, or null when it is unknown or was
+     * not offered to that phone with that token. Serves chunk ranges until
+     * the receiver is done and returns the number of data bytes sent.
+     */
+    public static long serve(SocketChannel channel, String request, SourceResolver source,
+                             long stallTimeoutMs) throws IOException {
+        String[] parts = request.split(":");
+        String fileId = parts[0].trim();
+        String requester = parts.length > 3 ? parts[2].trim() : null;
+        String token = parts.length > 3 ? parts[3].trim() : null;
+        Source served = source != null && !fileId.isEmpty() ? source.resolve(fileId, requester, token) : null;
+        Path file = served != null ? served.getPath() : null;
+        if (file == null || !Files.isRegularFile(file)) {
+            writeLine(channel, ERROR + ":not found");
+            // Unknown and not-offered look the same, so a peer cannot probe for file ids
+            System.out.println("❌ Peer " + (requester != null ? requester + " " : "") + "asked for unknown file " + fileId);
+            return 0;
+        }
+        int chunkSize;
+        try {
+            chunkSize = clampChunkSize(parts.length > 1 ? Integer.parseInt(parts[1].trim()) : Constants.CHUNK_SIZE);
+        } catch (NumberFormatException e) {
+            writeLine(channel, ERROR + ":bad request");
+            return 0;
+        }
+
+        try (FileChannel sourceChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = sourceChannel.size();
+            int chunkCount = ChunkBitmap.chunkCount(size, chunkSize);
+            writeLine(channel, OK + ":" + size + ":" + chunkSize + (served.getSha256() != null ? ":" + served.getSha256() : ""));
+
+            AtomicLong progress = new AtomicLong();
+            ScheduledFuture<?> watchdog = watch(channel, progress, stallTimeoutMs);
+            ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_BYTES);
+            // One buffer per connection, like the receiver's; chunks are read into it once
+            ByteBuffer data = ByteBuffer.allocateDirect((int) Math.min(chunkSize, Math.max(1, size)));
+            CRC32C crc = new CRC32C();
+            long start = System.nanoTime();
+            int chunksSent = 0;
+            try {
+                String command = readLine(channel);
+                while (command != null && command.startsWith(RANGE + ":")) {
+                    String[] range = command.split(":");
+                    int first = Integer.parseInt(range[1]);
+                    int count = Integer.parseInt(range[2]);
+                    if (first < 0 || count < 0 || (long) first + count > chunkCount) {
+                        throw new IOException("bad chunk range " + command);
+                    }
+                    for (int seq = first; seq < first + count; seq++) {
+                        long offset = (long) seq * chunkSize;
+                        sendChunk(sourceChannel, channel, seq, offset, (int) Math.min(chunkSize, size - offset), header,
+                                  data, crc, progress);
+                        chunksSent++;
+                    }
+                    command = readLine(channel);
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("bad chunk request", e);
+            } finally {
+                watchdog.cancel(false);
+            }
+            System.out.println("📤 Sent file " + fileId + ": " + chunksSent + "/" + chunkCount + " chunks (" +
+                             progress.get() + " bytes) in " + elapsedMs(start) + " ms");
+            return progress.get();
+        }
+    }
+
+    /**
+     * Receiver side. credentials is "phone:token" as issued with the offer.
+     * Fetches every chunk not yet recorded in the bitmap next
+     * to target over up to maxStreams connections, reconnecting after a
+     * disconnect as long as each attempt makes progress. Returns the hex
+     * SHA-256 of the file; target only appears once it is complete and, if
+     * the sender sent a digest, matches it.
+     */
+    public static String fetch(InetSocketAddress peer, String fileId, String credentials, long expectedSize, Path target,
+                             int chunkSize, int maxStreams, int connectTimeoutMs, long stallTimeoutMs) throws IOException {
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        AtomicInteger completed = new AtomicInteger(-1);
+        int best = -1;
+        int failures = 0;
+        while (true) {
+            try {
+                return fetchOnce(peer, fileId, credentials, expectedSize, target, clampChunkSize(chunkSize),
+                        Math.max(1, maxStreams), connectTimeoutMs, stallTimeoutMs, completed);
+            } catch (RefusedException e) {
+                throw e;
+            } catch (IOException e) {
+                if (completed.get() > best) {
+                    best = completed.get();
+                    failures = 0;
+                } else {
+                    failures++;
+                }
+                if (failures >= MAX_ATTEMPTS_WITHOUT_PROGRESS) {
+                    throw e;
+                }
+                System.err.println("⚠️  Transfer of " + fileId + " interrupted (" + e.getMessage() + "), resuming with " +
+                                 Math.max(0, completed.get()) + " chunks already received");
+                try {
+                    Thread.sleep(RETRY_DELAY_MS * failures);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static String fetchOnce(InetSocketAddress peer, String fileId, String credentials, long expectedSize,
+                                  Path target, int chunkSize, int maxStreams, int connectTimeoutMs, long stallTimeoutMs,
+                                  AtomicInteger completed) throws IOException {
+        try (SocketChannel control = SocketChannel.open()) {
+            Offer offer = requestFile(control, peer, fileId, credentials, chunkSize, connectTimeoutMs);
+            long size = offer.size;
+            // The sender may have clamped the chunk size to its own limits
+            int offeredChunkSize = offer.chunkSize;
+            if (expectedSize > 0 && size != expectedSize) {
+                throw new RefusedException("peer offers " + size + " bytes, expected " + expectedSize);
+            }
+            if (offeredChunkSize != clampChunkSize(offeredChunkSize)) {
+                throw new RefusedException("peer uses unsupported chunk size " + offeredChunkSize);
+            }
+
+            Path part = target.resolveSibling(target.getFileName() + ".part");
+            ChunkBitmap chunks = ChunkBitmap.open(target.resolveSibling(target.getFileName() + ".chunks"),
+                    fileId, size, offeredChunkSize);
+            if (!Files.exists(part)) {
+                chunks.clear();
+            } else if (chunks.getCompleted() > 0 && completed.get() < 0) {
+                System.out.println("🔁 Resuming " + fileId + ": " + chunks.getCompleted() + "/" +
+                                 chunks.getChunkCount() + " chunks already here");
+            }
+            completed.set(chunks.getCompleted());
+            boolean resumed = chunks.getCompleted() > 0;
+
+            long start = System.nanoTime();
+            ChunkDownload download;
+            try (RandomAccessFile file = new RandomAccessFile(part.toFile(), "rw")) {
+                // Sized up front: no repeated file growth while chunks land out of order
+                if (file.length() != size) {
+                    file.setLength(size);
+                }
+                download = new ChunkDownload(peer, fileId, credentials, offer, chunks, file.getChannel(),
+                        connectTimeoutMs, stallTimeoutMs, completed);
+                download.run(control, maxStreams);
+                file.getChannel().force(false);
+            }
+            String digest = download.getDigest();
+            if (offer.sha256 != null && !offer.sha256.equalsIgnoreCase(digest)) {
+                // Every chunk passed its CRC, yet the whole is wrong. Chunks kept from an earlier
+                // attempt may be stale, so that case starts over once; a fresh copy would not differ
+                chunks.delete();
+                Files.deleteIfExists(part);
+                completed.set(0);
+                String message = "content does not match the sender's SHA-256";
+                throw resumed ? new IOException(message) : new RefusedException(message);
+            }
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            chunks.delete();
+
+            long ms = Math.max(1, elapsedMs(start));
+            System.out.println("📥 Received file " + fileId + " (" + size + " bytes, " + download.getBytes() +
+                             " transferred over " + download.getStreams() + " stream(s)) in " + ms + " ms, " +
+                             String.format("%.1f MB/s", download.getBytes() / 1024.0 / 1024.0 / (ms / 1000.0)) +
+                             (offer.sha256 != null ? ", SHA-256 verified" : ""));
+            return digest;
+        }
+    }
+
+    // Connects and sends the file request; returns the peer's FILE_OK
+    static Offer requestFile(SocketChannel channel, InetSocketAddress peer, String fileId, String credentials,
+                             int chunkSize, int connectTimeoutMs) throws IOException {
+        channel.socket().connect(peer, connectTimeoutMs);
+        writeLine(channel, REQUEST + ":" + fileId + ":" + chunkSize + (credentials != null ? ":" + credentials : ""));
+
+        // Skip the legacy HELLO greeting of the peer server
+        String reply = readLine(channel);
+        while (reply != null && !reply.startsWith(OK) && !reply.startsWith(ERROR)) {
+            reply = readLine(channel);
+        }
+        if (reply == null) {
+            throw new IOException("peer closed the connection");
+        }
+        if (reply.startsWith(ERROR)) {
+            throw new RefusedException("peer refused: " + reply.substring(Math.min(reply.length(), ERROR.length() + 1)));
+        }
+        try {
+            String[] offer = reply.split(":");
+            return new Offer(Long.parseLong(offer[1].trim()),
+                             offer.length > 2 ? Integer.parseInt(offer[2].trim()) : chunkSize,
+                             offer.length > 3 && !offer[3].trim().isEmpty() ? offer[3].trim() : null);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("malformed reply from peer: " + reply);
+        }
+    }
+
+    // The chunk is read once into data, checksummed there and sent from the same buffer
+    private static void sendChunk(FileChannel source, SocketChannel channel, int seq, long offset, int length,
+                                  ByteBuffer header, ByteBuffer data, CRC32C crc, AtomicLong progress) throws IOException {
+        data.clear().limit(length);
+        while (data.hasRemaining()) {
+            if (source.read(data, offset + data.position()) < 0) {
+                throw new IOException("file shrank while sending chunk " + seq);
+            }
+        }
+        data.flip();
+        crc.reset();
+        crc.update(data);
+        data.flip();
+        header.clear();
+        header.putInt(seq).putInt(length).putInt((int) crc.getValue()).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        while (data.hasRemaining()) {
+            progress.addAndGet(channel.write(data));
+        }
+    }
+
+    // Reads the request line on the sender side; null on EOF
+    public static String readRequest(SocketChannel channel) throws IOException {
+        return readLine(channel);
+    }
+
+    // Blocking channel reads ignore SO_TIMEOUT, so a stalled transfer is cut by closing the channel
+    static ScheduledFuture<?> watch(SocketChannel channel, AtomicLong progress, long stallTimeoutMs) {
+        long[] last = {-1};
+        return WATCHDOG.scheduleWithFixedDelay(() -> {
+            long now = progress.get();
+            if (now == last[0]) {
+                System.err.println("❌ File transfer stalled at " + now + " bytes, closing");
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+            last[0] = now;
+        }, stallTimeoutMs, stallTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    static void readFully(SocketChannel channel, ByteBuffer buffer, AtomicLong progress) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer);
+            if (read < 0) {
+                throw new IOException("connection closed mid-chunk");
+            }
+            progress.addAndGet(read);
+        }
+    }
+
+    static void writeLine(SocketChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // One byte at a time so nothing after the newline (file data) is consumed
+    private static String readLine(SocketChannel channel) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        byte[] line = new byte[MAX_LINE_LENGTH];
+        int length = 0;
+        while (true) {
+            one.clear();
+            if (channel.read(one) < 0) {
+                return length > 0 ? new String(line, 0, length, StandardCharsets.UTF_8) : null;
+            }
+            byte b = one.get(0);
+            if (b == '\n') {
+                return new String(line, 0, length, StandardCharsets.UTF_8).trim();
+            }
+            if (length == line.length) {
+                throw new IOException("header line too long");
+            }
+            line[length++] = b;
+        }
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+}
@@ -0,0 +1,169 @@
+package com.p2pchat.net;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One protocol message: a type plus an ordered list of fields.
+ *
+ * Fields are kept in their wire layout ([count:1] then [len:4][bytes] per
+ * field), so encoding never copies field data and decoding only builds the
+ * strings that are actually read. Payloads are binary-safe: a field may hold
+ * ':' or newlines. Legacy clients still get the colon-delimited text form via
+ * toTextLine()/parseTextLine().
+ */
+public final class Frame {
+
+    public enum Type {
+        // code, number of fields in the legacy text form (the last one keeps any ':')
+        IDENTIFY(1, 3),
+        REGISTERED(2, 2),
+        REGISTER(3, 1),
+        SEND(4, 2),
+        MESSAGE(5, 2),
+        DELIVERED(6, 1),
+        QUEUED(7, 1),
+        GET_ONLINE_USERS(8, 0),
+        ONLINE_USERS(9, 1),
+        PING(10, 0),
+        PONG(11, 0),
+        SEND_FILE(12, 2),
+        FILE(13, 2),
+        PRESENCE_JOIN(14, 2),
+        PRESENCE_LEAVE(15, 2),
+        GET_PRESENCE(16, 0),
+        PRESENCE_SNAPSHOT(17, 2),
+        CONTACT_ADDED(18, 1),
+        OFFLINE_SYNC(20, 1),
+        OFFLINE_ACK(21, 1),
+        POST(22, 3),
+        SERVER_ACK(23, 2),
+        DELIVER(24, 3),
+        RECEIPT(25, 3),
+        GET_PEER(26, 1),
+        // phone, peer port (0 when offline), host last since IPv6 addresses contain ':'
+        PEER(27, 3);
+
+        private static final Type[] BY_CODE = new Type[256];
+        private static final Map<String, Type> BY_NAME = new HashMap<>();
+
+        static {
+            for (Type type : values()) {
+                BY_CODE[type.code & 0xff] = type;
+                BY_NAME.put(type.name(), type);
+            }
+        }
+
+        private final byte code;
+        private final int textFields;
+
+        Type(int code, int textFields) {
+            this.code = (byte) code;
+            this.textFields = textFields;
+        }
+
+        public byte getCode() { return code; }
+
+        public static Type fromCode(byte code) {
+            return BY_CODE[code & 0xff];
+        }
+
+        public static Type fromName(String name) {
+            return BY_NAME.get(name);
+        }
+    }
+
+    private final Type type;
+    private final byte[] payload;
+    private final int[] starts;
+    private final int[] lengths;
+
+    Frame(Type type, byte[] payload, int[] starts, int[] lengths) {
+        this.type = type;
+        this.payload = payload;
+        this.starts = starts;
+        this.lengths = lengths;
+    }
+
+    public static Frame of(Type type, String... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        int size = 1;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i] != null ? fields[i].getBytes(StandardCharsets.UTF_8) : new byte[0];
+            size += 4 + encoded[i].length;
+        }
+
+        byte[] payload = new byte[size];
+        int[] starts = new int[fields.length];
+        int[] lengths = new int[fields.length];
+        payload[0] = (byte) fields.length;
+        int pos = 1;
+        for (int i = 0; i < encoded.length; i++) {
+            int len = encoded[i].length;
+            payload[pos] = (byte) (len >>> 24);
+            payload[pos + 1] = (byte) (len >>> 16);
+            payload[pos + 2] = (byte) (len >>> 8);
+            payload[pos + 3] = (byte) len;
+            pos += 4;
+            System.arraycopy(encoded[i], 0, payload, pos, len);
+            starts[i] = pos;
+            lengths[i] = len;
+            pos += len;
+        }
+        return new Frame(type, payload, starts, lengths);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getFieldCount() {
+        return starts.length;
+    }
+
+    public String getString(int index) {
+        return new String(payload, starts[index], lengths[index], StandardCharsets.UTF_8);
+    }
+
+    public String getString(int index, String defaultValue) {
+        return index < starts.length ? getString(index) : defaultValue;
+    }
+
+    public byte[] getBytes(int index) {
+        byte[] copy = new byte[lengths[index]];
+        System.arraycopy(payload, starts[index], copy, 0, lengths[index]);
+        return copy;
+    }
+
+    byte[] getPayload() {
+        return payload;
+    }
+
+    // Legacy colon-delimited form, e.g. "SEND:9876543210:hello"
+    public String toTextLine() {
+        StringBuilder line = new StringBuilder(type.name());
+        for (int i = 0; i < starts.length; i++) {
+            line.append(':').append(getString(i));
+        }
+        return line.toString();
+    }
+
+    // Parses a legacy text line; returns null for unknown commands
+    public static Frame parseTextLine(String line) {
+        int colon = line.indexOf(':');
+        Type type = Type.fromName(colon >= 0 ? line.substring(0, colon) : line.trim());
+        if (type == null) {
+            return null;
+        }
+        if (colon < 0 || type.textFields == 0) {
+            return of(type);
+        }
+        return of(type, line.substring(colon + 1).split(":", type.textFields));
+    }
+
+    @Override
+    public String toString() {
+        return toTextLine();
+    }
+}
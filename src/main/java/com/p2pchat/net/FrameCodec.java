@@ -0,0 +1,158 @@
+package com.p2pchat.net;
+
+import com.p2pchat.util.Constants;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary framing shared by the server (com.p2pchat.server) and the client
+ * (ConnectionManager).
+ *
+ * Wire format, version 1:
+ *   [type:1][payloadLength:4][fieldCount:1] then per field [length:4][bytes]
+ *
+ * Both sides start in the legacy text protocol. A client that understands
+ * frames appends VERSION_TOKEN to IDENTIFY; a server that agrees answers
+ * "REGISTERED:<id>:BIN1" as a text line and both ends switch to frames.
+ */
+public final class FrameCodec {
+    public static final int VERSION = 1;
+    public static final String VERSION_TOKEN = "BIN" + VERSION;
+    public static final int HEADER_SIZE = 5;
+
+    private FrameCodec() {
+        // Utility class
+    }
+
+    public static void write(OutputStream out, Frame frame) throws IOException {
+        byte[] payload = frame.getPayload();
+        int len = payload.length;
+        out.write(frame.getType().getCode());
+        out.write(len >>> 24);
+        out.write(len >>> 16);
+        out.write(len >>> 8);
+        out.write(len);
+        out.write(payload);
+    }
+
+    public static ByteBuffer encode(Frame frame) {
+        byte[] payload = frame.getPayload();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buffer.put(frame.getType().getCode());
+        buffer.putInt(payload.length);
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    // Blocking read of one frame; returns null on a clean end of stream
+    public static Frame read(DataInputStream in) throws IOException {
+        int typeCode = in.read();
+        if (typeCode < 0) {
+            return null;
+        }
+        int length = in.readInt();
+        checkLength(length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return parse((byte) typeCode, payload);
+    }
+
+    /**
+     * Decodes one frame from a buffer in read mode, advancing its position.
+     * Returns null, leaving the position untouched, when the frame is not
+     * complete yet.
+     */
+    public static Frame decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int start = buffer.position();
+        byte typeCode = buffer.get(start);
+        int length = buffer.getInt(start + 1);
+        checkLength(length);
+        if (buffer.remaining() < HEADER_SIZE + length) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        buffer.position(start + HEADER_SIZE);
+        buffer.get(payload);
+        return parse(typeCode, payload);
+    }
+
+    // Size of the frame starting at the buffer position, or -1 if the header is incomplete
+    public static int peekFrameSize(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return -1;
+        }
+        return HEADER_SIZE + buffer.getInt(buffer.position() + 1);
+    }
+
+    // Reads a '\n'-terminated UTF-8 line from a byte stream without read-ahead,
+    // so the same stream can switch to frames right after the handshake line
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            if (line.size() >= Constants.MAX_MESSAGE_SIZE) {
+                throw new IOException("Line exceeds " + Constants.MAX_MESSAGE_SIZE + " bytes");
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        byte[] bytes = line.toByteArray();
+        int len = bytes.length;
+        if (len > 0 && bytes[len - 1] == '\r') {
+            len--;
+        }
+        return new String(bytes, 0, len, StandardCharsets.UTF_8);
+    }
+
+    public static void writeLine(OutputStream out, String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    public static boolean offersBinary(Frame identify) {
+        return VERSION_TOKEN.equals(identify.getString(2, null));
+    }
+
+    private static void checkLength(int length) throws IOException {
+        if (length < 1 || length > Constants.MAX_MESSAGE_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+
+    private static Frame parse(byte typeCode, byte[] payload) throws IOException {
+        Frame.Type type = Frame.Type.fromCode(typeCode);
+        if (type == null) {
+            throw new IOException("Unknown frame type: " + (typeCode & 0xff));
+        }
+
+        int count = payload[0] & 0xff;
+        int[] starts = new int[count];
+        int[] lengths = new int[count];
+        int pos = 1;
+        for (int i = 0; i < count; i++) {
+            if (pos + 4 > payload.length) {
+                throw new IOException("Truncated frame field " + i);
+            }
+            int len = ((payload[pos] & 0xff) << 24) | ((payload[pos + 1] & 0xff) << 16)
+                    | ((payload[pos + 2] & 0xff) << 8) | (payload[pos + 3] & 0xff);
+            pos += 4;
+            if (len < 0 || pos + len > payload.length) {
+                throw new IOException("Truncated frame field " + i);
+            }
+            starts[i] = pos;
+            lengths[i] = len;
+            pos += len;
+        }
+        return new Frame(type, payload, starts, lengths);
+    }
+}
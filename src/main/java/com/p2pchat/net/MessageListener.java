@@ -0,0 +1,21 @@
+package com.p2pchat.net;
+
+/**
+ * Receives message traffic from ConnectionManager. Callbacks run on the
+ * connection's listener thread (or its retransmit timer for onSendFailed), so
+ * implementations should not block for long.
+ */
+public interface MessageListener {
+
+    // A new message; messageId is null for legacy senders without ids
+    void onMessage(String messageId, String fromPhone, String content);
+
+    // The server took responsibility for the message: forwarded live or stored offline
+    void onServerAck(String messageId, boolean queued);
+
+    // The recipient reported DELIVERED or READ
+    void onReceipt(String messageId, String recipientPhone, String status);
+
+    // No server ack after every retransmit attempt
+    void onSendFailed(String messageId);
+}
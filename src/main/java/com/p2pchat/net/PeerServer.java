@@ -1,11 +1,12 @@
 package com.p2pchat.net;
 
 import com.p2pchat.core.MessageManager;
+import com.p2pchat.util.Config;
+import com.p2pchat.util.ThreadPools;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class PeerServer {
     private final int port;
@@ -15,9 +16,14 @@ public class PeerServer {
     private boolean running;
     
     public PeerServer(int port, MessageManager messageManager) {
+        this(port, messageManager, new Config().getPeerExecutor());
+    }
+    
+    // executorMode is "cached" (platform threads) or "virtual" (one virtual thread per peer)
+    public PeerServer(int port, MessageManager messageManager, String executorMode) {
         this.port = port;
         this.messageManager = messageManager;
-        this.executorService = Executors.newCachedThreadPool();
+        this.executorService = ThreadPools.newConnectionExecutor(executorMode);
     }
     
     public void start() {
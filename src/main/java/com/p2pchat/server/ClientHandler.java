@@ -1,31 +1,75 @@
 package com.p2pchat.server;
 
+import com.p2pchat.net.Frame;
+import com.p2pchat.net.FrameCodec;
 import java.io.*;
 import java.net.*;
-import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, ClientSession {
+    public static final String POLICY_DISCONNECT = "disconnect";
+    public static final String POLICY_REJECT = "reject";
+    private static final int MAX_FRAMES_PER_FLUSH = 64;
+    
     private Socket socket;
-    private BufferedReader input;
-    private PrintWriter output;
-    private String userPhone;
+    private DataInputStream input;
+    private OutputStream output;
+    private volatile String userPhone;
+    private volatile int peerPort = 0;
+    // Reader side: flipped by upgradeToBinary, before the client's first binary frame is read
+    private volatile boolean binaryInput = false;
+    // Writer side: flipped by the drain task once the text reply to IDENTIFY is written
+    private volatile boolean binaryOutput = false;
+    
+    // Outbound frames are queued by any thread and written by a single drain task on
+    // the writer executor, so a slow recipient never blocks the sender's thread and
+    // several frames share one flush. The queue capacity is the high-water mark.
+    private final BlockingQueue<Frame> outbound;
+    private final Executor writerExecutor;
+    private final String slowConsumerPolicy;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    // Frame after which the drain task switches encoding to binary (IDENTIFY reply)
+    private volatile Frame binarySwitchFrame;
+    // Held only by the drain task. ReentrantLock rather than synchronized so a virtual
+    // thread blocked on a slow socket unmounts instead of pinning its carrier thread.
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile boolean closed = false;
     
-    public ClientHandler(Socket socket) {
+    public ClientHandler(Socket socket, Executor writerExecutor, int outboundLimit, String slowConsumerPolicy) {
         this.socket = socket;
+        this.writerExecutor = writerExecutor;
+        this.outbound = new LinkedBlockingQueue<>(Math.max(1, outboundLimit));
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        try {
+            this.output = new BufferedOutputStream(socket.getOutputStream());
+        } catch (IOException e) {
+            System.err.println("❌ Client handler error: " + e.getMessage());
+        }
     }
     
     @Override
     public void run() {
         try {
-            input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            output = new PrintWriter(socket.getOutputStream(), true);
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
             
             System.out.println("👂 Listening for messages from client...");
             
-            String message;
-            while ((message = input.readLine()) != null) {
-                System.out.println("📩 Received from " + (userPhone != null ? userPhone : "unknown") + ": " + message);
-                handleMessage(message);
+            while (true) {
+                if (binaryInput) {
+                    Frame frame = FrameCodec.read(input);
+                    if (frame == null) break;
+                    System.out.println("📩 Received from " + (userPhone != null ? userPhone : "unknown") + ": " + frame);
+                    ServerProtocol.handleFrame(this, frame);
+                } else {
+                    String message = FrameCodec.readLine(input);
+                    if (message == null) break;
+                    System.out.println("📩 Received from " + (userPhone != null ? userPhone : "unknown") + ": " + message);
+                    ServerProtocol.handleLine(this, message);
+                }
             }
             
         } catch (IOException e) {
@@ -35,55 +79,134 @@ public class ClientHandler implements Runnable {
         }
     }
     
-    private void handleMessage(String message) {
-        try {
-            if (message.startsWith("IDENTIFY:")) {
-                // Match the protocol from ServerApp's inner class
-                String[] parts = message.split(":");
-                if (parts.length >= 2) {
-                    userPhone = parts[1];
-                    ServerApp.registerUser(userPhone, this);
-                    sendMessage("REGISTERED:" + userPhone);
-                    System.out.println("✅ User registered: " + userPhone);
-                }
-            } else if (message.startsWith("SEND:")) {
-                if (userPhone != null) {
-                    String[] parts = message.split(":", 3);
-                    if (parts.length >= 3) {
-                        String toPhone = parts[1];
-                        String content = parts[2];
-                        boolean delivered = ServerApp.sendMessageToUser(userPhone, toPhone, content);
-                        if (delivered) {
-                            sendMessage("DELIVERED:" + toPhone);
-                        } else {
-                            sendMessage("QUEUED:" + toPhone);
-                        }
+    @Override
+    public String getUserPhone() {
+        return userPhone;
+    }
+    
+    @Override
+    public void setUserPhone(String userPhone) {
+        this.userPhone = userPhone;
+    }
+    
+    @Override
+    public String getRemoteHost() {
+        return socket.getInetAddress().getHostAddress();
+    }
+    
+    @Override
+    public int getPeerPort() {
+        return peerPort;
+    }
+    
+    @Override
+    public void setPeerPort(int peerPort) {
+        this.peerPort = peerPort;
+    }
+    
+    @Override
+    public boolean send(Frame frame) {
+        if (output == null || closed) {
+            return false;
+        }
+        if (!outbound.offer(frame)) {
+            return onHighWaterMark();
+        }
+        scheduleDrain();
+        return true;
+    }
+    
+    @Override
+    public void upgradeToBinary(Frame reply) {
+        // Called on the reader thread from handleFrame: the next read must already be binary
+        binaryInput = true;
+        binarySwitchFrame = reply;
+        if (!outbound.offer(reply)) {
+            onHighWaterMark();
+            return;
+        }
+        scheduleDrain();
+    }
+    
+    public int getQueuedFrameCount() {
+        return outbound.size();
+    }
+    
+    private boolean onHighWaterMark() {
+        if (POLICY_REJECT.equalsIgnoreCase(slowConsumerPolicy)) {
+            System.out.println("⚠️  Outbound queue full for " + userPhone + ", rejecting frame");
+            return false;
+        }
+        System.out.println("⚠️  Slow consumer " + userPhone + " (" + outbound.size() + " frames queued), disconnecting");
+        closeSocket();
+        return false;
+    }
+    
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            try {
+                writerExecutor.execute(this::drain);
+            } catch (RuntimeException e) {
+                drainScheduled.set(false);
+                System.err.println("❌ Failed to schedule writer for " + userPhone + ": " + e.getMessage());
+            }
+        }
+    }
+    
+    private void drain() {
+        while (true) {
+            writeLock.lock();
+            try {
+                Frame frame;
+                int written = 0;
+                while (written < MAX_FRAMES_PER_FLUSH && (frame = outbound.poll()) != null) {
+                    if (binaryOutput) {
+                        FrameCodec.write(output, frame);
+                    } else {
+                        FrameCodec.writeLine(output, frame.toTextLine());
+                    }
+                    if (frame == binarySwitchFrame) {
+                        binaryOutput = true;
+                        binarySwitchFrame = null;
+                        System.out.println("📤 Sent to " + userPhone + ": " + frame + " (binary protocol v" + FrameCodec.VERSION + ")");
+                    } else {
+                        System.out.println("📤 Sent to " + userPhone + ": " + frame);
                     }
+                    written++;
                 }
-            } else if (message.startsWith("GET_ONLINE_USERS")) {
-                List<String> onlineUsers = ServerApp.getOnlineUsers();
-                sendMessage("ONLINE_USERS:" + String.join(",", onlineUsers));
-            } else if (message.startsWith("PING")) {
-                sendMessage("PONG");
-            } else {
-                System.out.println("❌ Unknown command from " + userPhone + ": " + message);
+                output.flush();
+            } catch (IOException e) {
+                System.err.println("❌ Failed to send to " + userPhone + ": " + e.getMessage());
+                outbound.clear();
+                closeSocket();
+            } finally {
+                writeLock.unlock();
+            }
+            
+            if (!outbound.isEmpty()) {
+                continue;
+            }
+            drainScheduled.set(false);
+            // A frame queued between the last poll and the flag reset must not be stranded
+            if (outbound.isEmpty() || !drainScheduled.compareAndSet(false, true)) {
+                return;
             }
-        } catch (Exception e) {
-            System.err.println("❌ Error handling message from " + userPhone + ": " + e.getMessage());
-            e.printStackTrace();
         }
     }
     
-    public void sendMessage(String message) {
-        if (output != null) {
-            output.println(message);
-            System.out.println("📤 Sent to " + userPhone + ": " + message);
+    private void closeSocket() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Reader thread notices the closed socket and unregisters the user
         }
     }
     
     private void disconnect() {
+        closed = true;
         if (userPhone != null) {
-            ServerApp.unregisterUser(userPhone);
+            ServerApp.unregisterUser(userPhone, this);
         }
         try {
             if (input != null) input.close();
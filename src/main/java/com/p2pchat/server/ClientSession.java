@@ -0,0 +1,29 @@
+package com.p2pchat.server;
+
+import com.p2pchat.net.Frame;
+
+/**
+ * A connected client as seen by ServerApp, independent of whether it is
+ * served by a blocking ClientHandler thread or by the NIO event loop.
+ */
+public interface ClientSession {
+    
+    String getUserPhone();
+    
+    void setUserPhone(String userPhone);
+    
+    // Encoded as a text line or a binary frame, whichever the client negotiated.
+    // Returns false when the frame was not accepted (slow consumer or closed session).
+    boolean send(Frame frame);
+    
+    // Sends the IDENTIFY reply as a text line, then switches both directions to binary frames
+    void upgradeToBinary(Frame reply);
+    
+    // Where other clients reach this one directly: its address as the server sees it,
+    // plus the peer port it announced in IDENTIFY (0 if it did not)
+    String getRemoteHost();
+    
+    int getPeerPort();
+    
+    void setPeerPort(int peerPort);
+}
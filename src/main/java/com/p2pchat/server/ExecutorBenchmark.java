@@ -0,0 +1,128 @@
+package com.p2pchat.server;
+
+import com.p2pchat.util.Config;
+import com.p2pchat.util.ThreadPools;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cached platform-thread pool with virtual threads for the
+ * blocking thread-per-connection server. Connections are accepted the way
+ * ServerApp does it: each gets a real ClientHandler on the executor, which
+ * also runs its writer, and PING goes through ServerProtocol and comes back
+ * as PONG through the handler's outbound queue. Handler logging is
+ * discarded while a round runs so the console does not dominate the timing.
+ *
+ * Usage: java -cp out com.p2pchat.server.ExecutorBenchmark [count ...]
+ * (defaults to 1000 10000 50000). Large counts need a raised open-file limit
+ * (ulimit -n) and enough ephemeral ports; the run reports how far it got.
+ * On Java 21 add -Djdk.tracePinnedThreads=short to have the JVM report any
+ * virtual thread pinned while blocked on the read loop, the drain task, or
+ * the ServerApp/PresenceService/OfflineStore paths behind ServerProtocol.
+ */
+public class ExecutorBenchmark {
+    private static final int[] DEFAULT_COUNTS = {1000, 10000, 50000};
+
+    public static void main(String[] args) throws Exception {
+        int[] counts = DEFAULT_COUNTS;
+        if (args.length > 0) {
+            counts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                counts[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("Java " + System.getProperty("java.version") +
+                           ", virtual threads supported: " + ThreadPools.isVirtualThreadSupported());
+        System.out.printf("%-8s %8s %10s %12s %12s %10s %10s%n",
+                          "mode", "conns", "opened", "connect ms", "round ms", "threads", "heap MB");
+
+        for (int count : counts) {
+            for (String mode : new String[]{ThreadPools.MODE_CACHED, ThreadPools.MODE_VIRTUAL}) {
+                run(mode, count);
+                System.gc();
+                Thread.sleep(500);
+            }
+        }
+    }
+
+    private static void run(String mode, int count) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        ExecutorService executor = ThreadPools.newConnectionExecutor(mode);
+        Config config = new Config();
+        List<Socket> clients = new ArrayList<>(count);
+        PrintStream console = System.out;
+
+        try (ServerSocket server = new ServerSocket(0, 4096, InetAddress.getLoopbackAddress())) {
+            Thread acceptor = new Thread(() -> acceptLoop(server, executor, config), "benchmark-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            long connectStart = System.nanoTime();
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            try {
+                for (int i = 0; i < count; i++) {
+                    clients.add(new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+                }
+            } catch (IOException e) {
+                console.println("⚠️  " + mode + ": stopped at " + clients.size() + " connections: " + e.getMessage());
+            }
+            long connectMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart);
+
+            // One PING per connection, then collect every PONG: exercises all handlers at once
+            long roundStart = System.nanoTime();
+            for (Socket client : clients) {
+                OutputStream out = client.getOutputStream();
+                out.write("PING\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+            for (Socket client : clients) {
+                client.setSoTimeout(30000);
+                InputStream in = client.getInputStream();
+                int b;
+                while ((b = in.read()) != '\n') {
+                    // consume "PONG\n"; a dropped or rejected client would otherwise spin here
+                    if (b < 0) {
+                        throw new EOFException("server closed connection");
+                    }
+                }
+            }
+            long roundMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - roundStart);
+
+            Runtime runtime = Runtime.getRuntime();
+            long heapMb = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+            console.printf("%-8s %8d %10d %12d %12d %10d %10d%n",
+                              mode, count, clients.size(), connectMs, roundMs, threads.getThreadCount(), heapMb);
+        } finally {
+            for (Socket client : clients) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // Ignore close errors
+                }
+            }
+            executor.shutdownNow();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+            System.setOut(console);
+        }
+    }
+
+    private static void acceptLoop(ServerSocket server, ExecutorService executor, Config config) {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                executor.execute(new ClientHandler(socket, executor,
+                        config.getServerOutboundQueueLimit(), config.getServerSlowConsumerPolicy()));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+}
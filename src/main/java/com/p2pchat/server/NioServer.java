@@ -0,0 +1,432 @@
+package com.p2pchat.server;
+
+import com.p2pchat.net.Frame;
+import com.p2pchat.net.FrameCodec;
+import com.p2pchat.util.Constants;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Non-blocking server mode: one acceptor thread plus a small fixed set of
+ * selector event loops. An idle client costs a selection key and its read
+ * buffer instead of a parked platform thread.
+ */
+public class NioServer {
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int WRITE_BATCH = 16;
+
+    private final int port;
+    private final int bufferSize;
+    private final int outboundLimit;
+    private final String slowConsumerPolicy;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = false;
+
+    public NioServer(int port, int eventLoopThreads, int bufferSize, int outboundLimit, String slowConsumerPolicy) {
+        this.port = port;
+        this.bufferSize = Math.max(256, bufferSize);
+        this.outboundLimit = Math.max(1, outboundLimit);
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        this.loops = new EventLoop[Math.max(1, eventLoopThreads)];
+    }
+
+    // Runs the accept loop on the calling thread until stop() is called
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        running = true;
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread loopThread = new Thread(loops[i], "nio-event-loop-" + i);
+            loopThread.setDaemon(true);
+            loops[i].thread = loopThread;
+            loopThread.start();
+        }
+
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                break;
+            }
+
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(channel);
+            } catch (IOException e) {
+                System.err.println("❌ Failed to accept client: " + e.getMessage());
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+        closeQuietly(serverChannel);
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    public int getConnectionCount() {
+        int total = 0;
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                total += loop.connections.get();
+            }
+        }
+        return total;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            // Ignore close errors
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger connections = new AtomicInteger();
+        // Scratch array for gathering writes, only touched by the loop thread
+        private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH];
+        private Thread thread;
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new NioClientSession(channel, key, this));
+                    connections.incrementAndGet();
+                } catch (IOException e) {
+                    System.err.println("❌ Failed to register client: " + e.getMessage());
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioClientSession session = (NioClientSession) key.attachment();
+                        if (session == null || !key.isValid()) {
+                            continue;
+                        }
+
+                        try {
+                            if (key.isReadable()) {
+                                session.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                session.onWritable();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            session.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("❌ Event loop error: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof NioClientSession) {
+                        ((NioClientSession) key.attachment()).close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Ignore close errors
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private final class NioClientSession implements ClientSession {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final EventLoop loop;
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queuedFrames = new AtomicInteger();
+        private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+        // Keeps encoding and enqueueing in one order across threads, so no text line
+        // can slip in behind the handshake reply once the session switches to frames
+        private final ReentrantLock sendLock = new ReentrantLock();
+        private ByteBuffer readBuffer;
+        private volatile String userPhone;
+        private volatile int peerPort = 0;
+        private volatile boolean binary = false;
+        private boolean closed = false;
+
+        NioClientSession(SocketChannel channel, SelectionKey key, EventLoop loop) {
+            this.channel = channel;
+            this.key = key;
+            this.loop = loop;
+            this.readBuffer = ByteBuffer.allocate(bufferSize);
+        }
+
+        void onReadable() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+
+            readBuffer.flip();
+            // The IDENTIFY handshake can switch modes mid-buffer, so re-check per message
+            while (!closed && readBuffer.hasRemaining()) {
+                boolean handled = binary ? readFrame() : readLine();
+                if (!handled) {
+                    break;
+                }
+            }
+            if (closed) {
+                return;
+            }
+            readBuffer.compact();
+
+            // A full buffer holding one partial message: grow up to the protocol's cap
+            if (!readBuffer.hasRemaining()) {
+                int needed = readBuffer.capacity() * 2;
+                int cap = binary ? Constants.MAX_MESSAGE_SIZE + FrameCodec.HEADER_SIZE : MAX_LINE_LENGTH;
+                if (binary) {
+                    readBuffer.flip();
+                    needed = Math.max(needed, FrameCodec.peekFrameSize(readBuffer));
+                    readBuffer.compact();
+                }
+                if (readBuffer.capacity() >= cap) {
+                    System.err.println("❌ Message too long from " + userPhone + ", closing connection");
+                    close();
+                    return;
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(cap, needed));
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        }
+
+        private boolean readFrame() throws IOException {
+            Frame frame = FrameCodec.decode(readBuffer);
+            if (frame == null) {
+                return false;
+            }
+            System.out.println("📩 Received from " + (userPhone != null ? userPhone : "unknown") + ": " + frame);
+            ServerProtocol.handleFrame(this, frame);
+            return true;
+        }
+
+        private boolean readLine() {
+            byte[] data = readBuffer.array();
+            int lineStart = readBuffer.position();
+            int limit = readBuffer.limit();
+            for (int i = lineStart; i < limit; i++) {
+                if (data[i] == '\n') {
+                    int lineEnd = (i > lineStart && data[i - 1] == '\r') ? i - 1 : i;
+                    String message = new String(data, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+                    readBuffer.position(i + 1);
+
+                    System.out.println("📩 Received from " + (userPhone != null ? userPhone : "unknown") + ": " + message);
+                    ServerProtocol.handleLine(this, message);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void onWritable() throws IOException {
+            ByteBuffer[] batch = loop.writeBatch;
+            while (true) {
+                int count = 0;
+                for (ByteBuffer buffer : writeQueue) {
+                    batch[count++] = buffer;
+                    if (count == batch.length) break;
+                }
+                if (count == 0) break;
+
+                channel.write(batch, 0, count);
+
+                int written = 0;
+                while (written < count && !batch[written].hasRemaining()) {
+                    writeQueue.poll();
+                    queuedFrames.decrementAndGet();
+                    written++;
+                }
+                Arrays.fill(batch, 0, count, null);
+
+                if (written < count) {
+                    // Socket send buffer is full; keep OP_WRITE and resume later
+                    return;
+                }
+            }
+
+            writeScheduled.set(false);
+            key.interestOps(SelectionKey.OP_READ);
+            if (!writeQueue.isEmpty()) {
+                scheduleWrite();
+            }
+        }
+
+        private void scheduleWrite() {
+            if (!writeScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            if (loop.inLoop()) {
+                enableWriteInterest();
+            } else {
+                loop.execute(this::enableWriteInterest);
+            }
+        }
+
+        private void enableWriteInterest() {
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        @Override
+        public String getUserPhone() {
+            return userPhone;
+        }
+
+        @Override
+        public void setUserPhone(String userPhone) {
+            this.userPhone = userPhone;
+        }
+
+        @Override
+        public String getRemoteHost() {
+            return channel.socket().getInetAddress().getHostAddress();
+        }
+
+        @Override
+        public int getPeerPort() {
+            return peerPort;
+        }
+
+        @Override
+        public void setPeerPort(int peerPort) {
+            this.peerPort = peerPort;
+        }
+
+        @Override
+        public boolean send(Frame frame) {
+            if (!channel.isOpen()) {
+                return false;
+            }
+            if (queuedFrames.get() >= outboundLimit) {
+                return onHighWaterMark();
+            }
+            sendLock.lock();
+            try {
+                writeQueue.add(binary ? FrameCodec.encode(frame) : encodeLine(frame));
+                queuedFrames.incrementAndGet();
+            } finally {
+                sendLock.unlock();
+            }
+            scheduleWrite();
+            System.out.println("📤 Sent to " + userPhone + ": " + frame);
+            return true;
+        }
+
+        private boolean onHighWaterMark() {
+            if (ClientHandler.POLICY_REJECT.equalsIgnoreCase(slowConsumerPolicy)) {
+                System.out.println("⚠️  Outbound queue full for " + userPhone + ", rejecting frame");
+                return false;
+            }
+            System.out.println("⚠️  Slow consumer " + userPhone + " (" + queuedFrames.get() + " frames queued), disconnecting");
+            if (loop.inLoop()) {
+                close();
+            } else {
+                loop.execute(this::close);
+            }
+            return false;
+        }
+
+        @Override
+        public void upgradeToBinary(Frame reply) {
+            sendLock.lock();
+            try {
+                writeQueue.add(encodeLine(reply));
+                queuedFrames.incrementAndGet();
+                binary = true;
+            } finally {
+                sendLock.unlock();
+            }
+            scheduleWrite();
+            System.out.println("📤 Sent to " + userPhone + ": " + reply + " (binary protocol v" + FrameCodec.VERSION + ")");
+        }
+
+        private ByteBuffer encodeLine(Frame frame) {
+            return ByteBuffer.wrap((frame.toTextLine() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            closeQuietly(channel);
+            writeQueue.clear();
+            loop.connections.decrementAndGet();
+
+            if (userPhone != null) {
+                ServerApp.unregisterUser(userPhone, this);
+            }
+            System.out.println("🔌 Client disconnected: " + userPhone);
+        }
+    }
+}
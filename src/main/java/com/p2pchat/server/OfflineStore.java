@@ -0,0 +1,510 @@
+package com.p2pchat.server;
+
+import com.p2pchat.net.Frame;
+import com.p2pchat.net.FrameCodec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Durable queue for messages whose recipient is offline (or already has a
+ * backlog, so live messages cannot overtake queued ones).
+ *
+ * Every recipient gets a directory with an append-only segmented log:
+ *   <base>/<phone>/<firstOffset>.log  records [length:4][crc32c:4][encoded frame]
+ *   <base>/<phone>/<firstOffset>.idx  one 8-byte file position per record
+ *   <base>/<phone>/ack                last offset the client acknowledged
+ *
+ * Stored frames are MESSAGE/DELIVER messages and RECEIPTs for the recipient.
+ * When the recipient registers they are replayed as-is in batches, each
+ * followed by OFFLINE_SYNC with its last offset; the next batch goes out once
+ * the client answers OFFLINE_ACK. Fully acknowledged segments are deleted, and the whole
+ * directory disappears once the backlog is drained. Appends reach the OS right
+ * away and are forced to disk every syncIntervalMs.
+ */
+public class OfflineStore {
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String ACK_FILE = "ack";
+    private static final int RECORD_HEADER = 8;
+
+    private final Path baseDir;
+    private final long segmentBytes;
+    private final int batchSize;
+    private final Map<String, RecipientLog> logs = new ConcurrentHashMap<>();
+    // Directory names of backlogs found on disk at startup and not yet drained,
+    // so hasPending() never touches the file system on the send path
+    private final Set<String> backlogDirs = ConcurrentHashMap.newKeySet();
+    private final ExecutorService deliveryExecutor;
+    private final ScheduledExecutorService syncer;
+
+    public OfflineStore(Path baseDir, long segmentBytes, int batchSize, long syncIntervalMs) {
+        this.baseDir = baseDir;
+        this.segmentBytes = Math.max(4096, segmentBytes);
+        this.batchSize = Math.max(1, batchSize);
+        this.deliveryExecutor = Executors.newFixedThreadPool(2, r -> {
+            Thread thread = new Thread(r, "offline-delivery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "offline-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(10, syncIntervalMs);
+        syncer.scheduleWithFixedDelay(this::syncAll, interval, interval, TimeUnit.MILLISECONDS);
+        if (Files.isDirectory(baseDir)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(baseDir, Files::isDirectory)) {
+                for (Path dir : stream) {
+                    backlogDirs.add(dir.getFileName().toString());
+                }
+            } catch (IOException e) {
+                System.err.println("❌ Failed to list offline backlogs: " + e.getMessage());
+            }
+        }
+    }
+
+    public void append(String toPhone, Frame message) throws IOException {
+        while (true) {
+            RecipientLog log = logs.computeIfAbsent(toPhone, this::createLog);
+            if (log.append(message)) {
+                return;
+            }
+            // The log was drained and deleted concurrently; start a fresh one
+        }
+    }
+
+    // True while older messages for this recipient are still waiting for an ack
+    public boolean hasPending(String phoneNumber) {
+        return logs.containsKey(phoneNumber) || backlogDirs.contains(dirName(phoneNumber));
+    }
+
+    // Starts delivering the recipient's backlog, if any, to the given session
+    public void attach(String phoneNumber, ClientSession session) {
+        deliveryExecutor.execute(() -> {
+            RecipientLog log = openExisting(phoneNumber);
+            if (log != null) {
+                log.attach(session);
+            }
+        });
+    }
+
+    public void detach(String phoneNumber, ClientSession session) {
+        RecipientLog log = logs.get(phoneNumber);
+        if (log != null) {
+            log.detach(session);
+        }
+    }
+
+    public void acknowledge(String phoneNumber, long offset) {
+        deliveryExecutor.execute(() -> {
+            RecipientLog log = logs.get(phoneNumber);
+            if (log != null) {
+                log.acknowledge(offset);
+            }
+        });
+    }
+
+    public int getRecipientCount() {
+        return logs.size();
+    }
+
+    public void shutdown() {
+        syncer.shutdownNow();
+        deliveryExecutor.shutdownNow();
+        for (RecipientLog log : logs.values()) {
+            log.closeChannels(true);
+        }
+    }
+
+    private RecipientLog createLog(String phoneNumber) {
+        try {
+            return new RecipientLog(phoneNumber, recipientDir(phoneNumber));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open offline log for " + phoneNumber + ": " + e.getMessage(), e);
+        }
+    }
+
+    private RecipientLog openExisting(String phoneNumber) {
+        RecipientLog log = logs.get(phoneNumber);
+        if (log != null || !backlogDirs.contains(dirName(phoneNumber))) {
+            return log;
+        }
+        try {
+            return logs.computeIfAbsent(phoneNumber, this::createLog);
+        } catch (IllegalStateException e) {
+            System.err.println("❌ " + e.getMessage());
+            return null;
+        }
+    }
+
+    private Path recipientDir(String phoneNumber) {
+        return baseDir.resolve(dirName(phoneNumber));
+    }
+
+    private static String dirName(String phoneNumber) {
+        return phoneNumber.replaceAll("[^a-zA-Z0-9_+-]", "_");
+    }
+
+    private void syncAll() {
+        for (RecipientLog log : logs.values()) {
+            log.sync();
+        }
+    }
+
+    private final class RecipientLog {
+        private final String phone;
+        private final Path dir;
+        private final ReentrantLock lock = new ReentrantLock();
+        // Base offsets of the segments, oldest first; the last one is being appended to
+        private final List<Long> segments = new ArrayList<>();
+        private FileChannel activeLog;
+        private FileChannel activeIndex;
+        private long activeSize;
+        private long nextOffset;
+        private long ackedOffset;
+        private long sentUpTo;
+        private ClientSession session;
+        private boolean dirty = false;
+        private boolean deleted = false;
+
+        RecipientLog(String phone, Path dir) throws IOException {
+            this.phone = phone;
+            this.dir = dir;
+            Files.createDirectories(dir);
+
+            Path ackFile = dir.resolve(ACK_FILE);
+            ackedOffset = Files.exists(ackFile) ? Long.parseLong(new String(Files.readAllBytes(ackFile)).trim()) : -1;
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + LOG_SUFFIX)) {
+                for (Path file : stream) {
+                    String name = file.getFileName().toString();
+                    segments.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+                }
+            }
+            Collections.sort(segments);
+            if (segments.isEmpty()) {
+                segments.add(ackedOffset + 1);
+            }
+            nextOffset = recoverActiveSegment();
+            sentUpTo = ackedOffset;
+        }
+
+        // Rebuilds the active segment's index from its log, cutting off a torn last record
+        private long recoverActiveSegment() throws IOException {
+            long base = activeBase();
+            List<Long> positions = new ArrayList<>();
+            long validEnd = 0;
+            try (FileChannel log = FileChannel.open(logPath(base), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+                long size = log.size();
+                while (validEnd + RECORD_HEADER <= size) {
+                    header.clear();
+                    readFully(log, header, validEnd);
+                    int length = header.getInt(0);
+                    int crc = header.getInt(4);
+                    if (length <= 0 || validEnd + RECORD_HEADER + length > size) {
+                        break;
+                    }
+                    ByteBuffer body = ByteBuffer.allocate(length);
+                    readFully(log, body, validEnd + RECORD_HEADER);
+                    if (checksum(body.array()) != crc) {
+                        break;
+                    }
+                    positions.add(validEnd);
+                    validEnd += RECORD_HEADER + length;
+                }
+                if (validEnd < size) {
+                    System.out.println("⚠️  Truncating damaged offline log for " + phone + " at byte " + validEnd);
+                    log.truncate(validEnd);
+                }
+            }
+
+            ByteBuffer index = ByteBuffer.allocate(positions.size() * 8);
+            for (long position : positions) {
+                index.putLong(position);
+            }
+            index.flip();
+            try (FileChannel indexChannel = FileChannel.open(indexPath(base), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (index.hasRemaining()) {
+                    indexChannel.write(index);
+                }
+            }
+            activeSize = validEnd;
+            return base + positions.size();
+        }
+
+        boolean append(Frame message) throws IOException {
+            ByteBuffer frame = FrameCodec.encode(message);
+            byte[] body = new byte[frame.remaining()];
+            frame.get(body);
+
+            lock.lock();
+            try {
+                if (deleted) {
+                    return false;
+                }
+                if (activeSize >= segmentBytes) {
+                    roll();
+                }
+                openChannels();
+                ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + body.length);
+                record.putInt(body.length).putInt(checksum(body)).put(body);
+                record.flip();
+                long position = activeSize;
+                while (record.hasRemaining()) {
+                    activeLog.write(record, position + record.position());
+                }
+                ByteBuffer entry = ByteBuffer.allocate(8).putLong(0, position);
+                activeIndex.write(entry, (nextOffset - activeBase()) * 8);
+                activeSize += RECORD_HEADER + body.length;
+                nextOffset++;
+                dirty = true;
+
+                if (session != null && sentUpTo == ackedOffset) {
+                    deliveryExecutor.execute(this::sendNextBatch);
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void attach(ClientSession newSession) {
+            lock.lock();
+            try {
+                session = newSession;
+                // Anything sent to an earlier session but not acked goes out again
+                sentUpTo = ackedOffset;
+            } finally {
+                lock.unlock();
+            }
+            sendNextBatch();
+        }
+
+        void detach(ClientSession oldSession) {
+            lock.lock();
+            try {
+                // A newer session may already be attached
+                if (session != oldSession) {
+                    return;
+                }
+                session = null;
+                sentUpTo = ackedOffset;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void acknowledge(long offset) {
+            lock.lock();
+            try {
+                if (deleted || offset <= ackedOffset || offset > sentUpTo) {
+                    return;
+                }
+                ackedOffset = offset;
+                if (ackedOffset == nextOffset - 1) {
+                    // Fully drained: nothing left worth keeping on disk
+                    deleteAll();
+                    return;
+                }
+                writeAck();
+                trimSegments();
+            } catch (IOException e) {
+                System.err.println("❌ Failed to record offline ack for " + phone + ": " + e.getMessage());
+                return;
+            } finally {
+                lock.unlock();
+            }
+            sendNextBatch();
+        }
+
+        private void sendNextBatch() {
+            lock.lock();
+            try {
+                if (deleted || session == null || sentUpTo != ackedOffset || ackedOffset + 1 >= nextOffset) {
+                    return;
+                }
+                long from = ackedOffset + 1;
+                List<Frame> batch = read(from, batchSize);
+                long last = from - 1;
+                for (Frame message : batch) {
+                    long offset = last + 1;
+                    if (!session.send(message)) {
+                        // Outbound queue is full; the rest waits for the next attach
+                        break;
+                    }
+                    last = offset;
+                }
+                if (last >= from) {
+                    session.send(Frame.of(Frame.Type.OFFLINE_SYNC, Long.toString(last)));
+                    sentUpTo = last;
+                    System.out.println("📬 Sent offline messages " + from + ".." + last + " to " + phone);
+                }
+            } catch (IOException e) {
+                System.err.println("❌ Failed to read offline log for " + phone + ": " + e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private List<Frame> read(long from, int max) throws IOException {
+            List<Frame> frames = new ArrayList<>(max);
+            int segment = segments.size() - 1;
+            while (segment > 0 && segments.get(segment) > from) {
+                segment--;
+            }
+
+            long offset = from;
+            while (frames.size() < max && offset < nextOffset && segment < segments.size()) {
+                long base = segments.get(segment);
+                long end = segment + 1 < segments.size() ? segments.get(segment + 1) : nextOffset;
+                try (FileChannel log = FileChannel.open(logPath(base), StandardOpenOption.READ);
+                     FileChannel index = FileChannel.open(indexPath(base), StandardOpenOption.READ)) {
+                    ByteBuffer entry = ByteBuffer.allocate(8);
+                    readFully(index, entry, (offset - base) * 8);
+                    long position = entry.getLong(0);
+
+                    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+                    while (frames.size() < max && offset < end) {
+                        header.clear();
+                        readFully(log, header, position);
+                        ByteBuffer body = ByteBuffer.allocate(header.getInt(0));
+                        readFully(log, body, position + RECORD_HEADER);
+                        body.flip();
+                        frames.add(FrameCodec.decode(body));
+                        position += RECORD_HEADER + body.capacity();
+                        offset++;
+                    }
+                }
+                segment++;
+            }
+            return frames;
+        }
+
+        private void roll() throws IOException {
+            closeChannels(true);
+            segments.add(nextOffset);
+            activeSize = 0;
+        }
+
+        private void trimSegments() throws IOException {
+            // A segment can go once the next one starts at or before the first unacked offset
+            while (segments.size() > 1 && segments.get(1) <= ackedOffset + 1) {
+                long base = segments.remove(0);
+                Files.deleteIfExists(logPath(base));
+                Files.deleteIfExists(indexPath(base));
+            }
+        }
+
+        private void writeAck() throws IOException {
+            Path temp = dir.resolve(ACK_FILE + ".tmp");
+            Files.write(temp, Long.toString(ackedOffset).getBytes());
+            Files.move(temp, dir.resolve(ACK_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // The files go before the map entry: until it is removed, appends find this
+        // (deleted) log and retry, so no new log can write into the directory being emptied
+        private void deleteAll() throws IOException {
+            closeChannels(false);
+            deleted = true;
+            try {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path file : stream) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+                Files.deleteIfExists(dir);
+            } finally {
+                backlogDirs.remove(dir.getFileName().toString());
+                logs.remove(phone, this);
+            }
+        }
+
+        void sync() {
+            lock.lock();
+            try {
+                if (dirty) {
+                    activeLog.force(false);
+                    activeIndex.force(false);
+                    dirty = false;
+                } else {
+                    // Idle since the last tick: give the file handles back
+                    closeChannels(false);
+                }
+            } catch (IOException e) {
+                System.err.println("❌ Failed to sync offline log for " + phone + ": " + e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void openChannels() throws IOException {
+            if (activeLog == null) {
+                long base = activeBase();
+                activeLog = FileChannel.open(logPath(base), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                activeIndex = FileChannel.open(indexPath(base), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+        }
+
+        void closeChannels(boolean force) {
+            lock.lock();
+            try {
+                if (activeLog != null) {
+                    if (force && dirty) {
+                        activeLog.force(false);
+                        activeIndex.force(false);
+                        dirty = false;
+                    }
+                    activeLog.close();
+                    activeIndex.close();
+                }
+            } catch (IOException e) {
+                System.err.println("❌ Failed to close offline log for " + phone + ": " + e.getMessage());
+            } finally {
+                activeLog = null;
+                activeIndex = null;
+                lock.unlock();
+            }
+        }
+
+        private long activeBase() {
+            return segments.get(segments.size() - 1);
+        }
+
+        private Path logPath(long base) {
+            return dir.resolve(String.format("%020d", base) + LOG_SUFFIX);
+        }
+
+        private Path indexPath(long base) {
+            return dir.resolve(String.format("%020d", base) + INDEX_SUFFIX);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of offline log");
+            }
+        }
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+}
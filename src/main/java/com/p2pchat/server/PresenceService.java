@@ -0,0 +1,282 @@
+package com.p2pchat.server;
+
+import com.p2pchat.net.Frame;
+import com.p2pchat.storage.dao.ContactDAO;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Publishes presence as sequenced deltas instead of re-sending the whole
+ * online list on every register/unregister.
+ *
+ * Changes are collected for a short window and flushed as at most one
+ * PRESENCE_JOIN and one PRESENCE_LEAVE frame ([seq, comma-separated phones])
+ * per subscriber. A user who connects and drops inside one window produces no
+ * delta at all. New sessions get a PRESENCE_SNAPSHOT ([seq, phones]); clients
+ * that see a sequence gap ask for a fresh one with GET_PRESENCE.
+ *
+ * Deltas only go to users who have the changed user in their contacts. The
+ * reverse index (contact -> watching owners) is built lazily from ContactDAO
+ * when an owner subscribes and rebuilt when the owner reports CONTACT_ADDED.
+ * Without a database every subscriber watches everyone, as before.
+ */
+public class PresenceService {
+    private final long windowMs;
+    private final ContactDAO contactDAO;
+    // Single thread: runs flushes and the contact lookups, so DB latency never
+    // lands on a connection or event loop thread
+    private final ScheduledExecutorService scheduler;
+    // Everything below is guarded by lock; frames are enqueued under it so every
+    // session sees its snapshots and deltas in sequence order
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Subscriber> subscribers = new HashMap<>();
+    private final Map<String, Set<Subscriber>> watchers = new HashMap<>();
+    private final Set<Subscriber> watchAll = new HashSet<>();
+    private final Set<String> online = new HashSet<>();
+    private final Set<String> announced = new HashSet<>();
+    private final Set<String> pending = new HashSet<>();
+    private boolean flushScheduled = false;
+
+    private static final class Subscriber {
+        final String phone;
+        final ClientSession session;
+        // null means "watch everyone" (no contact source)
+        Set<String> contacts;
+        long sequence = 0;
+
+        Subscriber(String phone, ClientSession session) {
+            this.phone = phone;
+            this.session = session;
+        }
+
+        boolean watches(String phone) {
+            return contacts == null || contacts.contains(phone);
+        }
+    }
+
+    public PresenceService(long windowMs, ContactDAO contactDAO) {
+        this.windowMs = Math.max(0, windowMs);
+        this.contactDAO = contactDAO;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "presence-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void userOnline(String phoneNumber, ClientSession session) {
+        lock.lock();
+        try {
+            online.add(phoneNumber);
+            markChanged(phoneNumber);
+        } finally {
+            lock.unlock();
+        }
+        scheduler.execute(() -> subscribe(phoneNumber, session));
+    }
+
+    public void userOffline(String phoneNumber) {
+        lock.lock();
+        try {
+            online.remove(phoneNumber);
+            markChanged(phoneNumber);
+        } finally {
+            lock.unlock();
+        }
+        scheduler.execute(() -> unsubscribe(phoneNumber));
+    }
+
+    // The owner added a contact: drop its cached contact list and reload it
+    public void contactsChanged(String ownerPhone) {
+        scheduler.execute(() -> {
+            Set<String> contacts = loadContacts(ownerPhone);
+            lock.lock();
+            try {
+                Subscriber subscriber = subscribers.get(ownerPhone);
+                if (subscriber != null) {
+                    index(subscriber, contacts);
+                    sendSnapshot(subscriber);
+                }
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    public void sendSnapshot(ClientSession session) {
+        lock.lock();
+        try {
+            Subscriber subscriber = subscribers.get(session.getUserPhone());
+            if (subscriber != null && subscriber.session == session) {
+                sendSnapshot(subscriber);
+            }
+            // Otherwise the subscription is still loading and will send its own snapshot
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True only when ownerPhone is online with a loaded contact list that has phone on it
+    public boolean isContact(String ownerPhone, String phone) {
+        lock.lock();
+        try {
+            Subscriber subscriber = subscribers.get(ownerPhone);
+            return subscriber != null && subscriber.contacts != null && subscriber.contacts.contains(phone);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getSubscriberCount() {
+        lock.lock();
+        try {
+            return subscribers.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void markChanged(String phoneNumber) {
+        pending.add(phoneNumber);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            scheduler.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void subscribe(String phoneNumber, ClientSession session) {
+        Set<String> contacts = loadContacts(phoneNumber);
+        lock.lock();
+        try {
+            Subscriber previous = subscribers.remove(phoneNumber);
+            if (previous != null) {
+                index(previous, Collections.emptySet());
+            }
+            Subscriber subscriber = new Subscriber(phoneNumber, session);
+            subscribers.put(phoneNumber, subscriber);
+            index(subscriber, contacts);
+            sendSnapshot(subscriber);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void unsubscribe(String phoneNumber) {
+        lock.lock();
+        try {
+            // A reconnect may already have registered the same phone again
+            if (online.contains(phoneNumber)) {
+                return;
+            }
+            Subscriber subscriber = subscribers.remove(phoneNumber);
+            if (subscriber != null) {
+                index(subscriber, Collections.emptySet());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Set<String> loadContacts(String ownerPhone) {
+        if (contactDAO == null) {
+            return null;
+        }
+        Set<String> contacts = new HashSet<>();
+        for (ContactDAO.Contact contact : contactDAO.findByOwnerPhone(ownerPhone)) {
+            if (contact.getStatus() != ContactDAO.ContactStatus.BLOCKED) {
+                contacts.add(contact.getContactPhone());
+            }
+        }
+        return contacts;
+    }
+
+    // Replaces the subscriber's entries in the reverse index; call with lock held
+    private void index(Subscriber subscriber, Set<String> contacts) {
+        if (subscriber.contacts == null) {
+            watchAll.remove(subscriber);
+        } else {
+            for (String contact : subscriber.contacts) {
+                Set<Subscriber> owners = watchers.get(contact);
+                if (owners != null) {
+                    owners.remove(subscriber);
+                    if (owners.isEmpty()) {
+                        watchers.remove(contact);
+                    }
+                }
+            }
+        }
+
+        subscriber.contacts = contacts;
+        if (contacts == null) {
+            watchAll.add(subscriber);
+        } else {
+            for (String contact : contacts) {
+                watchers.computeIfAbsent(contact, k -> new HashSet<>()).add(subscriber);
+            }
+        }
+    }
+
+    private void sendSnapshot(Subscriber subscriber) {
+        List<String> visible = new ArrayList<>();
+        for (String phone : announced) {
+            if (subscriber.watches(phone)) {
+                visible.add(phone);
+            }
+        }
+        subscriber.session.send(Frame.of(Frame.Type.PRESENCE_SNAPSHOT,
+                Long.toString(subscriber.sequence), String.join(",", visible)));
+    }
+
+    void flush() {
+        lock.lock();
+        try {
+            flushScheduled = false;
+            Map<Subscriber, List<String>> joined = new HashMap<>();
+            Map<Subscriber, List<String>> left = new HashMap<>();
+
+            // Compare the current state with what was last published, so churn
+            // inside the window collapses to the net change
+            for (String phone : pending) {
+                boolean isOnline = online.contains(phone);
+                Map<Subscriber, List<String>> target;
+                if (isOnline && announced.add(phone)) {
+                    target = joined;
+                } else if (!isOnline && announced.remove(phone)) {
+                    target = left;
+                } else {
+                    continue;
+                }
+                for (Subscriber subscriber : watchAll) {
+                    target.computeIfAbsent(subscriber, k -> new ArrayList<>()).add(phone);
+                }
+                for (Subscriber subscriber : watchers.getOrDefault(phone, Collections.emptySet())) {
+                    target.computeIfAbsent(subscriber, k -> new ArrayList<>()).add(phone);
+                }
+            }
+            pending.clear();
+
+            for (Map.Entry<Subscriber, List<String>> entry : joined.entrySet()) {
+                send(entry.getKey(), Frame.Type.PRESENCE_JOIN, entry.getValue());
+            }
+            for (Map.Entry<Subscriber, List<String>> entry : left.entrySet()) {
+                send(entry.getKey(), Frame.Type.PRESENCE_LEAVE, entry.getValue());
+            }
+        } catch (RuntimeException e) {
+            System.err.println("❌ Presence flush failed: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void send(Subscriber subscriber, Frame.Type type, List<String> phones) {
+        subscriber.sequence++;
+        subscriber.session.send(Frame.of(type, Long.toString(subscriber.sequence), String.join(",", phones)));
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
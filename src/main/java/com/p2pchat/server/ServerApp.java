@@ -1,18 +1,34 @@
 package com.p2pchat.server;
 
+import com.p2pchat.net.Frame;
+import com.p2pchat.storage.DatabaseConnection;
+import com.p2pchat.storage.dao.ContactDAO;
+import com.p2pchat.util.Config;
+import com.p2pchat.util.ThreadPools;
 import java.io.*;
 import java.net.*;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
 
 public class ServerApp {
     private static final int PORT = 8080;
     private static ServerSocket serverSocket;
-    private static final Map<String, ClientHandler> onlineUsers = new ConcurrentHashMap<>();
-    private static final ExecutorService pool = Executors.newCachedThreadPool();
-    private static boolean isRunning = false;
+    private static final Map<String, ClientSession> onlineUsers = new ConcurrentHashMap<>();
+    private static ExecutorService pool;
+    private static NioServer nioServer;
+    private static PresenceService presence = new PresenceService(50, null);
+    private static OfflineStore offlineStore;
+    private static volatile boolean isRunning = false;
+    // "receiver:sender" -> when sender last offered receiver a file; lets the receiver look up the sender
+    private static final Map<String, Long> fileOffers = new ConcurrentHashMap<>();
+    private static final long FILE_OFFER_TTL_MS = TimeUnit.DAYS.toMillis(7);
+    private static final int MAX_FILE_OFFERS = 100000;
     
     public static void main(String[] args) {
+        // Contact-scoped presence reads the contacts table; the CLI has already done this
+        Config config = new Config();
+        DatabaseConnection.initialize(config.getDatabaseUrl(), config.getDatabaseUsername(), config.getDatabasePassword());
         startServer();
     }
     
@@ -22,15 +38,32 @@ public class ServerApp {
             return;
         }
         
+        Config config = new Config();
+        presence.shutdown();
+        // Contact-scoped presence needs the database; without it everyone sees everyone
+        ContactDAO contacts = DatabaseConnection.isInitialized() ? new ContactDAO() : null;
+        if (contacts == null) {
+            System.out.println("⚠️  No database: presence is sent to every online user, not only contacts");
+        }
+        presence = new PresenceService(config.getServerPresenceWindowMs(), contacts);
+        offlineStore = new OfflineStore(Paths.get(config.getServerOfflineStorePath()),
+                config.getServerOfflineSegmentBytes(), config.getServerOfflineBatchSize(), config.getServerOfflineSyncMs());
+        if ("nio".equalsIgnoreCase(config.getServerMode())) {
+            startNioServer(config);
+            return;
+        }
+        
         try {
+            pool = ThreadPools.newConnectionExecutor(config.getServerExecutor());
             serverSocket = new ServerSocket(PORT);
             isRunning = true;
-            System.out.println("🚀 P2PChat Server Started on port " + PORT);
+            System.out.println("🚀 P2PChat Server Started on port " + PORT + " (" + config.getServerExecutor() + " executor)");
             System.out.println("💡 Running in background mode");
             
             while (isRunning) {
                 Socket clientSocket = serverSocket.accept();
-                ClientHandler clientThread = new ClientHandler(clientSocket);
+                ClientHandler clientThread = new ClientHandler(clientSocket, pool,
+                        config.getServerOutboundQueueLimit(), config.getServerSlowConsumerPolicy());
                 pool.execute(clientThread);
             }
             
@@ -43,6 +76,23 @@ public class ServerApp {
         }
     }
     
+    private static void startNioServer(Config config) {
+        try {
+            int eventLoops = config.getServerEventLoopThreads();
+            nioServer = new NioServer(PORT, eventLoops, config.getServerNioBufferSize(),
+                    config.getServerOutboundQueueLimit(), config.getServerSlowConsumerPolicy());
+            isRunning = true;
+            System.out.println("🚀 P2PChat Server Started on port " + PORT + " (NIO, " + eventLoops + " event loops)");
+            nioServer.start();
+        } catch (IOException e) {
+            if (isRunning) {
+                System.err.println("❌ Server error: " + e.getMessage());
+            }
+        } finally {
+            shutdown();
+        }
+    }
+    
     public static void stopServer() {
         if (!isRunning) {
             System.out.println("⚠️  Server is not running");
@@ -54,42 +104,97 @@ public class ServerApp {
         shutdown();
     }
     
-    public static void registerUser(String phoneNumber, ClientHandler handler) {
+    public static void registerUser(String phoneNumber, ClientSession handler) {
         onlineUsers.put(phoneNumber, handler);
         System.out.println("👤 User online: " + phoneNumber);
-        broadcastOnlineUsers();
+        presence.userOnline(phoneNumber, handler);
+        offlineStore.attach(phoneNumber, handler);
     }
     
-    public static void unregisterUser(String phoneNumber) {
-        onlineUsers.remove(phoneNumber);
+    // Only the session that registered the phone can take it offline; an older
+    // session closing after a reconnect leaves the newer one in place
+    public static void unregisterUser(String phoneNumber, ClientSession session) {
+        if (!onlineUsers.remove(phoneNumber, session)) {
+            return;
+        }
         System.out.println("👤 User offline: " + phoneNumber);
-        broadcastOnlineUsers();
+        presence.userOffline(phoneNumber);
+        offlineStore.detach(phoneNumber, session);
     }
     
     public static boolean sendMessageToUser(String fromPhone, String toPhone, String content) {
-        ClientHandler recipient = onlineUsers.get(toPhone);
-        if (recipient != null) {
-            String message = "MESSAGE:" + fromPhone + ":" + content;
-            recipient.sendMessage(message);
-            System.out.println("📨 " + fromPhone + " → " + toPhone);
-            return true;
-        } else {
-            System.out.println("⚠️  User offline: " + toPhone);
+        try {
+            return routeToUser(toPhone, Frame.of(Frame.Type.MESSAGE, fromPhone, content));
+        } catch (IOException e) {
+            System.err.println("❌ Failed to queue message for " + toPhone + ": " + e.getMessage());
             return false;
         }
     }
     
+    /**
+     * Hands a frame to the user's connection, or stores it for later delivery.
+     * Returns true if it went out live, false if it was queued; throws if it
+     * could not be queued either.
+     */
+    public static boolean routeToUser(String toPhone, Frame frame) throws IOException {
+        ClientSession recipient = onlineUsers.get(toPhone);
+        // Live frames must not overtake ones still waiting in the offline store
+        if (recipient != null && !offlineStore.hasPending(toPhone)) {
+            if (recipient.send(frame)) {
+                return true;
+            }
+            System.out.println("⚠️  Recipient backlogged: " + toPhone);
+        } else if (recipient == null) {
+            System.out.println("⚠️  User offline: " + toPhone);
+        }
+        
+        try {
+            offlineStore.append(toPhone, frame);
+        } catch (IllegalStateException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        System.out.println("📥 Queued " + frame.getType() + " for " + toPhone + " for later delivery");
+        return false;
+    }
+    
+    public static void acknowledgeOffline(String phoneNumber, long offset) {
+        offlineStore.acknowledge(phoneNumber, offset);
+    }
+    
+    // The live session of a user, or null when offline
+    public static ClientSession getSession(String phoneNumber) {
+        return onlineUsers.get(phoneNumber);
+    }
+    
+    public static void recordFileOffer(String senderPhone, String receiverPhone) {
+        long now = System.currentTimeMillis();
+        if (fileOffers.size() >= MAX_FILE_OFFERS) {
+            fileOffers.values().removeIf(offeredAt -> now - offeredAt > FILE_OFFER_TTL_MS);
+        }
+        if (fileOffers.size() < MAX_FILE_OFFERS) {
+            fileOffers.put(receiverPhone + ":" + senderPhone, now);
+        }
+    }
+    
+    // A peer's address only goes to its contacts and to users it recently offered a file
+    public static boolean mayLocate(String requesterPhone, String peerPhone) {
+        if (presence.isContact(peerPhone, requesterPhone)) {
+            return true;
+        }
+        Long offeredAt = fileOffers.get(requesterPhone + ":" + peerPhone);
+        return offeredAt != null && System.currentTimeMillis() - offeredAt <= FILE_OFFER_TTL_MS;
+    }
+    
     public static List<String> getOnlineUsers() {
         return new ArrayList<>(onlineUsers.keySet());
     }
     
-    private static void broadcastOnlineUsers() {
-        List<String> onlineList = getOnlineUsers();
-        String message = "ONLINE_USERS:" + String.join(",", onlineList);
-        
-        for (ClientHandler handler : onlineUsers.values()) {
-            handler.sendMessage(message);
-        }
+    public static void sendPresenceSnapshot(ClientSession session) {
+        presence.sendSnapshot(session);
+    }
+    
+    public static void contactsChanged(String ownerPhone) {
+        presence.contactsChanged(ownerPhone);
     }
     
     private static void shutdown() {
@@ -97,7 +202,15 @@ public class ServerApp {
             if (serverSocket != null) {
                 serverSocket.close();
             }
-            pool.shutdown();
+            if (nioServer != null) {
+                nioServer.stop();
+            }
+            if (pool != null) {
+                pool.shutdown();
+            }
+            if (offlineStore != null) {
+                offlineStore.shutdown();
+            }
             System.out.println("✅ Server shutdown complete");
         } catch (IOException e) {
             System.err.println("❌ Error during server shutdown: " + e.getMessage());
@@ -0,0 +1,166 @@
+package com.p2pchat.server;
+
+import com.p2pchat.net.Frame;
+import com.p2pchat.net.FrameCodec;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Protocol handling shared by the blocking and NIO server modes. Binary
+ * clients arrive as decoded frames; legacy text lines are parsed into the
+ * same frames first.
+ */
+public final class ServerProtocol {
+    
+    private ServerProtocol() {
+        // Utility class
+    }
+    
+    public static void handleLine(ClientSession session, String line) {
+        Frame frame = Frame.parseTextLine(line);
+        if (frame == null) {
+            System.out.println("❌ Unknown command from " + session.getUserPhone() + ": " + line);
+            return;
+        }
+        handleFrame(session, frame);
+    }
+    
+    public static void handleFrame(ClientSession session, Frame frame) {
+        String userPhone = session.getUserPhone();
+        try {
+            switch (frame.getType()) {
+                case IDENTIFY:
+                    String identity = frame.getString(0, "");
+                    if (!identity.isEmpty()) {
+                        userPhone = identity;
+                        session.setUserPhone(userPhone);
+                        session.setPeerPort(parsePort(frame.getString(1, "")));
+                        if (FrameCodec.offersBinary(frame)) {
+                            session.upgradeToBinary(Frame.of(Frame.Type.REGISTERED, userPhone, FrameCodec.VERSION_TOKEN));
+                        } else {
+                            session.send(Frame.of(Frame.Type.REGISTERED, userPhone));
+                        }
+                        ServerApp.registerUser(userPhone, session);
+                        System.out.println("✅ User registered: " + userPhone);
+                    }
+                    break;
+                    
+                case REGISTER:
+                    // A logged-in client re-binds its session from the instance id to its phone
+                    String phone = frame.getString(0, "");
+                    if (!phone.isEmpty() && !phone.equals(userPhone)) {
+                        if (userPhone != null) {
+                            ServerApp.unregisterUser(userPhone, session);
+                        }
+                        session.setUserPhone(phone);
+                        ServerApp.registerUser(phone, session);
+                        session.send(Frame.of(Frame.Type.REGISTERED, phone));
+                        System.out.println("✅ User registered: " + phone);
+                    }
+                    break;
+                    
+                case SEND:
+                    if (userPhone != null && frame.getFieldCount() >= 2) {
+                        String toPhone = frame.getString(0);
+                        String content = frame.getString(1);
+                        if (content.startsWith("FILE:")) {
+                            ServerApp.recordFileOffer(userPhone, toPhone);
+                        }
+                        boolean delivered = ServerApp.sendMessageToUser(userPhone, toPhone, content);
+                        if (delivered) {
+                            session.send(Frame.of(Frame.Type.DELIVERED, toPhone));
+                        } else {
+                            session.send(Frame.of(Frame.Type.QUEUED, toPhone));
+                        }
+                    }
+                    break;
+                    
+                case POST:
+                    if (userPhone != null && frame.getFieldCount() >= 3) {
+                        String messageId = frame.getString(0);
+                        String toPhone = frame.getString(1);
+                        if (frame.getString(2).startsWith("FILE:")) {
+                            ServerApp.recordFileOffer(userPhone, toPhone);
+                        }
+                        Frame deliver = Frame.of(Frame.Type.DELIVER, messageId, userPhone, frame.getString(2));
+                        try {
+                            boolean live = ServerApp.routeToUser(toPhone, deliver);
+                            System.out.println("📨 " + userPhone + " → " + toPhone + " [" + messageId + "]" + (live ? "" : " queued"));
+                            session.send(Frame.of(Frame.Type.SERVER_ACK, messageId, live ? "FORWARDED" : "QUEUED"));
+                        } catch (IOException e) {
+                            // No ack: the client's retransmit timer will try again
+                            System.err.println("❌ Could not store message " + messageId + ": " + e.getMessage());
+                        }
+                    }
+                    break;
+                    
+                case RECEIPT:
+                    // Recipient -> original sender; the second field is rewritten to the recipient
+                    if (userPhone != null && frame.getFieldCount() >= 3) {
+                        String senderPhone = frame.getString(1);
+                        ServerApp.routeToUser(senderPhone,
+                                Frame.of(Frame.Type.RECEIPT, frame.getString(0), userPhone, frame.getString(2)));
+                    }
+                    break;
+                    
+                case GET_PEER:
+                    // Lets a client open a direct connection, e.g. to pull a file
+                    if (userPhone != null && frame.getFieldCount() >= 1) {
+                        String peerPhone = frame.getString(0);
+                        ClientSession peer = ServerApp.getSession(peerPhone);
+                        boolean allowed = ServerApp.mayLocate(userPhone, peerPhone);
+                        if (!allowed) {
+                            System.out.println("⚠️  Refused peer lookup of " + peerPhone + " by " + userPhone);
+                        }
+                        if (allowed && peer != null && peer.getPeerPort() > 0) {
+                            session.send(Frame.of(Frame.Type.PEER, peerPhone, String.valueOf(peer.getPeerPort()),
+                                    peer.getRemoteHost()));
+                        } else {
+                            session.send(Frame.of(Frame.Type.PEER, peerPhone, "0", ""));
+                        }
+                    }
+                    break;
+                    
+                case GET_ONLINE_USERS:
+                    List<String> onlineUsers = ServerApp.getOnlineUsers();
+                    session.send(Frame.of(Frame.Type.ONLINE_USERS, String.join(",", onlineUsers)));
+                    break;
+                    
+                case GET_PRESENCE:
+                    ServerApp.sendPresenceSnapshot(session);
+                    break;
+                    
+                case CONTACT_ADDED:
+                    if (userPhone != null) {
+                        ServerApp.contactsChanged(userPhone);
+                    }
+                    break;
+                    
+                case OFFLINE_ACK:
+                    if (userPhone != null) {
+                        ServerApp.acknowledgeOffline(userPhone, Long.parseLong(frame.getString(0, "-1")));
+                    }
+                    break;
+                    
+                case PING:
+                    session.send(Frame.of(Frame.Type.PONG));
+                    break;
+                    
+                default:
+                    System.out.println("❌ Unknown command from " + userPhone + ": " + frame);
+            }
+        } catch (Exception e) {
+            System.err.println("❌ Error handling message from " + userPhone + ": " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+    
+    private static int parsePort(String value) {
+        try {
+            int port = Integer.parseInt(value.trim());
+            return port > 0 && port <= 65535 ? port : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
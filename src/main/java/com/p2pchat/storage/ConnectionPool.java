@@ -0,0 +1,458 @@
+package com.p2pchat.storage;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded JDBC connection pool used behind DatabaseConnection.getConnection().
+ *
+ * Callers get a proxy whose close() hands the physical connection back, so the
+ * DAOs' try-with-resources blocks work unchanged. Statements, result sets and
+ * metadata obtained from it are proxied too, so their getConnection() returns
+ * that proxy and the physical connection never escapes the pool. Idle
+ * connections are reused most-recently-used first and re-validated when they
+ * sat unused for a while. A housekeeper opens connections up to minIdle (right
+ * away at startup, then every run), retires idle ones beyond minIdle and
+ * connections past their max lifetime, and reports connections borrowed
+ * longer than the leak threshold together with the stack that borrowed them.
+ */
+public class ConnectionPool {
+    // A connection used this recently is assumed alive and not re-validated
+    private static final long VALIDATION_BYPASS_MS = 500;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    private final ConnectionFactory factory;
+    private final int maxSize;
+    private final int minIdle;
+    private final long connectionTimeoutMs;
+    private final long idleTimeoutMs;
+    private final long maxLifetimeMs;
+    private final long leakThresholdMs;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    // Most recently returned last, so reuse keeps a small hot set
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final Set<PooledConnection> borrowed = new HashSet<>();
+    private final ScheduledExecutorService housekeeper;
+    private int totalConnections = 0;
+    private int waitingThreads = 0;
+    private boolean closed = false;
+
+    // Metrics, guarded by lock
+    private long createdCount = 0;
+    private long closedCount = 0;
+    private long borrowCount = 0;
+    private long timeoutCount = 0;
+    private long leakCount = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanos = 0;
+
+    private final class PooledConnection {
+        final Connection physical;
+        final long createdAt = System.currentTimeMillis();
+        long lastUsedAt = createdAt;
+        long borrowedAt;
+        Throwable borrowSite;
+        boolean leakReported;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+    }
+
+    public ConnectionPool(ConnectionFactory factory, int maxSize, int minIdle, long connectionTimeoutMs,
+                          long idleTimeoutMs, long maxLifetimeMs, long leakThresholdMs) {
+        this.factory = factory;
+        this.maxSize = Math.max(1, maxSize);
+        this.minIdle = Math.max(0, Math.min(minIdle, this.maxSize));
+        this.connectionTimeoutMs = Math.max(1, connectionTimeoutMs);
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.maxLifetimeMs = maxLifetimeMs;
+        this.leakThresholdMs = leakThresholdMs;
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "db-pool-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        housekeeper.execute(this::fillIdle);
+        housekeeper.scheduleWithFixedDelay(this::housekeep, 5, 5, TimeUnit.SECONDS);
+    }
+
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(connectionTimeoutMs);
+
+        while (true) {
+            PooledConnection candidate = null;
+            boolean create = false;
+
+            lock.lock();
+            try {
+                while (!closed && idle.isEmpty() && totalConnections >= maxSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        timeoutCount++;
+                        throw new SQLException("Connection pool exhausted: " + maxSize + " connections in use, waited "
+                                + connectionTimeoutMs + " ms");
+                    }
+                    waitingThreads++;
+                    try {
+                        available.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a database connection", e);
+                    } finally {
+                        waitingThreads--;
+                    }
+                }
+                if (closed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+                if (!idle.isEmpty()) {
+                    candidate = idle.pollLast();
+                } else {
+                    // Reserve the slot now, create outside the lock
+                    totalConnections++;
+                    create = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (create) {
+                try {
+                    candidate = new PooledConnection(factory.create());
+                } catch (SQLException | RuntimeException e) {
+                    discard(null);
+                    throw e;
+                }
+                lock.lock();
+                try {
+                    createdCount++;
+                } finally {
+                    lock.unlock();
+                }
+            } else if (!isUsable(candidate)) {
+                discard(candidate);
+                continue;
+            }
+
+            return lend(candidate, System.nanoTime() - start);
+        }
+    }
+
+    private boolean isUsable(PooledConnection connection) {
+        long now = System.currentTimeMillis();
+        if (maxLifetimeMs > 0 && now - connection.createdAt >= maxLifetimeMs) {
+            return false;
+        }
+        if (now - connection.lastUsedAt < VALIDATION_BYPASS_MS) {
+            return true;
+        }
+        try {
+            return connection.physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private Connection lend(PooledConnection connection, long waitNanos) {
+        lock.lock();
+        try {
+            connection.borrowedAt = System.currentTimeMillis();
+            connection.borrowSite = leakThresholdMs > 0 ? new Throwable("Connection borrowed here") : null;
+            connection.leakReported = false;
+            borrowed.add(connection);
+            borrowCount++;
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+        } finally {
+            lock.unlock();
+        }
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new ProxyHandler(connection));
+    }
+
+    // Wraps JDBC objects handed out through a pooled connection; others pass through
+    private static Object wrap(Object target, Class<?> type, Connection owner, Object statement) {
+        if (target == null || !(Statement.class.isAssignableFrom(type) || type == ResultSet.class
+                || type == DatabaseMetaData.class)) {
+            return target;
+        }
+        return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{type},
+                new ChildHandler(target, owner, statement));
+    }
+
+    private void giveBack(PooledConnection connection) {
+        boolean healthy;
+        try {
+            healthy = !connection.physical.isClosed();
+            if (healthy && !connection.physical.getAutoCommit()) {
+                // Never hand an open transaction to the next borrower
+                connection.physical.rollback();
+                connection.physical.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            healthy = false;
+        }
+
+        lock.lock();
+        try {
+            borrowed.remove(connection);
+            if (connection.leakReported) {
+                System.out.println("✅ Previously reported connection leak was returned after "
+                        + (System.currentTimeMillis() - connection.borrowedAt) + " ms");
+            }
+            boolean expired = maxLifetimeMs > 0 && System.currentTimeMillis() - connection.createdAt >= maxLifetimeMs;
+            if (healthy && !expired && !closed) {
+                connection.lastUsedAt = System.currentTimeMillis();
+                connection.borrowSite = null;
+                idle.addLast(connection);
+                available.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        discard(connection);
+    }
+
+    // Closes a connection that is neither idle nor borrowed and frees its slot
+    private void discard(PooledConnection connection) {
+        if (connection != null) {
+            closeQuietly(connection.physical);
+        }
+        lock.lock();
+        try {
+            totalConnections--;
+            if (connection != null) {
+                closedCount++;
+            }
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void housekeep() {
+        List<PooledConnection> retired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            Iterator<PooledConnection> it = idle.iterator();
+            while (it.hasNext()) {
+                PooledConnection connection = it.next();
+                boolean expired = maxLifetimeMs > 0 && now - connection.createdAt >= maxLifetimeMs;
+                boolean surplus = idleTimeoutMs > 0 && now - connection.lastUsedAt >= idleTimeoutMs
+                        && idle.size() - retired.size() > minIdle;
+                if (expired || surplus) {
+                    it.remove();
+                    retired.add(connection);
+                }
+            }
+
+            if (leakThresholdMs > 0) {
+                for (PooledConnection connection : borrowed) {
+                    if (!connection.leakReported && now - connection.borrowedAt >= leakThresholdMs) {
+                        connection.leakReported = true;
+                        leakCount++;
+                        System.err.println("⚠️  Possible connection leak: borrowed " + (now - connection.borrowedAt)
+                                + " ms ago and not returned");
+                        if (connection.borrowSite != null) {
+                            connection.borrowSite.printStackTrace();
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (PooledConnection connection : retired) {
+            discard(connection);
+        }
+        fillIdle();
+    }
+
+    // Opens connections until minIdle are idle, without exceeding maxSize; stops at the first failure
+    private void fillIdle() {
+        while (true) {
+            lock.lock();
+            try {
+                if (closed || idle.size() >= minIdle || totalConnections >= maxSize) {
+                    return;
+                }
+                totalConnections++;
+            } finally {
+                lock.unlock();
+            }
+
+            PooledConnection connection;
+            try {
+                connection = new PooledConnection(factory.create());
+            } catch (SQLException | RuntimeException e) {
+                discard(null);
+                System.err.println("⚠️  Could not open idle database connection: " + e.getMessage());
+                return;
+            }
+            lock.lock();
+            try {
+                createdCount++;
+                if (!closed) {
+                    idle.addLast(connection);
+                    available.signal();
+                    continue;
+                }
+            } finally {
+                lock.unlock();
+            }
+            discard(connection);
+            return;
+        }
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            stats.put("maxSize", maxSize);
+            stats.put("total", totalConnections);
+            stats.put("active", borrowed.size());
+            stats.put("idle", idle.size());
+            stats.put("waiting", waitingThreads);
+            stats.put("created", createdCount);
+            stats.put("closed", closedCount);
+            stats.put("borrowed", borrowCount);
+            stats.put("timeouts", timeoutCount);
+            stats.put("leaks", leakCount);
+            stats.put("avgWaitMs", borrowCount == 0 ? 0.0 : totalWaitNanos / 1_000_000.0 / borrowCount);
+            stats.put("maxWaitMs", maxWaitNanos / 1_000_000.0);
+        } finally {
+            lock.unlock();
+        }
+        return stats;
+    }
+
+    public void close() {
+        List<PooledConnection> toClose;
+        lock.lock();
+        try {
+            closed = true;
+            toClose = new ArrayList<>(idle);
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        housekeeper.shutdownNow();
+        for (PooledConnection connection : toClose) {
+            discard(connection);
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // Ignore close errors
+        }
+    }
+
+    private final class ProxyHandler implements InvocationHandler {
+        private final PooledConnection connection;
+        private boolean released = false;
+
+        ProxyHandler(PooledConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!released) {
+                        released = true;
+                        giveBack(connection);
+                    }
+                    return null;
+                case "isClosed":
+                    return released || connection.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + connection.physical;
+                default:
+                    break;
+            }
+            if (released) {
+                throw new SQLException("Connection is closed");
+            }
+            try {
+                return wrap(method.invoke(connection.physical, args), method.getReturnType(), (Connection) proxy, null);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    // Statement, ResultSet or DatabaseMetaData: reports the pooled proxy as its connection
+    private static final class ChildHandler implements InvocationHandler {
+        private final Object target;
+        private final Connection owner;
+        // The statement proxy a result set came from, if any
+        private final Object statement;
+
+        ChildHandler(Object target, Connection owner, Object statement) {
+            this.target = target;
+            this.owner = owner;
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "getConnection":
+                    return owner;
+                case "getStatement":
+                    if (statement != null) {
+                        return statement;
+                    }
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + target;
+                default:
+                    break;
+            }
+            try {
+                Object result = method.invoke(target, args);
+                return target instanceof Statement ? wrap(result, method.getReturnType(), owner, proxy) : result;
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
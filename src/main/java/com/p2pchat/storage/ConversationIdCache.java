@@ -0,0 +1,37 @@
+package com.p2pchat.storage;
+
+import com.p2pchat.storage.dao.ConversationDAO;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the user pair -> conversation id mapping, which never changes once a
+ * conversation exists, so steady-state sends do no conversation lookups.
+ *
+ * computeIfAbsent makes concurrent misses for the same pair wait for a single
+ * lookup in this process; the unique key on (user1_phone, user2_phone) makes
+ * creation race-free across processes. Failed lookups are not cached.
+ */
+public class ConversationIdCache {
+    private final ConversationDAO conversationDAO;
+    private final ConcurrentMap<String, Long> ids = new ConcurrentHashMap<>();
+
+    public ConversationIdCache(ConversationDAO conversationDAO) {
+        this.conversationDAO = conversationDAO;
+    }
+
+    // Returns null when the database could not be reached
+    public Long get(String user1Phone, String user2Phone) {
+        return ids.computeIfAbsent(pairKey(user1Phone, user2Phone),
+                k -> conversationDAO.findOrCreateConversation(user1Phone, user2Phone));
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    // Same ordering as the stored pair, so both directions share one entry
+    public static String pairKey(String user1Phone, String user2Phone) {
+        return user1Phone.compareTo(user2Phone) < 0 ? user1Phone + "_" + user2Phone : user2Phone + "_" + user1Phone;
+    }
+}
@@ -1,6 +1,8 @@
 package com.p2pchat.storage;
 
+import com.p2pchat.util.Config;
 import java.sql.*;
+import java.util.Map;
 import java.util.Properties;
 
 public class DatabaseConnection {
@@ -8,6 +10,7 @@ public class DatabaseConnection {
     private static String username;
     private static String password;
     private static boolean initialized = false;
+    private static ConnectionPool pool;
     
     static {
         try {
@@ -30,9 +33,11 @@ public class DatabaseConnection {
             
             try (Connection conn = getFreshConnection()) {
                 System.out.println("✅ Database connection test successful");
-                resetAndCreateTables(conn);
+                // Existing data is kept; only pending migrations run
+                SchemaMigrator.migrate(conn);
                 initialized = true; // Now this is used
             }
+            startPool();
             
             System.out.println("✅ Database setup completed successfully");
             
@@ -43,6 +48,21 @@ public class DatabaseConnection {
         }
     }
     
+    private static void startPool() {
+        if (pool != null) {
+            pool.close();
+        }
+        Config config = new Config();
+        pool = new ConnectionPool(DatabaseConnection::getFreshConnection,
+                config.getDatabasePoolMaxSize(),
+                config.getDatabasePoolMinIdle(),
+                config.getDatabasePoolConnectionTimeoutMs(),
+                config.getDatabasePoolIdleTimeoutMs(),
+                config.getDatabasePoolMaxLifetimeMs(),
+                config.getDatabasePoolLeakDetectionMs());
+        System.out.println("✅ Connection pool ready (max " + config.getDatabasePoolMaxSize() + " connections)");
+    }
+    
     private static Connection getFreshConnection() throws SQLException {
         Properties props = new Properties();
         props.setProperty("user", username);
@@ -51,12 +71,18 @@ public class DatabaseConnection {
         props.setProperty("serverTimezone", "UTC");
         props.setProperty("autoReconnect", "true");
         props.setProperty("allowPublicKeyRetrieval", "true");
+        // Pooled connections live long enough for a client-side statement cache to pay off
+        props.setProperty("cachePrepStmts", "true");
+        props.setProperty("prepStmtCacheSize", "250");
+        props.setProperty("prepStmtCacheSqlLimit", "2048");
+        // Lets the driver send an executeBatch() as multi-row statements
+        props.setProperty("rewriteBatchedStatements", "true");
         
         return DriverManager.getConnection(url, props);
     }
     
-    private static void resetAndCreateTables(Connection conn) throws SQLException {
-        System.out.println("🔄 Creating database tables with SIMPLIFIED schema...");
+    private static void dropTables(Connection conn) throws SQLException {
+        System.out.println("🔄 Dropping all database tables...");
         
         String[] dropTables = {
             "DROP TABLE IF EXISTS messages",
@@ -66,7 +92,10 @@ public class DatabaseConnection {
             "DROP TABLE IF EXISTS p2p_connections",
             "DROP TABLE IF EXISTS key_store",
             "DROP TABLE IF EXISTS encryption_keys",
-            "DROP TABLE IF EXISTS users"
+            "DROP TABLE IF EXISTS users",
+            "DROP TABLE IF EXISTS user_message_stats",
+            "DROP TABLE IF EXISTS table_counts",
+            "DROP TABLE IF EXISTS schema_version"
         };
         
         try (Statement stmt = conn.createStatement()) {
@@ -78,152 +107,38 @@ public class DatabaseConnection {
                 }
             }
         }
-        
-        String[] tables = {
-            "CREATE TABLE users (" +
-                "phone_number VARCHAR(10) PRIMARY KEY, " +
-                "display_name VARCHAR(100) NOT NULL, " +
-                "public_key_fingerprint VARCHAR(255), " +
-                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                "last_seen TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                "profile_status VARCHAR(200) DEFAULT 'Hey there! I am using P2PChat')",
-            
-            "CREATE TABLE contacts (" +
-                "owner_phone VARCHAR(10) NOT NULL, " +
-                "contact_phone VARCHAR(10) NOT NULL, " +
-                "nickname VARCHAR(100), " +
-                "status VARCHAR(20) DEFAULT 'PENDING', " +
-                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                "PRIMARY KEY(owner_phone, contact_phone))",
-            
-            "CREATE TABLE conversations (" +
-                "id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
-                "user1_phone VARCHAR(10) NOT NULL, " +
-                "user2_phone VARCHAR(10) NOT NULL, " +
-                "last_message TEXT, " +
-                "last_message_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                "unread_count INT DEFAULT 0, " +
-                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)",
-            
-            "CREATE TABLE messages (" +
-                "id VARCHAR(36) PRIMARY KEY, " +
-                "conversation_id BIGINT, " +
-                "sender_phone VARCHAR(10) NOT NULL, " +
-                "receiver_phone VARCHAR(10) NOT NULL, " +
-                "message_type VARCHAR(20) DEFAULT 'TEXT', " +
-                "content TEXT, " +
-                "file_name VARCHAR(255), " +
-                "file_size BIGINT, " +
-                "file_path VARCHAR(500), " +
-                "file_id VARCHAR(36), " +
-                "file_type VARCHAR(50), " +
-                "encryption_key_id VARCHAR(36), " +
-                "status VARCHAR(20) DEFAULT 'SENT', " +
-                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)",
-            
-            "CREATE TABLE file_chunks (" +
-                "id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
-                "file_id VARCHAR(36) NOT NULL, " +
-                "file_name VARCHAR(255) NOT NULL, " +
-                "file_path VARCHAR(500), " +
-                "file_size BIGINT NOT NULL, " +
-                "file_type VARCHAR(50) NOT NULL, " +
-                "owner_phone VARCHAR(10) NOT NULL, " +
-                "receiver_phone VARCHAR(10), " +
-                "uploaded_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                "is_delivered BOOLEAN DEFAULT FALSE)",
-            
-            "CREATE TABLE encryption_keys (" +
-                "id VARCHAR(36) PRIMARY KEY, " +
-                "user_phone VARCHAR(10) NOT NULL, " +
-                "public_key BLOB NOT NULL, " +
-                "private_key BLOB, " +
-                "symmetric_key BLOB, " +
-                "key_type VARCHAR(20) DEFAULT 'RSA', " +
-                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                "is_active BOOLEAN DEFAULT TRUE)",
-            
-            "CREATE TABLE key_store (" +
-                "id VARCHAR(36) PRIMARY KEY, " +
-                "key_owner VARCHAR(10) NOT NULL, " +
-                "key_data BLOB NOT NULL, " +
-                "key_type VARCHAR(20) NOT NULL, " +
-                "key_purpose VARCHAR(50), " +
-                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                "expires_at TIMESTAMP, " +
-                "is_valid BOOLEAN DEFAULT TRUE)",
-            
-            "CREATE TABLE p2p_connections (" +
-                "id VARCHAR(36) PRIMARY KEY, " +
-                "user1_phone VARCHAR(10) NOT NULL, " +
-                "user2_phone VARCHAR(10) NOT NULL, " +
-                "connection_type VARCHAR(20) DEFAULT 'DIRECT', " +
-                "local_address VARCHAR(45), " +
-                "remote_address VARCHAR(45), " +
-                "local_port INT, " +
-                "remote_port INT, " +
-                "session_key BLOB, " +
-                "status VARCHAR(20) DEFAULT 'ACTIVE', " +
-                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                "last_activity TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                "total_bytes_sent BIGINT DEFAULT 0, " +
-                "total_bytes_received BIGINT DEFAULT 0)"
-        };
-        
-        try (Statement stmt = conn.createStatement()) {
-            for (String sql : tables) {
-                stmt.execute(sql);
-            }
-            System.out.println("✅ All tables created with SIMPLIFIED schema (NO CHUNK DATA)");
-        }
-        
-        createIndexes(conn);
-    }
-    
-    private static void createIndexes(Connection conn) throws SQLException {
-        String[] indexes = {
-            "CREATE INDEX idx_messages_sender ON messages(sender_phone)",
-            "CREATE INDEX idx_messages_receiver ON messages(receiver_phone)",
-            "CREATE INDEX idx_messages_conversation ON messages(conversation_id)",
-            "CREATE INDEX idx_messages_created ON messages(created_at)",
-            "CREATE INDEX idx_file_chunks_file_id ON file_chunks(file_id)",
-            "CREATE INDEX idx_file_chunks_owner ON file_chunks(owner_phone)",
-            "CREATE INDEX idx_encryption_keys_user ON encryption_keys(user_phone)",
-            "CREATE INDEX idx_p2p_connections_users ON p2p_connections(user1_phone, user2_phone)",
-            "CREATE INDEX idx_p2p_connections_status ON p2p_connections(status)",
-            "CREATE INDEX idx_conversations_users ON conversations(user1_phone, user2_phone)"
-        };
-        
-        try (Statement stmt = conn.createStatement()) {
-            for (String sql : indexes) {
-                try {
-                    stmt.execute(sql);
-                } catch (SQLException e) {
-                    // Ignore index creation errors
-                }
-            }
-        }
     }
     
+    // Pooled once initialize() succeeded; closing the returned connection gives it back
     public static Connection getConnection() throws SQLException {
-        return getFreshConnection();
+        ConnectionPool current = pool;
+        return current != null ? current.getConnection() : getFreshConnection();
     }
     
     public static boolean isConnected() {
-        try (Connection conn = getFreshConnection()) {
+        try (Connection conn = getConnection()) {
             return true;
         } catch (SQLException e) {
             return false;
         }
     }
     
+    public static Map<String, Object> getPoolStatistics() {
+        ConnectionPool current = pool;
+        return current != null ? current.getStatistics() : new java.util.HashMap<>();
+    }
+    
     public static void close() {
-        // No need to close static connection since we create fresh ones
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
     }
     
     public static void resetDatabase() throws SQLException {
-        try (Connection conn = getFreshConnection()) {
-            resetAndCreateTables(conn);
+        try (Connection conn = getConnection()) {
+            dropTables(conn);
+            SchemaMigrator.migrate(conn);
         }
     }
     
@@ -0,0 +1,45 @@
+package com.p2pchat.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * One versioned schema change: an ordered list of SQL statements applied
+ * together and recorded in schema_version with a checksum of its text.
+ * Statements must be safe to re-run after a partial failure (see
+ * SchemaMigrator for the errors treated as "already applied").
+ */
+public class Migration {
+    private final int version;
+    private final String description;
+    private final String[] statements;
+
+    public Migration(int version, String description, String... statements) {
+        this.version = version;
+        this.description = description;
+        this.statements = statements;
+    }
+
+    public int getVersion() { return version; }
+    public String getDescription() { return description; }
+    public String[] getStatements() { return statements; }
+
+    // SHA-256 of the statements, so editing an applied migration is detected
+    public String getChecksum() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String statement : statements) {
+                digest.update(statement.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -3,8 +3,13 @@ package com.p2pchat.storage;
 import com.p2pchat.core.models.Message;
 import com.p2pchat.core.models.User;
 import com.p2pchat.storage.dao.*;
+import com.p2pchat.util.Config;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 public class MySQLStorage {
@@ -14,6 +19,8 @@ public class MySQLStorage {
     private final ConversationDAO conversationDAO;
     private final FileDAO fileDAO;
     private final KeyDAO keyDAO;
+    private final ConversationIdCache conversationIds;
+    private final WriteBehindQueue writeBehind;
     // private final ConnectionDAO connectionDAO; // Comment out for now
     
     public MySQLStorage() {
@@ -24,6 +31,24 @@ public class MySQLStorage {
         this.fileDAO = new FileDAO();
         this.keyDAO = new KeyDAO();
         // this.connectionDAO = new ConnectionDAO(); // Comment out for now
+        this.conversationIds = new ConversationIdCache(conversationDAO);
+        this.writeBehind = createWriteBehindQueue();
+    }
+    
+    // Schema migration 8 backfills once; this is the manual re-run (db-backfill)
+    public int backfillConversationIds() {
+        return messageDAO.backfillConversationIds(1000);
+    }
+    
+    private WriteBehindQueue createWriteBehindQueue() {
+        Config config = new Config();
+        try {
+            return new WriteBehindQueue(messageDAO, conversationDAO, conversationIds, Paths.get(config.getStorageWalPath()),
+                    config.getWriteBehindBatchSize(), config.getWriteBehindFlushMs(), config.getWriteBehindMaxBacklog());
+        } catch (IOException e) {
+            System.err.println("⚠️  Write-behind disabled, writing synchronously: " + e.getMessage());
+            return null;
+        }
     }
     
     // User methods
@@ -50,24 +75,107 @@ public class MySQLStorage {
     
     // Message methods
     public boolean saveMessage(Message message) {
+        if (message.getConversationId() == null) {
+            message.setConversationId(conversationIds.get(message.getSenderPhone(), message.getReceiverPhone()));
+        }
         return messageDAO.save(message);
     }
     
     public List<Message> getMessagesByReceiver(String receiverPhone) {
+        flushWrites();
         return messageDAO.findByReceiverPhone(receiverPhone);
     }
     
     public List<Message> getConversationMessages(String user1Phone, String user2Phone) {
+        flushWrites();
         return messageDAO.findByParticipants(user1Phone, user2Phone);
     }
     
+    public MessageDAO.Page getInboxPage(String receiverPhone, MessageDAO.Cursor before, int limit) {
+        flushWrites();
+        return messageDAO.findByReceiverPhone(receiverPhone, before, limit);
+    }
+    
+    public MessageDAO.Page getConversationPage(String user1Phone, String user2Phone, MessageDAO.Cursor before, int limit) {
+        flushWrites();
+        return messageDAO.findByParticipants(user1Phone, user2Phone, before, limit);
+    }
+    
+    public Message getMessageByFileId(String fileId) {
+        flushWrites();
+        return messageDAO.findByFileId(fileId);
+    }
+    
+    public MessageDAO.Page getUserMessagePage(String userPhone, MessageDAO.Cursor before, int limit) {
+        flushWrites();
+        return messageDAO.findByUserPhone(userPhone, before, limit);
+    }
+    
+    // userPhone null searches every user's messages (admin)
+    public MessageDAO.SearchPage searchMessages(String userPhone, String query, int offset, int limit) {
+        flushWrites();
+        return messageDAO.searchMessages(userPhone, query, offset, limit);
+    }
+    
     public boolean updateMessageStatus(String messageId, Message.MessageStatus status) {
         return messageDAO.updateStatus(messageId, status);
     }
     
+    // Async variants: logged locally and written to MySQL in batches
+    // A full backlog or closed queue makes the write synchronous
+    public void saveMessageAsync(Message message) {
+        if (writeBehind != null) {
+            try {
+                writeBehind.saveMessage(message);
+                return;
+            } catch (IllegalStateException e) {
+                System.err.println("⚠️  " + e.getMessage() + ", writing synchronously");
+            }
+        }
+        saveMessage(message);
+    }
+    
+    public void updateMessageStatusAsync(String messageId, Message.MessageStatus status) {
+        if (writeBehind != null) {
+            try {
+                writeBehind.updateMessageStatus(messageId, status);
+                return;
+            } catch (IllegalStateException e) {
+                System.err.println("⚠️  " + e.getMessage() + ", writing synchronously");
+            }
+        }
+        messageDAO.updateStatus(messageId, status);
+    }
+    
+    public void updateConversationAsync(String user1Phone, String user2Phone, String lastMessage, LocalDateTime lastMessageTime) {
+        if (writeBehind != null) {
+            try {
+                writeBehind.updateConversation(user1Phone, user2Phone, lastMessage, lastMessageTime);
+                return;
+            } catch (IllegalStateException e) {
+                System.err.println("⚠️  " + e.getMessage() + ", writing synchronously");
+            }
+        }
+        Long conversationId = conversationIds.get(user1Phone, user2Phone);
+        if (conversationId != null) {
+            conversationDAO.updateConversation(conversationId, lastMessage, lastMessageTime);
+        }
+    }
+    
+    public Map<String, Object> getWriteBehindStatistics() {
+        return writeBehind != null ? writeBehind.getStatistics() : Collections.emptyMap();
+    }
+    
+    // Reads flush first so they see everything queued before them
+    private void flushWrites() {
+        if (writeBehind != null) {
+            writeBehind.flush();
+        }
+    }
+    
     // Conversation methods
     public Long findOrCreateConversation(String user1Phone, String user2Phone) {
-        return conversationDAO.findOrCreateConversation(user1Phone, user2Phone);
+        return conversationIds.get(user1Phone, user2Phone);
     }
     
     public void updateConversation(Long conversationId, String lastMessage, LocalDateTime lastMessageTime) {
@@ -75,6 +183,7 @@ public class MySQLStorage {
     }
     
     public List<Object[]> getUserConversations(String userPhone) {
+        flushWrites();
         return conversationDAO.findByUserPhone(userPhone);
     }
     
@@ -83,6 +192,15 @@ public class MySQLStorage {
             long fileSize, String fileType, String ownerPhone) {
 return fileDAO.saveFileMetadata(fileId, fileName, filePath, fileSize, fileType, ownerPhone);
 }
+    public boolean saveFileMetadata(String fileId, String fileName, String filePath, 
+            long fileSize, String fileType, String ownerPhone, String contentHash) {
+        return fileDAO.saveFileMetadata(fileId, fileName, filePath, fileSize, fileType, ownerPhone, contentHash);
+    }
+    
+    public int getFileReferenceCount(String contentHash) {
+        return fileDAO.countByContentHash(contentHash);
+    }
+    
     public List<FileDAO.FileMetadata> getFilesByOwner(String ownerPhone) {
         return fileDAO.getFilesByOwner(ownerPhone);
     }
@@ -123,14 +241,26 @@ return fileDAO.saveFileMetadata(fileId, fileName, filePath, fileSize, fileType,
     }
     
     public int getMessageCount() {
+        flushWrites();
         return messageDAO.getMessageCount();
     }
     
+    public MessageDAO.UserStats getUserMessageStats(String userPhone) {
+        flushWrites();
+        return messageDAO.getUserStats(userPhone);
+    }
+    
     public int getFileCount() {
         return fileDAO.getFileCount();
     }
     
+    public int getDistinctFileContentCount() {
+        return fileDAO.getDistinctContentCount();
+    }
+    
     public void close() {
-        // Nothing to close since we use fresh connections
+        if (writeBehind != null) {
+            writeBehind.close();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,404 @@
+package com.p2pchat.storage;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Brings the schema up to date without touching existing data.
+ *
+ * Applied versions and the checksums of their statements are kept in
+ * schema_version. On startup the applied rows are read with one SELECT; if
+ * nothing is pending that is all that happens. Pending migrations run in
+ * version order under a MySQL named lock, so two instances starting together
+ * cannot apply the same migration twice. A checksum mismatch means an applied
+ * migration was edited, and startup fails rather than guess.
+ *
+ * MySQL commits DDL implicitly, so a migration is not atomic. Errors that
+ * mean a statement's effect is already there (table or index exists, index
+ * already dropped) are skipped, which lets a half-applied migration re-run.
+ */
+public class SchemaMigrator {
+    private static final String LOCK_NAME = "p2pchat_schema_migration";
+    private static final int LOCK_TIMEOUT_SECONDS = 30;
+    // ER_TABLE_EXISTS_ERROR, ER_DUP_FIELDNAME, ER_DUP_KEYNAME, ER_CANT_DROP_FIELD_OR_KEY
+    private static final Set<Integer> ALREADY_APPLIED_ERRORS = new HashSet<>(Arrays.asList(1050, 1060, 1061, 1091));
+    // ER_NO_SUCH_TABLE
+    private static final int NO_SUCH_TABLE = 1146;
+    // ER_TABLEACCESS_DENIED_ERROR (no TRIGGER privilege), ER_SPECIFIC_ACCESS_DENIED_ERROR,
+    // ER_BINLOG_CREATE_ROUTINE_NEED_SUPER
+    private static final Set<Integer> TRIGGER_PRIVILEGE_ERRORS = new HashSet<>(Arrays.asList(1142, 1227, 1419));
+
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+        new Migration(1, "Baseline schema",
+                "CREATE TABLE IF NOT EXISTS users (" +
+                    "phone_number VARCHAR(10) PRIMARY KEY, " +
+                    "display_name VARCHAR(100) NOT NULL, " +
+                    "public_key_fingerprint VARCHAR(255), " +
+                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "last_seen TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "profile_status VARCHAR(200) DEFAULT 'Hey there! I am using P2PChat')",
+
+                "CREATE TABLE IF NOT EXISTS contacts (" +
+                    "owner_phone VARCHAR(10) NOT NULL, " +
+                    "contact_phone VARCHAR(10) NOT NULL, " +
+                    "nickname VARCHAR(100), " +
+                    "status VARCHAR(20) DEFAULT 'PENDING', " +
+                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "PRIMARY KEY(owner_phone, contact_phone))",
+
+                "CREATE TABLE IF NOT EXISTS conversations (" +
+                    "id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+                    "user1_phone VARCHAR(10) NOT NULL, " +
+                    "user2_phone VARCHAR(10) NOT NULL, " +
+                    "last_message TEXT, " +
+                    "last_message_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "unread_count INT DEFAULT 0, " +
+                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)",
+
+                "CREATE TABLE IF NOT EXISTS messages (" +
+                    "id VARCHAR(36) PRIMARY KEY, " +
+                    "conversation_id BIGINT, " +
+                    "sender_phone VARCHAR(10) NOT NULL, " +
+                    "receiver_phone VARCHAR(10) NOT NULL, " +
+                    "message_type VARCHAR(20) DEFAULT 'TEXT', " +
+                    "content TEXT, " +
+                    "file_name VARCHAR(255), " +
+                    "file_size BIGINT, " +
+                    "file_path VARCHAR(500), " +
+                    "file_id VARCHAR(36), " +
+                    "file_type VARCHAR(50), " +
+                    "encryption_key_id VARCHAR(36), " +
+                    "status VARCHAR(20) DEFAULT 'SENT', " +
+                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)",
+
+                "CREATE TABLE IF NOT EXISTS file_chunks (" +
+                    "id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+                    "file_id VARCHAR(36) NOT NULL, " +
+                    "file_name VARCHAR(255) NOT NULL, " +
+                    "file_path VARCHAR(500), " +
+                    "file_size BIGINT NOT NULL, " +
+                    "file_type VARCHAR(50) NOT NULL, " +
+                    "owner_phone VARCHAR(10) NOT NULL, " +
+                    "receiver_phone VARCHAR(10), " +
+                    "uploaded_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "is_delivered BOOLEAN DEFAULT FALSE)",
+
+                "CREATE TABLE IF NOT EXISTS encryption_keys (" +
+                    "id VARCHAR(36) PRIMARY KEY, " +
+                    "user_phone VARCHAR(10) NOT NULL, " +
+                    "public_key BLOB NOT NULL, " +
+                    "private_key BLOB, " +
+                    "symmetric_key BLOB, " +
+                    "key_type VARCHAR(20) DEFAULT 'RSA', " +
+                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "is_active BOOLEAN DEFAULT TRUE)",
+
+                "CREATE TABLE IF NOT EXISTS key_store (" +
+                    "id VARCHAR(36) PRIMARY KEY, " +
+                    "key_owner VARCHAR(10) NOT NULL, " +
+                    "key_data BLOB NOT NULL, " +
+                    "key_type VARCHAR(20) NOT NULL, " +
+                    "key_purpose VARCHAR(50), " +
+                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "expires_at TIMESTAMP, " +
+                    "is_valid BOOLEAN DEFAULT TRUE)",
+
+                "CREATE TABLE IF NOT EXISTS p2p_connections (" +
+                    "id VARCHAR(36) PRIMARY KEY, " +
+                    "user1_phone VARCHAR(10) NOT NULL, " +
+                    "user2_phone VARCHAR(10) NOT NULL, " +
+                    "connection_type VARCHAR(20) DEFAULT 'DIRECT', " +
+                    "local_address VARCHAR(45), " +
+                    "remote_address VARCHAR(45), " +
+                    "local_port INT, " +
+                    "remote_port INT, " +
+                    "session_key BLOB, " +
+                    "status VARCHAR(20) DEFAULT 'ACTIVE', " +
+                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "last_activity TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "total_bytes_sent BIGINT DEFAULT 0, " +
+                    "total_bytes_received BIGINT DEFAULT 0)",
+
+                "CREATE INDEX idx_messages_sender ON messages(sender_phone)",
+                "CREATE INDEX idx_messages_receiver ON messages(receiver_phone)",
+                "CREATE INDEX idx_messages_conversation ON messages(conversation_id)",
+                "CREATE INDEX idx_messages_created ON messages(created_at)",
+                "CREATE INDEX idx_file_chunks_file_id ON file_chunks(file_id)",
+                "CREATE INDEX idx_file_chunks_owner ON file_chunks(owner_phone)",
+                "CREATE INDEX idx_encryption_keys_user ON encryption_keys(user_phone)",
+                "CREATE INDEX idx_p2p_connections_users ON p2p_connections(user1_phone, user2_phone)",
+                "CREATE INDEX idx_p2p_connections_status ON p2p_connections(status)",
+                "CREATE INDEX idx_conversations_users ON conversations(user1_phone, user2_phone)"),
+
+        // Keyset paging and conversation range scans; the leading sender_phone
+        // of idx_messages_participants also serves sender-only lookups
+        new Migration(2, "Composite message indexes",
+                "DROP INDEX idx_messages_sender ON messages",
+                "CREATE INDEX idx_messages_participants ON messages(sender_phone, receiver_phone, created_at)",
+                "DROP INDEX idx_messages_receiver ON messages",
+                "CREATE INDEX idx_messages_receiver ON messages(receiver_phone, created_at)",
+                "DROP INDEX idx_messages_conversation ON messages",
+                "CREATE INDEX idx_messages_conversation ON messages(conversation_id, created_at)"),
+
+        // Lets concurrent findOrCreateConversation calls converge on one row. Duplicate
+        // rows for a pair (in either order) are merged into the lowest id first: their
+        // messages move to it, it takes the newest last message, and the rest are deleted.
+        new Migration(3, "Unique conversation pairs",
+                "UPDATE messages m JOIN (SELECT c.id AS duplicate_id, k.keep_id FROM conversations c JOIN (" +
+                        "SELECT LEAST(user1_phone, user2_phone) AS user1, GREATEST(user1_phone, user2_phone) AS user2, " +
+                        "MIN(id) AS keep_id FROM conversations " +
+                        "GROUP BY LEAST(user1_phone, user2_phone), GREATEST(user1_phone, user2_phone) HAVING COUNT(*) > 1) k " +
+                    "ON LEAST(c.user1_phone, c.user2_phone) = k.user1 AND GREATEST(c.user1_phone, c.user2_phone) = k.user2 " +
+                    "WHERE c.id <> k.keep_id) d ON m.conversation_id = d.duplicate_id " +
+                    "SET m.conversation_id = d.keep_id",
+                "UPDATE conversations k JOIN (" +
+                        "SELECT LEAST(user1_phone, user2_phone) AS user1, GREATEST(user1_phone, user2_phone) AS user2, " +
+                        "MIN(id) AS keep_id, MAX(last_message_time) AS last_time FROM conversations " +
+                        "GROUP BY LEAST(user1_phone, user2_phone), GREATEST(user1_phone, user2_phone) HAVING COUNT(*) > 1) g " +
+                    "ON k.id = g.keep_id " +
+                    "JOIN conversations d ON LEAST(d.user1_phone, d.user2_phone) = g.user1 " +
+                    "AND GREATEST(d.user1_phone, d.user2_phone) = g.user2 AND d.last_message_time = g.last_time " +
+                    "SET k.last_message = d.last_message, k.last_message_time = d.last_message_time",
+                "DELETE c FROM conversations c JOIN (" +
+                        "SELECT LEAST(user1_phone, user2_phone) AS user1, GREATEST(user1_phone, user2_phone) AS user2, " +
+                        "MIN(id) AS keep_id FROM conversations " +
+                        "GROUP BY LEAST(user1_phone, user2_phone), GREATEST(user1_phone, user2_phone) HAVING COUNT(*) > 1) k " +
+                    "ON LEAST(c.user1_phone, c.user2_phone) = k.user1 AND GREATEST(c.user1_phone, c.user2_phone) = k.user2 " +
+                    "AND c.id <> k.keep_id",
+                "CREATE UNIQUE INDEX uq_conversations_users ON conversations(user1_phone, user2_phone)",
+                "DROP INDEX idx_conversations_users ON conversations"),
+
+        // MATCH ... AGAINST for server-side search instead of LIKE '%...%' scans
+        new Migration(4, "Full-text message search",
+                "CREATE FULLTEXT INDEX ft_messages_text ON messages(content, file_name)"),
+
+        // Counts kept current by triggers, so stats never scan messages. Unread means
+        // status DELIVERED, counted for the receiver and on their side of the conversation.
+        // Triggers go in before the recount, which overwrites with absolute values; the
+        // recount holds table locks so no write lands between a count and its store.
+        // CREATE TRIGGER needs the TRIGGER privilege, and with binary logging on either
+        // SUPER or log_bin_trust_function_creators=1 (see TRIGGER_PRIVILEGE_ERRORS).
+        new Migration(5, "Maintained message counters",
+                "CREATE TABLE IF NOT EXISTS user_message_stats (" +
+                    "phone VARCHAR(10) PRIMARY KEY, " +
+                    "sent_count BIGINT NOT NULL DEFAULT 0, " +
+                    "received_count BIGINT NOT NULL DEFAULT 0, " +
+                    "unread_count BIGINT NOT NULL DEFAULT 0)",
+
+                "CREATE TABLE IF NOT EXISTS table_counts (" +
+                    "table_name VARCHAR(64) PRIMARY KEY, " +
+                    "row_count BIGINT NOT NULL DEFAULT 0)",
+
+                "ALTER TABLE conversations ADD COLUMN user1_unread INT NOT NULL DEFAULT 0",
+                "ALTER TABLE conversations ADD COLUMN user2_unread INT NOT NULL DEFAULT 0",
+
+                "DROP TRIGGER IF EXISTS trg_messages_count_insert",
+                "CREATE TRIGGER trg_messages_count_insert AFTER INSERT ON messages FOR EACH ROW BEGIN " +
+                    "INSERT INTO table_counts (table_name, row_count) VALUES ('messages', 1) " +
+                        "ON DUPLICATE KEY UPDATE row_count = row_count + 1; " +
+                    "INSERT INTO user_message_stats (phone, sent_count) VALUES (NEW.sender_phone, 1) " +
+                        "ON DUPLICATE KEY UPDATE sent_count = sent_count + 1; " +
+                    "INSERT INTO user_message_stats (phone, received_count, unread_count) " +
+                        "VALUES (NEW.receiver_phone, 1, NEW.status <=> 'DELIVERED') " +
+                        "ON DUPLICATE KEY UPDATE received_count = received_count + 1, " +
+                        "unread_count = unread_count + (NEW.status <=> 'DELIVERED'); " +
+                    "IF NEW.status <=> 'DELIVERED' AND NEW.conversation_id IS NOT NULL THEN " +
+                        "UPDATE conversations SET unread_count = unread_count + 1, " +
+                            "user1_unread = user1_unread + (user1_phone = NEW.receiver_phone), " +
+                            "user2_unread = user2_unread + (user1_phone <> NEW.receiver_phone) " +
+                            "WHERE id = NEW.conversation_id; " +
+                    "END IF; " +
+                "END",
+
+                // Covers reads, deliveries and conversation_id backfills
+                "DROP TRIGGER IF EXISTS trg_messages_count_update",
+                "CREATE TRIGGER trg_messages_count_update AFTER UPDATE ON messages FOR EACH ROW BEGIN " +
+                    "IF NOT (OLD.status <=> NEW.status) OR OLD.receiver_phone <> NEW.receiver_phone THEN " +
+                        "UPDATE user_message_stats SET unread_count = unread_count - 1 " +
+                            "WHERE phone = OLD.receiver_phone AND OLD.status <=> 'DELIVERED'; " +
+                        "UPDATE user_message_stats SET unread_count = unread_count + 1 " +
+                            "WHERE phone = NEW.receiver_phone AND NEW.status <=> 'DELIVERED'; " +
+                    "END IF; " +
+                    "IF NOT (OLD.status <=> NEW.status) OR NOT (OLD.conversation_id <=> NEW.conversation_id) THEN " +
+                        "UPDATE conversations SET unread_count = unread_count - 1, " +
+                            "user1_unread = user1_unread - (user1_phone = OLD.receiver_phone), " +
+                            "user2_unread = user2_unread - (user1_phone <> OLD.receiver_phone) " +
+                            "WHERE id = OLD.conversation_id AND OLD.status <=> 'DELIVERED'; " +
+                        "UPDATE conversations SET unread_count = unread_count + 1, " +
+                            "user1_unread = user1_unread + (user1_phone = NEW.receiver_phone), " +
+                            "user2_unread = user2_unread + (user1_phone <> NEW.receiver_phone) " +
+                            "WHERE id = NEW.conversation_id AND NEW.status <=> 'DELIVERED'; " +
+                    "END IF; " +
+                "END",
+
+                "DROP TRIGGER IF EXISTS trg_messages_count_delete",
+                "CREATE TRIGGER trg_messages_count_delete AFTER DELETE ON messages FOR EACH ROW BEGIN " +
+                    "UPDATE table_counts SET row_count = row_count - 1 WHERE table_name = 'messages'; " +
+                    "UPDATE user_message_stats SET sent_count = sent_count - 1 WHERE phone = OLD.sender_phone; " +
+                    "UPDATE user_message_stats SET received_count = received_count - 1, " +
+                        "unread_count = unread_count - (OLD.status <=> 'DELIVERED') WHERE phone = OLD.receiver_phone; " +
+                    "UPDATE conversations SET unread_count = unread_count - 1, " +
+                        "user1_unread = user1_unread - (user1_phone = OLD.receiver_phone), " +
+                        "user2_unread = user2_unread - (user1_phone <> OLD.receiver_phone) " +
+                        "WHERE id = OLD.conversation_id AND OLD.status <=> 'DELIVERED'; " +
+                "END",
+
+                "LOCK TABLES messages READ, messages AS m READ, conversations WRITE, conversations AS c WRITE, " +
+                    "table_counts WRITE, user_message_stats WRITE",
+                "INSERT INTO table_counts (table_name, row_count) SELECT 'messages', COUNT(*) FROM messages " +
+                    "ON DUPLICATE KEY UPDATE row_count = VALUES(row_count)",
+                "INSERT INTO user_message_stats (phone, sent_count) " +
+                    "SELECT sender_phone, COUNT(*) FROM messages GROUP BY sender_phone " +
+                    "ON DUPLICATE KEY UPDATE sent_count = VALUES(sent_count)",
+                "INSERT INTO user_message_stats (phone, received_count, unread_count) " +
+                    "SELECT receiver_phone, COUNT(*), SUM(status <=> 'DELIVERED') FROM messages GROUP BY receiver_phone " +
+                    "ON DUPLICATE KEY UPDATE received_count = VALUES(received_count), unread_count = VALUES(unread_count)",
+                "UPDATE conversations c SET " +
+                    "user1_unread = (SELECT COUNT(*) FROM messages m WHERE m.conversation_id = c.id " +
+                        "AND m.receiver_phone = c.user1_phone AND m.status = 'DELIVERED'), " +
+                    "user2_unread = (SELECT COUNT(*) FROM messages m WHERE m.conversation_id = c.id " +
+                        "AND m.receiver_phone <> c.user1_phone AND m.status = 'DELIVERED'), " +
+                    "unread_count = user1_unread + user2_unread",
+                "UNLOCK TABLES"),
+
+        // Peer downloads look up the announcing message by file id
+        new Migration(6, "Index messages by file id",
+                "CREATE INDEX idx_messages_file_id ON messages(file_id)"),
+
+        // Stored files are deduplicated by SHA-256; rows sharing a hash reference one blob
+        new Migration(7, "Content hash for stored files",
+                "ALTER TABLE file_chunks ADD COLUMN content_hash CHAR(64) NULL",
+                "CREATE INDEX idx_file_chunks_content_hash ON file_chunks(content_hash)"),
+
+        // Rows stored before conversation_id was stamped; conversations created here
+        // take their last message from the newest message of the pair. Runs once.
+        new Migration(8, "Backfill message conversation ids",
+                "INSERT INTO conversations (user1_phone, user2_phone, last_message, last_message_time) " +
+                    "SELECT p.user1, p.user2, (SELECT m.content FROM messages m " +
+                        "WHERE LEAST(m.sender_phone, m.receiver_phone) = p.user1 " +
+                        "AND GREATEST(m.sender_phone, m.receiver_phone) = p.user2 " +
+                        "ORDER BY m.created_at DESC, m.id DESC LIMIT 1), p.last_time " +
+                    "FROM (SELECT LEAST(sender_phone, receiver_phone) AS user1, " +
+                        "GREATEST(sender_phone, receiver_phone) AS user2, MAX(created_at) AS last_time " +
+                        "FROM messages WHERE conversation_id IS NULL " +
+                        "GROUP BY LEAST(sender_phone, receiver_phone), GREATEST(sender_phone, receiver_phone)) p " +
+                    "WHERE NOT EXISTS (SELECT 1 FROM conversations c " +
+                        "WHERE (c.user1_phone = p.user1 AND c.user2_phone = p.user2) " +
+                        "OR (c.user1_phone = p.user2 AND c.user2_phone = p.user1))",
+                // The V5 update trigger writes conversations, so the update joins a copy (MySQL error 1442)
+                "CREATE TEMPORARY TABLE backfill_pairs (INDEX (sender_phone, receiver_phone)) " +
+                    "SELECT id, user1_phone AS sender_phone, user2_phone AS receiver_phone FROM conversations " +
+                    "UNION ALL SELECT id, user2_phone, user1_phone FROM conversations",
+                "UPDATE messages m JOIN backfill_pairs p " +
+                    "ON p.sender_phone = m.sender_phone AND p.receiver_phone = m.receiver_phone " +
+                    "SET m.conversation_id = p.id WHERE m.conversation_id IS NULL",
+                "DROP TEMPORARY TABLE backfill_pairs")
+    );
+
+    public static List<Migration> getMigrations() {
+        return Collections.unmodifiableList(MIGRATIONS);
+    }
+
+    public static void migrate(Connection conn) throws SQLException {
+        Map<Integer, String> applied = readApplied(conn);
+        if (applied != null && verify(applied)) {
+            return;
+        }
+
+        try (Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT GET_LOCK('" + LOCK_NAME + "', " + LOCK_TIMEOUT_SECONDS + ")")) {
+                if (!rs.next() || rs.getInt(1) != 1) {
+                    throw new SQLException("Timed out waiting for the schema migration lock");
+                }
+            }
+            try {
+                stmt.execute("CREATE TABLE IF NOT EXISTS schema_version (" +
+                        "version INT PRIMARY KEY, " +
+                        "description VARCHAR(200) NOT NULL, " +
+                        "checksum CHAR(64) NOT NULL, " +
+                        "applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                        "execution_ms BIGINT)");
+                // Another instance may have migrated while we waited for the lock
+                applied = readApplied(conn);
+                if (verify(applied)) {
+                    return;
+                }
+                for (Migration migration : MIGRATIONS) {
+                    if (!applied.containsKey(migration.getVersion())) {
+                        apply(conn, migration);
+                    }
+                }
+            } finally {
+                stmt.executeQuery("SELECT RELEASE_LOCK('" + LOCK_NAME + "')").close();
+            }
+        }
+    }
+
+    // Applied version -> checksum, or null when schema_version does not exist yet
+    private static Map<Integer, String> readApplied(Connection conn) throws SQLException {
+        Map<Integer, String> applied = new HashMap<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT version, checksum FROM schema_version")) {
+            while (rs.next()) {
+                applied.put(rs.getInt("version"), rs.getString("checksum"));
+            }
+        } catch (SQLException e) {
+            if (e.getErrorCode() == NO_SUCH_TABLE) {
+                return null;
+            }
+            throw e;
+        }
+        return applied;
+    }
+
+    // Throws on a checksum mismatch; returns true when nothing is pending
+    private static boolean verify(Map<Integer, String> applied) throws SQLException {
+        boolean upToDate = true;
+        for (Migration migration : MIGRATIONS) {
+            String checksum = applied.get(migration.getVersion());
+            if (checksum == null) {
+                upToDate = false;
+            } else if (!checksum.equals(migration.getChecksum())) {
+                throw new SQLException("Schema migration " + migration.getVersion() + " (" + migration.getDescription() +
+                        ") was changed after it was applied");
+            }
+        }
+        return upToDate;
+    }
+
+    private static void apply(Connection conn, Migration migration) throws SQLException {
+        System.out.println("🔄 Applying schema migration " + migration.getVersion() + ": " + migration.getDescription());
+        long start = System.currentTimeMillis();
+
+        try (Statement stmt = conn.createStatement()) {
+            for (String sql : migration.getStatements()) {
+                try {
+                    stmt.execute(sql);
+                } catch (SQLException e) {
+                    if (sql.startsWith("CREATE TRIGGER") && TRIGGER_PRIVILEGE_ERRORS.contains(e.getErrorCode())) {
+                        throw new SQLException("Schema migration " + migration.getVersion() + " needs to create triggers: " +
+                                "grant the database user TRIGGER, and with binary logging on either SUPER or " +
+                                "SET GLOBAL log_bin_trust_function_creators = 1 (" + e.getMessage() + ")",
+                                e.getSQLState(), e.getErrorCode(), e);
+                    }
+                    if (!ALREADY_APPLIED_ERRORS.contains(e.getErrorCode())) {
+                        // A failed step inside LOCK TABLES must not leave the tables locked
+                        stmt.execute("UNLOCK TABLES");
+                        throw new SQLException("Schema migration " + migration.getVersion() + " failed on: " + sql +
+                                " (" + e.getMessage() + ")", e.getSQLState(), e.getErrorCode(), e);
+                    }
+                }
+            }
+        }
+
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                "INSERT INTO schema_version (version, description, checksum, execution_ms) VALUES (?, ?, ?, ?)")) {
+            pstmt.setInt(1, migration.getVersion());
+            pstmt.setString(2, migration.getDescription());
+            pstmt.setString(3, migration.getChecksum());
+            pstmt.setLong(4, System.currentTimeMillis() - start);
+            pstmt.executeUpdate();
+        }
+        System.out.println("✅ Schema migration " + migration.getVersion() + " applied");
+    }
+}
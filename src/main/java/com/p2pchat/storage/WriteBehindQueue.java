@@ -0,0 +1,755 @@
+package com.p2pchat.storage;
+
+import com.p2pchat.core.models.Message;
+import com.p2pchat.storage.dao.ConversationDAO;
+import com.p2pchat.storage.dao.MessageDAO;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-behind stage for message inserts, status changes and conversation
+ * updates, so the send path never waits for MySQL.
+ *
+ * Writes are appended to a local WAL and buffered in memory; a background
+ * thread flushes them as JDBC batches when batchSize operations are pending
+ * or every flushIntervalMs. Status changes are coalesced per message and
+ * conversation updates per user pair (last one wins). A write is fsynced to
+ * the WAL before it returns; concurrent writers share one fsync (group
+ * commit). On each flush the WAL is rotated; the rotated file is deleted once
+ * its batch committed, and any leftover WAL files are replayed on startup.
+ * Message inserts use INSERT IGNORE, so replaying a batch that did commit is
+ * harmless.
+ *
+ * A batch that fails while MySQL is reachable is split in halves until the
+ * failing rows are isolated; a row that fails MAX_ROW_ATTEMPTS flushes in a
+ * row is moved to the dead-letter file (same record format as the WAL) so it
+ * cannot hold back the rest. While MySQL is down the backlog is kept, and
+ * once it reaches maxBacklog writers wait for it to drain and then fail.
+ *
+ * A write whose WAL append or fsync fails is refused with
+ * IllegalStateException, so the caller can write synchronously instead. A
+ * partly written record is truncated off the WAL; if that (or the fsync)
+ * fails, the WAL takes no more writes until the next flush seals it.
+ */
+public class WriteBehindQueue {
+    private static final String WAL_FILE = "write-behind.wal";
+    private static final String FLUSHING_SUFFIX = ".flushing";
+    private static final String DEAD_LETTER_FILE = "write-behind.dead";
+    private static final int MAX_ROW_ATTEMPTS = 3;
+    private static final long BACKPRESSURE_WAIT_MS = 5000;
+    private static final byte OP_MESSAGE = 1;
+    private static final byte OP_STATUS = 2;
+    private static final byte OP_CONVERSATION = 3;
+
+    private final MessageDAO messageDAO;
+    private final ConversationDAO conversationDAO;
+    private final ConversationIdCache conversationIds;
+    private final Path walDir;
+    private final int batchSize;
+    private final int maxBacklog;
+    private final ScheduledExecutorService flusher;
+    // Guards the pending batch, the backlog count and appends to the active WAL
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when a flush shrinks the backlog
+    private final Condition drained = lock.newCondition();
+    // Only one flush at a time, so batches commit in order; guards retry and rowFailures
+    private final ReentrantLock flushLock = new ReentrantLock();
+    // Guards syncedSequence and forcing/closing the WAL channel
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private Batch pending = new Batch();
+    // A batch whose commit failed; retried ahead of newer writes
+    private Batch retry;
+    // Writes taken out of pending but not yet committed (guarded by lock)
+    private int backlog = 0;
+    // Consecutive failed flushes per row, see itemKey()
+    private final Map<String, Integer> rowFailures = new HashMap<>();
+    private final List<Path> unflushedWals = new ArrayList<>();
+    private volatile FileChannel wal;
+    private volatile long appendedSequence = 0;
+    private long syncedSequence = 0;
+    private long walSequence = 0;
+    private boolean flushRequested = false;
+    // Set when the WAL may hold a torn or unsynced record; cleared by rotateWal
+    private volatile boolean walDamaged = false;
+    private boolean closed = false;
+
+    // Metrics
+    private long flushCount = 0;
+    private long failedFlushCount = 0;
+    private long writtenMessages = 0;
+    private long deadLetterCount = 0;
+
+    private static final class Batch {
+        final List<Message> messages = new ArrayList<>();
+        final Map<String, Message.MessageStatus> statuses = new LinkedHashMap<>();
+        // normalized pair -> {user1, user2, lastMessage, lastMessageTime}
+        final Map<String, Object[]> conversations = new LinkedHashMap<>();
+
+        int size() {
+            return messages.size() + statuses.size() + conversations.size();
+        }
+
+        void addAll(Batch other) {
+            messages.addAll(other.messages);
+            statuses.putAll(other.statuses);
+            conversations.putAll(other.conversations);
+        }
+
+        // Splits in item order: messages, then statuses, then conversations
+        Batch[] halves() {
+            int half = size() / 2;
+            int index = 0;
+            Batch first = new Batch();
+            Batch second = new Batch();
+            for (Message message : messages) {
+                (index++ < half ? first : second).messages.add(message);
+            }
+            for (Map.Entry<String, Message.MessageStatus> status : statuses.entrySet()) {
+                (index++ < half ? first : second).statuses.put(status.getKey(), status.getValue());
+            }
+            for (Map.Entry<String, Object[]> conversation : conversations.entrySet()) {
+                (index++ < half ? first : second).conversations.put(conversation.getKey(), conversation.getValue());
+            }
+            return new Batch[]{first, second};
+        }
+
+        // Key of a single-item batch, stable across retries
+        String itemKey() {
+            if (!messages.isEmpty()) {
+                return "message:" + messages.get(0).getId();
+            }
+            if (!statuses.isEmpty()) {
+                return "status:" + statuses.keySet().iterator().next();
+            }
+            return "conversation:" + conversations.keySet().iterator().next();
+        }
+    }
+
+    public WriteBehindQueue(MessageDAO messageDAO, ConversationDAO conversationDAO, ConversationIdCache conversationIds,
+                            Path walDir, int batchSize, long flushIntervalMs, int maxBacklog) throws IOException {
+        this.messageDAO = messageDAO;
+        this.conversationDAO = conversationDAO;
+        this.conversationIds = conversationIds;
+        this.walDir = walDir;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxBacklog = Math.max(this.batchSize, maxBacklog);
+        Files.createDirectories(walDir);
+
+        recover();
+        openWal();
+
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "db-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, flushIntervalMs);
+        flusher.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public void saveMessage(Message message) {
+        append(messageRecord(message), batch -> batch.messages.add(message));
+    }
+
+    public void updateMessageStatus(String messageId, Message.MessageStatus status) {
+        append(statusRecord(messageId, status), batch -> batch.statuses.put(messageId, status));
+    }
+
+    public void updateConversation(String user1Phone, String user2Phone, String lastMessage, LocalDateTime lastMessageTime) {
+        append(conversationRecord(user1Phone, user2Phone, lastMessage, lastMessageTime),
+                batch -> putConversation(batch, user1Phone, user2Phone, lastMessage, lastMessageTime));
+    }
+
+    private static byte[] messageRecord(Message message) {
+        return encode(OP_MESSAGE, out -> {
+            writeString(out, message.getId());
+            writeString(out, message.getSenderPhone());
+            writeString(out, message.getReceiverPhone());
+            writeString(out, message.getMessageType().name());
+            writeString(out, message.getContent());
+            writeString(out, message.getFileName());
+            out.writeLong(message.getFileSize() != null ? message.getFileSize() : -1);
+            writeString(out, message.getFilePath());
+            writeString(out, message.getFileId());
+            writeString(out, message.getFileType());
+            writeString(out, message.getStatus().name());
+            writeString(out, message.getCreatedAt().toString());
+        });
+    }
+
+    private static byte[] statusRecord(String messageId, Message.MessageStatus status) {
+        return encode(OP_STATUS, out -> {
+            writeString(out, messageId);
+            writeString(out, status.name());
+        });
+    }
+
+    private static byte[] conversationRecord(String user1Phone, String user2Phone, String lastMessage, LocalDateTime lastMessageTime) {
+        return encode(OP_CONVERSATION, out -> {
+            writeString(out, user1Phone);
+            writeString(out, user2Phone);
+            writeString(out, lastMessage);
+            writeString(out, lastMessageTime.toString());
+        });
+    }
+
+    private static List<byte[]> records(Batch batch) {
+        List<byte[]> records = new ArrayList<>(batch.size());
+        for (Message message : batch.messages) {
+            records.add(messageRecord(message));
+        }
+        for (Map.Entry<String, Message.MessageStatus> status : batch.statuses.entrySet()) {
+            records.add(statusRecord(status.getKey(), status.getValue()));
+        }
+        for (Object[] conversation : batch.conversations.values()) {
+            records.add(conversationRecord((String) conversation[0], (String) conversation[1],
+                    (String) conversation[2], (LocalDateTime) conversation[3]));
+        }
+        return records;
+    }
+
+    // Blocks until everything enqueued so far has been written to MySQL (or failed)
+    public boolean flush() {
+        flushLock.lock();
+        try {
+            Batch batch;
+            lock.lock();
+            try {
+                flushRequested = false;
+                if (pending.size() == 0 && retry == null && !walDamaged) {
+                    return true;
+                }
+                batch = pending;
+                pending = new Batch();
+                backlog += batch.size();
+                if (batch.size() > 0 || walDamaged) {
+                    rotateWal();
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (retry != null) {
+                retry.addAll(batch);
+                batch = retry;
+                retry = null;
+            }
+
+            Batch failed = writeIsolatingFailures(batch);
+            try {
+                if (failed.size() > 0) {
+                    retry = failed;
+                    failedFlushCount++;
+                    // Rows that committed or were dead-lettered must not be replayed: keep only the failures
+                    if (failed != batch) {
+                        replaceWals(failed);
+                    }
+                } else {
+                    flushCount++;
+                    for (Path file : unflushedWals) {
+                        Files.deleteIfExists(file);
+                    }
+                    unflushedWals.clear();
+                }
+            } finally {
+                writtenMessages += batch.messages.size() - failed.messages.size();
+                setBacklog(failed.size());
+            }
+            return failed.size() == 0;
+        } catch (IOException e) {
+            System.err.println("❌ Write-behind WAL error: " + e.getMessage());
+            return false;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            stats.put("pending", pending.size());
+            stats.put("retrying", backlog);
+        } finally {
+            lock.unlock();
+        }
+        flushLock.lock();
+        try {
+            stats.put("flushes", flushCount);
+            stats.put("failedFlushes", failedFlushCount);
+            stats.put("messagesWritten", writtenMessages);
+            stats.put("deadLettered", deadLetterCount);
+        } finally {
+            flushLock.unlock();
+        }
+        return stats;
+    }
+
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        lock.lock();
+        syncLock.lock();
+        try {
+            closed = true;
+            drained.signalAll();
+            if (wal != null) {
+                wal.close();
+                wal = null;
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Error closing write-behind WAL: " + e.getMessage());
+        } finally {
+            syncLock.unlock();
+            lock.unlock();
+        }
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private interface BatchUpdate {
+        void apply(Batch batch);
+    }
+
+    private static byte[] encode(byte op, RecordWriter writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream record = new DataOutputStream(bytes)) {
+            record.writeByte(op);
+            writer.write(record);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void append(byte[] payload, BatchUpdate update) {
+        ByteBuffer record = recordBuffer(payload);
+        boolean triggerFlush;
+        long sequence;
+        lock.lock();
+        try {
+            awaitBacklogRoom();
+            if (walDamaged) {
+                throw new IllegalStateException("Write-behind WAL is damaged until the next flush seals it");
+            }
+            long start = -1;
+            try {
+                start = wal.size();
+                while (record.hasRemaining()) {
+                    wal.write(record);
+                }
+            } catch (IOException e) {
+                if (start >= 0) {
+                    discardTornRecord(start);
+                }
+                throw new IllegalStateException("Write-behind WAL append failed: " + e.getMessage(), e);
+            }
+            sequence = ++appendedSequence;
+            update.apply(pending);
+            triggerFlush = pending.size() >= batchSize && !flushRequested;
+            if (triggerFlush) {
+                flushRequested = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (triggerFlush) {
+            flusher.execute(this::flushQuietly);
+        }
+        sync(sequence);
+    }
+
+    // Called with lock held: cuts a partly written record off the WAL, so records after it stay readable
+    private void discardTornRecord(long start) {
+        try {
+            wal.truncate(start);
+        } catch (IOException e) {
+            System.err.println("❌ Write-behind WAL truncate failed: " + e.getMessage());
+            markWalDamaged();
+        }
+    }
+
+    // Sealing the WAL leaves a torn record at the end of its file, where replay stops anyway
+    private void markWalDamaged() {
+        walDamaged = true;
+        try {
+            flusher.execute(this::flushQuietly);
+        } catch (RejectedExecutionException e) {
+            // Closing: close() flushes once more
+        }
+    }
+
+    // Called with lock held: blocks while MySQL is too far behind, then gives up
+    private void awaitBacklogRoom() {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(BACKPRESSURE_WAIT_MS);
+        boolean waited = false;
+        while (!closed && pending.size() + backlog >= maxBacklog) {
+            // One early flush; after that the regular interval paces retries
+            if (!waited && !flushRequested) {
+                flushRequested = true;
+                flusher.execute(this::flushQuietly);
+            }
+            waited = true;
+            if (remaining <= 0) {
+                throw new IllegalStateException("Write-behind backlog is full (" + maxBacklog + " writes waiting for MySQL)");
+            }
+            try {
+                remaining = drained.awaitNanos(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for the write-behind backlog to drain");
+            }
+        }
+        if (closed) {
+            throw new IllegalStateException("Write-behind queue is closed");
+        }
+    }
+
+    private void setBacklog(int size) {
+        lock.lock();
+        try {
+            backlog = size;
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Group commit: the first writer to get here forces everything appended so far
+    private void sync(long sequence) {
+        syncLock.lock();
+        try {
+            if (syncedSequence >= sequence || wal == null) {
+                return;
+            }
+            // After a failed fsync a retry may report success for pages the kernel already dropped
+            if (walDamaged) {
+                throw new IllegalStateException("Write-behind WAL sync failed earlier; waiting for the next flush to seal it");
+            }
+            long target = appendedSequence;
+            wal.force(false);
+            syncedSequence = target;
+        } catch (IOException e) {
+            markWalDamaged();
+            throw new IllegalStateException("Write-behind WAL sync failed: " + e.getMessage(), e);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            System.err.println("❌ Write-behind flush failed: " + e.getMessage());
+        }
+    }
+
+    private boolean writeQuietly(Batch batch) {
+        try {
+            return write(batch);
+        } catch (RuntimeException e) {
+            System.err.println("❌ Write-behind batch failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean write(Batch batch) {
+        for (Message message : batch.messages) {
+            if (message.getConversationId() == null) {
+                Long id = conversationIds.get(message.getSenderPhone(), message.getReceiverPhone());
+                if (id == null) {
+                    return false;
+                }
+                message.setConversationId(id);
+            }
+        }
+        if (!batch.messages.isEmpty() && !messageDAO.saveAll(batch.messages)) {
+            return false;
+        }
+        // After the inserts, so a status for a message in this batch finds its row
+        if (!batch.statuses.isEmpty() && !messageDAO.updateStatuses(batch.statuses)) {
+            return false;
+        }
+        if (!batch.conversations.isEmpty()) {
+            List<Object[]> updates = new ArrayList<>(batch.conversations.size());
+            for (Object[] conversation : batch.conversations.values()) {
+                Long id = conversationIds.get((String) conversation[0], (String) conversation[1]);
+                if (id == null) {
+                    return false;
+                }
+                updates.add(new Object[]{id, conversation[2], conversation[3]});
+            }
+            return conversationDAO.updateConversations(updates);
+        }
+        return true;
+    }
+
+    // Returns the writes still to retry; the batch itself when MySQL is unreachable
+    private Batch writeIsolatingFailures(Batch batch) {
+        if (writeQuietly(batch)) {
+            rowFailures.clear();
+            return new Batch();
+        }
+        try {
+            if (!DatabaseConnection.isConnected()) {
+                return batch;
+            }
+            Batch failed = new Batch();
+            isolateFailures(batch, failed);
+            return deadLetterRepeatFailures(failed);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("❌ Write-behind failure isolation failed: " + e.getMessage());
+            return batch;
+        }
+    }
+
+    // Bisects a failing batch; rows that still fail on their own end up in failed
+    private void isolateFailures(Batch batch, Batch failed) {
+        if (batch.size() == 1) {
+            failed.addAll(batch);
+            return;
+        }
+        for (Batch half : batch.halves()) {
+            if (half.size() > 0 && !writeQuietly(half)) {
+                isolateFailures(half, failed);
+            }
+        }
+    }
+
+    // Counts another failure for each row and moves rows out of the way after MAX_ROW_ATTEMPTS
+    private Batch deadLetterRepeatFailures(Batch failed) throws IOException {
+        Batch keep = new Batch();
+        Batch dead = new Batch();
+        Map<String, Integer> counts = new HashMap<>();
+        for (Batch item : singles(failed)) {
+            String key = item.itemKey();
+            int attempts = rowFailures.getOrDefault(key, 0) + 1;
+            counts.put(key, attempts);
+            (attempts >= MAX_ROW_ATTEMPTS ? dead : keep).addAll(item);
+        }
+        rowFailures.clear();
+        rowFailures.putAll(counts);
+        if (dead.size() > 0) {
+            try (FileChannel channel = FileChannel.open(walDir.resolve(DEAD_LETTER_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                writeRecords(channel, records(dead));
+                channel.force(false);
+            }
+            deadLetterCount += dead.size();
+            // flush() counts every message that left the batch as written
+            writtenMessages -= dead.messages.size();
+            System.err.println("❌ Write-behind gave up on " + dead.size() + " writes after " + MAX_ROW_ATTEMPTS
+                    + " attempts; moved to " + walDir.resolve(DEAD_LETTER_FILE));
+        }
+        return keep;
+    }
+
+    private static List<Batch> singles(Batch batch) {
+        List<Batch> singles = new ArrayList<>(batch.size());
+        for (Message message : batch.messages) {
+            Batch single = new Batch();
+            single.messages.add(message);
+            singles.add(single);
+        }
+        for (Map.Entry<String, Message.MessageStatus> status : batch.statuses.entrySet()) {
+            Batch single = new Batch();
+            single.statuses.put(status.getKey(), status.getValue());
+            singles.add(single);
+        }
+        for (Map.Entry<String, Object[]> conversation : batch.conversations.entrySet()) {
+            Batch single = new Batch();
+            single.conversations.put(conversation.getKey(), conversation.getValue());
+            singles.add(single);
+        }
+        return singles;
+    }
+
+    // Replaces the sealed WAL files with one holding just the rows still to retry
+    private void replaceWals(Batch remaining) throws IOException {
+        Path sealed = walDir.resolve(WAL_FILE + "." + System.currentTimeMillis() + "-" + (walSequence++) + FLUSHING_SUFFIX);
+        try (FileChannel channel = FileChannel.open(sealed, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            writeRecords(channel, records(remaining));
+            channel.force(true);
+        }
+        for (Path file : unflushedWals) {
+            Files.deleteIfExists(file);
+        }
+        unflushedWals.clear();
+        unflushedWals.add(sealed);
+    }
+
+    private static void putConversation(Batch batch, String user1, String user2, String lastMessage, LocalDateTime time) {
+        batch.conversations.put(ConversationIdCache.pairKey(user1, user2), new Object[]{user1, user2, lastMessage, time});
+    }
+
+    private void openWal() throws IOException {
+        wal = FileChannel.open(walDir.resolve(WAL_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    // Called with lock held: seals the current WAL so a new one takes further writes
+    private void rotateWal() throws IOException {
+        syncLock.lock();
+        try {
+            wal.force(true);
+            syncedSequence = appendedSequence;
+            wal.close();
+            Path active = walDir.resolve(WAL_FILE);
+            Path sealed = walDir.resolve(WAL_FILE + "." + System.currentTimeMillis() + "-" + (walSequence++) + FLUSHING_SUFFIX);
+            Files.move(active, sealed, StandardCopyOption.ATOMIC_MOVE);
+            unflushedWals.add(sealed);
+            openWal();
+            walDamaged = false;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // Loads WAL files left by a previous run into a retry batch
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(walDir, WAL_FILE + "*")) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        if (files.isEmpty()) {
+            return;
+        }
+        // Sealed files first (oldest to newest), the active file last
+        files.sort((a, b) -> {
+            boolean aActive = a.getFileName().toString().equals(WAL_FILE);
+            boolean bActive = b.getFileName().toString().equals(WAL_FILE);
+            if (aActive != bActive) {
+                return aActive ? 1 : -1;
+            }
+            return a.getFileName().toString().compareTo(b.getFileName().toString());
+        });
+
+        Batch recovered = new Batch();
+        for (Path file : files) {
+            replay(file, recovered);
+            Path sealed = file;
+            if (file.getFileName().toString().equals(WAL_FILE)) {
+                sealed = walDir.resolve(WAL_FILE + "." + System.currentTimeMillis() + "-" + (walSequence++) + FLUSHING_SUFFIX);
+                Files.move(file, sealed, StandardCopyOption.ATOMIC_MOVE);
+            }
+            unflushedWals.add(sealed);
+        }
+        if (recovered.size() > 0) {
+            System.out.println("🔄 Replaying " + recovered.size() + " unflushed writes from " + walDir);
+            retry = recovered;
+            backlog = recovered.size();
+        }
+    }
+
+    private void replay(Path file, Batch batch) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                byte[] payload = readRecord(in);
+                if (payload == null) {
+                    return;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte op = record.readByte();
+                if (op == OP_MESSAGE) {
+                    Message message = new Message(readString(record), readString(record), readString(record),
+                            null, Message.MessageType.valueOf(readString(record)), null, null);
+                    message.setContent(readString(record));
+                    message.setFileName(readString(record));
+                    long fileSize = record.readLong();
+                    message.setFileSize(fileSize >= 0 ? fileSize : null);
+                    message.setFilePath(readString(record));
+                    message.setFileId(readString(record));
+                    message.setFileType(readString(record));
+                    message.setStatus(Message.MessageStatus.valueOf(readString(record)));
+                    message.setCreatedAt(LocalDateTime.parse(readString(record)));
+                    batch.messages.add(message);
+                } else if (op == OP_STATUS) {
+                    batch.statuses.put(readString(record), Message.MessageStatus.valueOf(readString(record)));
+                } else if (op == OP_CONVERSATION) {
+                    putConversation(batch, readString(record), readString(record), readString(record),
+                            LocalDateTime.parse(readString(record)));
+                }
+            }
+        }
+    }
+
+    // [length:4][crc32c:4][payload]
+    private static ByteBuffer recordBuffer(byte[] payload) {
+        ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+        record.putInt(payload.length).putInt(checksum(payload)).put(payload).flip();
+        return record;
+    }
+
+    private static void writeRecords(FileChannel channel, List<byte[]> payloads) throws IOException {
+        for (byte[] payload : payloads) {
+            ByteBuffer record = recordBuffer(payload);
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        }
+    }
+
+    // Returns null at the end of the file or at a torn/corrupt tail
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int crc = in.readInt();
+            if (length <= 0) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            return checksum(payload) == crc ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+}
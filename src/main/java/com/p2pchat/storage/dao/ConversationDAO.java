@@ -8,17 +8,22 @@ import java.util.List;
 
 public class ConversationDAO {
     
+    // Pairs are stored with the smaller phone first, so the unique key covers both directions.
+    // Returns null if the database could not be reached.
     public Long findOrCreateConversation(String user1Phone, String user2Phone) {
-        // Try to find existing conversation
-        String findSql = "SELECT id FROM conversations WHERE (user1_phone = ? AND user2_phone = ?) OR (user1_phone = ? AND user2_phone = ?)";
+        String first = user1Phone.compareTo(user2Phone) < 0 ? user1Phone : user2Phone;
+        String second = first.equals(user1Phone) ? user2Phone : user1Phone;
+        
+        // Also matches rows stored in the other order before pairs were normalized
+        String findSql = "SELECT id FROM conversations WHERE (user1_phone = ? AND user2_phone = ?) OR (user1_phone = ? AND user2_phone = ?) ORDER BY id LIMIT 1";
         
         try (Connection conn = DatabaseConnection.getConnection();
              PreparedStatement stmt = conn.prepareStatement(findSql)) {
             
-            stmt.setString(1, user1Phone);
-            stmt.setString(2, user2Phone);
-            stmt.setString(3, user2Phone);
-            stmt.setString(4, user1Phone);
+            stmt.setString(1, first);
+            stmt.setString(2, second);
+            stmt.setString(3, second);
+            stmt.setString(4, first);
             ResultSet rs = stmt.executeQuery();
             
             if (rs.next()) {
@@ -26,30 +31,30 @@ public class ConversationDAO {
             }
         } catch (SQLException e) {
             System.err.println("Error finding conversation: " + e.getMessage());
+            return null;
         }
         
-        // Create new conversation
-        String insertSql = "INSERT INTO conversations (user1_phone, user2_phone, last_message, last_message_time) VALUES (?, ?, ?, ?)";
+        // A concurrent creator hits the unique key; LAST_INSERT_ID(id) hands back the existing row's id
+        String insertSql = "INSERT INTO conversations (user1_phone, user2_phone, last_message, last_message_time) VALUES (?, ?, ?, ?) " +
+                          "ON DUPLICATE KEY UPDATE id = LAST_INSERT_ID(id)";
         try (Connection conn = DatabaseConnection.getConnection();
              PreparedStatement stmt = conn.prepareStatement(insertSql, Statement.RETURN_GENERATED_KEYS)) {
             
-            stmt.setString(1, user1Phone);
-            stmt.setString(2, user2Phone);
+            stmt.setString(1, first);
+            stmt.setString(2, second);
             stmt.setString(3, "Conversation started");
             stmt.setTimestamp(4, Timestamp.valueOf(LocalDateTime.now()));
             
-            int affectedRows = stmt.executeUpdate();
-            if (affectedRows > 0) {
-                ResultSet rs = stmt.getGeneratedKeys();
-                if (rs.next()) {
-                    return rs.getLong(1);
-                }
+            stmt.executeUpdate();
+            ResultSet rs = stmt.getGeneratedKeys();
+            if (rs.next()) {
+                return rs.getLong(1);
             }
         } catch (SQLException e) {
             System.err.println("Error creating conversation: " + e.getMessage());
         }
         
-        return 1L; // Default conversation ID
+        return null;
     }
     
     public void updateConversation(Long conversationId, String lastMessage, LocalDateTime lastMessageTime) {
@@ -68,15 +73,42 @@ public class ConversationDAO {
         }
     }
     
+    // Each update is {Long conversationId, String lastMessage, LocalDateTime lastMessageTime}
+    public boolean updateConversations(List<Object[]> updates) {
+        String sql = "UPDATE conversations SET last_message = ?, last_message_time = ? WHERE id = ?";
+        
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            
+            conn.setAutoCommit(false);
+            for (Object[] update : updates) {
+                stmt.setString(1, (String) update[1]);
+                stmt.setTimestamp(2, Timestamp.valueOf((LocalDateTime) update[2]));
+                stmt.setLong(3, (Long) update[0]);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            conn.commit();
+            return true;
+        } catch (SQLException e) {
+            System.err.println("Error updating conversations: " + e.getMessage());
+            return false;
+        }
+    }
+    
     public List<Object[]> findByUserPhone(String userPhone) {
         List<Object[]> conversations = new ArrayList<>();
-        String sql = "SELECT user1_phone, user2_phone, last_message, last_message_time, unread_count FROM conversations WHERE user1_phone = ? OR user2_phone = ? ORDER BY last_message_time DESC";
+        // Unread is per side: only messages this user has not read yet
+        String sql = "SELECT user1_phone, user2_phone, last_message, last_message_time, " +
+                    "CASE WHEN user1_phone = ? THEN user1_unread ELSE user2_unread END AS unread_count " +
+                    "FROM conversations WHERE user1_phone = ? OR user2_phone = ? ORDER BY last_message_time DESC";
         
         try (Connection conn = DatabaseConnection.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
             
             stmt.setString(1, userPhone);
             stmt.setString(2, userPhone);
+            stmt.setString(3, userPhone);
             ResultSet rs = stmt.executeQuery();
             
             while (rs.next()) {
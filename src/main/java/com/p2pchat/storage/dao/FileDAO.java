@@ -7,9 +7,15 @@ public class FileDAO {
     
     public boolean saveFileMetadata(String fileId, String fileName, String filePath, 
                                    long fileSize, String fileType, String ownerPhone) {
+        return saveFileMetadata(fileId, fileName, filePath, fileSize, fileType, ownerPhone, null);
+    }
+    
+    // contentHash is the SHA-256 of the stored blob; null for files kept outside the blob store
+    public boolean saveFileMetadata(String fileId, String fileName, String filePath, 
+                                   long fileSize, String fileType, String ownerPhone, String contentHash) {
         // SIMPLIFIED: Only save basic file metadata, no chunk data
-        String sql = "INSERT INTO file_chunks (file_id, file_name, file_path, file_size, file_type, owner_phone) " +
-                    "VALUES (?, ?, ?, ?, ?, ?)";
+        String sql = "INSERT INTO file_chunks (file_id, file_name, file_path, file_size, file_type, owner_phone, content_hash) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?)";
         
         try (Connection conn = com.p2pchat.storage.DatabaseConnection.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -20,6 +26,7 @@ public class FileDAO {
             pstmt.setLong(4, fileSize);
             pstmt.setString(5, fileType);
             pstmt.setString(6, ownerPhone);
+            pstmt.setString(7, contentHash);
             
             int result = pstmt.executeUpdate();
             if (result > 0) {
@@ -48,6 +55,34 @@ public class FileDAO {
         }
     }
     
+    // Reference count of a blob: how many stored files share its content
+    public int countByContentHash(String contentHash) {
+        String sql = "SELECT COUNT(*) FROM file_chunks WHERE content_hash = ?";
+        try (Connection conn = com.p2pchat.storage.DatabaseConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, contentHash);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        } catch (SQLException e) {
+            System.err.println("❌ Error counting file references: " + e.getMessage());
+            return 0;
+        }
+    }
+    
+    // Distinct stored contents, for comparing against getFileCount
+    public int getDistinctContentCount() {
+        String sql = "SELECT COUNT(DISTINCT content_hash) FROM file_chunks";
+        try (Connection conn = com.p2pchat.storage.DatabaseConnection.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getInt(1) : 0;
+        } catch (SQLException e) {
+            System.err.println("❌ Error counting distinct files: " + e.getMessage());
+            return 0;
+        }
+    }
+    
     // Method to get file metadata by ID
     public Optional<FileMetadata> getFileMetadata(String fileId) {
         String sql = "SELECT file_id, file_name, file_path, file_size, file_type, owner_phone, uploaded_at " +
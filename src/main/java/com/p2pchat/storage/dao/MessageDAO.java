@@ -2,16 +2,90 @@ package com.p2pchat.storage.dao;
 
 import com.p2pchat.core.models.Message;
 import java.sql.*;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public class MessageDAO {
     
+    private static final String MESSAGE_COLUMNS = "id, sender_phone, receiver_phone, message_type, content, " +
+                "file_name, file_size, file_path, file_id, file_type, status, created_at";
+    // Uncorrelated, so MySQL resolves it once and reads the conversation as one index range
+    private static final String CONVERSATION_ID_QUERY = "(SELECT id FROM conversations " +
+                "WHERE (user1_phone = ? AND user2_phone = ?) OR (user1_phone = ? AND user2_phone = ?) ORDER BY id LIMIT 1)";
+    
+    // innodb_ft_min_token_size default; shorter words are not in the FULLTEXT index
+    private static final int FULLTEXT_MIN_WORD = 3;
+    private static final int SEARCH_LIMIT = 1000;
+    // ER_FT_MATCHING_KEY_NOT_FOUND: no FULLTEXT index over (content, file_name)
+    private static final int NO_FULLTEXT_INDEX = 1191;
+    
+    // Position after the last message of a page; (created_at, id) is unique, so pages never overlap or skip
+    public static class Cursor {
+        private final LocalDateTime createdAt;
+        private final String id;
+        
+        public Cursor(LocalDateTime createdAt, String id) {
+            this.createdAt = createdAt;
+            this.id = id;
+        }
+        
+        public LocalDateTime getCreatedAt() { return createdAt; }
+        public String getId() { return id; }
+    }
+    
+    // Newest first; next is null on the last page
+    public static class Page {
+        private final List<Message> messages;
+        private final Cursor next;
+        
+        public Page(List<Message> messages, Cursor next) {
+            this.messages = messages;
+            this.next = next;
+        }
+        
+        public List<Message> getMessages() { return messages; }
+        public Cursor getNext() { return next; }
+        public boolean hasMore() { return next != null; }
+    }
+    
+    public static class UserStats {
+        private final long sent;
+        private final long received;
+        private final long unread;
+        
+        public UserStats(long sent, long received, long unread) {
+            this.sent = sent;
+            this.received = received;
+            this.unread = unread;
+        }
+        
+        public long getSent() { return sent; }
+        public long getReceived() { return received; }
+        public long getUnread() { return unread; }
+    }
+    
+    // Search results ranked by relevance; relevance has no stable keyset, so pages go by offset
+    public static class SearchPage {
+        private final List<Message> messages;
+        private final int nextOffset;
+        
+        public SearchPage(List<Message> messages, int nextOffset) {
+            this.messages = messages;
+            this.nextOffset = nextOffset;
+        }
+        
+        public List<Message> getMessages() { return messages; }
+        public int getNextOffset() { return nextOffset; }
+        public boolean hasMore() { return nextOffset >= 0; }
+    }
+    
     public boolean save(Message message) {
         String sql = "INSERT INTO messages (id, sender_phone, receiver_phone, message_type, content, " +
-                    "file_name, file_size, file_path, file_id, file_type, status, created_at) " +
-                    "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+                    "file_name, file_size, file_path, file_id, file_type, status, created_at, conversation_id) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
         
         try (Connection conn = com.p2pchat.storage.DatabaseConnection.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -28,6 +102,7 @@ public class MessageDAO {
             pstmt.setString(10, message.getFileType());
             pstmt.setString(11, message.getStatus().name());
             pstmt.setTimestamp(12, Timestamp.valueOf(message.getCreatedAt()));
+            pstmt.setObject(13, message.getConversationId());
             
             int result = pstmt.executeUpdate();
             if (result > 0) {
@@ -44,6 +119,42 @@ public class MessageDAO {
         }
     }
     
+    // One JDBC batch in one transaction; INSERT IGNORE keeps a replayed batch idempotent
+    public boolean saveAll(List<Message> messages) {
+        String sql = "INSERT IGNORE INTO messages (id, sender_phone, receiver_phone, message_type, content, " +
+                    "file_name, file_size, file_path, file_id, file_type, status, created_at, conversation_id) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        
+        try (Connection conn = com.p2pchat.storage.DatabaseConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            conn.setAutoCommit(false);
+            for (Message message : messages) {
+                pstmt.setString(1, message.getId() != null ? message.getId() : UUID.randomUUID().toString());
+                pstmt.setString(2, message.getSenderPhone());
+                pstmt.setString(3, message.getReceiverPhone());
+                pstmt.setString(4, message.getMessageType().name());
+                pstmt.setString(5, message.getContent());
+                pstmt.setString(6, message.getFileName());
+                pstmt.setObject(7, message.getFileSize());
+                pstmt.setString(8, message.getFilePath());
+                pstmt.setString(9, message.getFileId());
+                pstmt.setString(10, message.getFileType());
+                pstmt.setString(11, message.getStatus().name());
+                pstmt.setTimestamp(12, Timestamp.valueOf(message.getCreatedAt()));
+                pstmt.setObject(13, message.getConversationId());
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            conn.commit();
+            return true;
+            
+        } catch (SQLException e) {
+            System.err.println("❌ Error saving message batch: " + e.getMessage());
+            return false;
+        }
+    }
+    
     public List<Message> findByReceiverPhone(String receiverPhone) {
         List<Message> messages = new ArrayList<>();
         String sql = "SELECT id, sender_phone, receiver_phone, message_type, content, " +
@@ -74,17 +185,13 @@ public class MessageDAO {
         List<Message> messages = new ArrayList<>();
         String sql = "SELECT id, sender_phone, receiver_phone, message_type, content, " +
                     "file_name, file_size, file_path, file_id, file_type, status, created_at " +
-                    "FROM messages WHERE (sender_phone = ? AND receiver_phone = ?) " +
-                    "OR (sender_phone = ? AND receiver_phone = ?) " +
-                    "ORDER BY created_at ASC";
+                    "FROM messages WHERE conversation_id = " + CONVERSATION_ID_QUERY + " " +
+                    "ORDER BY created_at ASC, id ASC";
         
         try (Connection conn = com.p2pchat.storage.DatabaseConnection.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
-            pstmt.setString(1, user1Phone);
-            pstmt.setString(2, user2Phone);
-            pstmt.setString(3, user2Phone);
-            pstmt.setString(4, user1Phone);
+            bindParticipants(pstmt, 1, user1Phone, user2Phone);
             
             ResultSet rs = pstmt.executeQuery();
             
@@ -103,6 +210,140 @@ public class MessageDAO {
         return messages;
     }
     
+    // One page of the inbox, newest first, starting after the given cursor (null for the first page).
+    // Served by idx_messages_receiver (receiver_phone, created_at) as a single range scan.
+    public Page findByReceiverPhone(String receiverPhone, Cursor before, int limit) {
+        String sql = "SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE receiver_phone = ?" +
+                    (before != null ? " AND (created_at < ? OR (created_at = ? AND id < ?))" : "") +
+                    " ORDER BY created_at DESC, id DESC LIMIT ?";
+        
+        try (Connection conn = com.p2pchat.storage.DatabaseConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            int index = 1;
+            pstmt.setString(index++, receiverPhone);
+            index = bindCursor(pstmt, index, before);
+            pstmt.setInt(index, limit + 1);
+            
+            return readPage(pstmt, limit);
+            
+        } catch (SQLException e) {
+            System.err.println("❌ Error loading inbox page: " + e.getMessage());
+            return new Page(new ArrayList<>(), null);
+        }
+    }
+    
+    // One page of a conversation, newest first. A single range scan on
+    // idx_messages_conversation (conversation_id, created_at); the id lookup runs once.
+    public Page findByParticipants(String user1Phone, String user2Phone, Cursor before, int limit) {
+        String sql = "SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE conversation_id = " + CONVERSATION_ID_QUERY +
+                    (before != null ? " AND (created_at < ? OR (created_at = ? AND id < ?))" : "") +
+                    " ORDER BY created_at DESC, id DESC LIMIT ?";
+        
+        try (Connection conn = com.p2pchat.storage.DatabaseConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            int index = bindParticipants(pstmt, 1, user1Phone, user2Phone);
+            index = bindCursor(pstmt, index, before);
+            pstmt.setInt(index, limit + 1);
+            
+            return readPage(pstmt, limit);
+            
+        } catch (SQLException e) {
+            System.err.println("❌ Error loading conversation page: " + e.getMessage());
+            return new Page(new ArrayList<>(), null);
+        }
+    }
+    
+    // One page of everything the user sent or received, newest first. Each branch is a
+    // bounded range on its own index; the outer sort only merges the two short lists.
+    public Page findByUserPhone(String userPhone, Cursor before, int limit) {
+        String cursor = before != null ? " AND (created_at < ? OR (created_at = ? AND id < ?))" : "";
+        String sql = "SELECT " + MESSAGE_COLUMNS + " FROM (" +
+                    "(SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE sender_phone = ?" + cursor +
+                    " ORDER BY created_at DESC, id DESC LIMIT ?) UNION ALL " +
+                    "(SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE receiver_phone = ? AND sender_phone <> ?" + cursor +
+                    " ORDER BY created_at DESC, id DESC LIMIT ?)) m ORDER BY created_at DESC, id DESC LIMIT ?";
+        
+        try (Connection conn = com.p2pchat.storage.DatabaseConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            int index = 1;
+            pstmt.setString(index++, userPhone);
+            index = bindCursor(pstmt, index, before);
+            pstmt.setInt(index++, limit + 1);
+            pstmt.setString(index++, userPhone);
+            pstmt.setString(index++, userPhone);
+            index = bindCursor(pstmt, index, before);
+            pstmt.setInt(index++, limit + 1);
+            pstmt.setInt(index, limit + 1);
+            
+            return readPage(pstmt, limit);
+            
+        } catch (SQLException e) {
+            System.err.println("❌ Error loading message history page: " + e.getMessage());
+            return new Page(new ArrayList<>(), null);
+        }
+    }
+    
+    private int bindParticipants(PreparedStatement pstmt, int index, String user1Phone, String user2Phone) throws SQLException {
+        pstmt.setString(index++, user1Phone);
+        pstmt.setString(index++, user2Phone);
+        pstmt.setString(index++, user2Phone);
+        pstmt.setString(index++, user1Phone);
+        return index;
+    }
+    
+    private int bindCursor(PreparedStatement pstmt, int index, Cursor before) throws SQLException {
+        if (before == null) {
+            return index;
+        }
+        Timestamp createdAt = Timestamp.valueOf(before.getCreatedAt());
+        pstmt.setTimestamp(index++, createdAt);
+        pstmt.setTimestamp(index++, createdAt);
+        pstmt.setString(index++, before.getId());
+        return index;
+    }
+    
+    // Queries fetch limit + 1 rows; the extra one only tells us whether another page exists
+    private Page readPage(PreparedStatement pstmt, int limit) throws SQLException {
+        List<Message> messages = new ArrayList<>();
+        boolean more = false;
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                if (messages.size() == limit) {
+                    more = true;
+                    break;
+                }
+                messages.add(createMessageFromResultSet(rs));
+            }
+        }
+        Cursor next = null;
+        if (more) {
+            Message last = messages.get(messages.size() - 1);
+            next = new Cursor(last.getCreatedAt(), last.getId());
+        }
+        return new Page(messages, next);
+    }
+    
+    // The message that announced a file; idx_messages_file_id makes this a point lookup
+    public Message findByFileId(String fileId) {
+        String sql = "SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE file_id = ? ORDER BY created_at LIMIT 1";
+        
+        try (Connection conn = com.p2pchat.storage.DatabaseConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            pstmt.setString(1, fileId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? createMessageFromResultSet(rs) : null;
+            }
+            
+        } catch (SQLException e) {
+            System.err.println("❌ Error finding message by file id: " + e.getMessage());
+            return null;
+        }
+    }
+    
     public List<Message> findBySenderPhone(String senderPhone) {
         List<Message> messages = new ArrayList<>();
         String sql = "SELECT id, sender_phone, receiver_phone, message_type, content, " +
@@ -151,8 +392,96 @@ public class MessageDAO {
         }
     }
     
+    public boolean updateStatuses(Map<String, Message.MessageStatus> statuses) {
+        String sql = "UPDATE messages SET status = ? WHERE id = ?";
+        
+        try (Connection conn = com.p2pchat.storage.DatabaseConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            conn.setAutoCommit(false);
+            for (Map.Entry<String, Message.MessageStatus> entry : statuses.entrySet()) {
+                pstmt.setString(1, entry.getValue().name());
+                pstmt.setString(2, entry.getKey());
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            conn.commit();
+            return true;
+            
+        } catch (SQLException e) {
+            System.err.println("❌ Error updating message statuses: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    // Manual re-run of schema migration 8 for rows written without conversation_id: creates any missing
+    // conversations, then fills conversation_id in batches so no single statement locks the table for long.
+    public int backfillConversationIds(int batchSize) {
+        String createSql = "INSERT INTO conversations (user1_phone, user2_phone, last_message, last_message_time) " +
+                    "SELECT p.user1, p.user2, (SELECT m.content FROM messages m " +
+                    "WHERE LEAST(m.sender_phone, m.receiver_phone) = p.user1 AND GREATEST(m.sender_phone, m.receiver_phone) = p.user2 " +
+                    "ORDER BY m.created_at DESC, m.id DESC LIMIT 1), p.last_time " +
+                    "FROM (SELECT LEAST(sender_phone, receiver_phone) AS user1, GREATEST(sender_phone, receiver_phone) AS user2, " +
+                    "MAX(created_at) AS last_time FROM messages WHERE conversation_id IS NULL " +
+                    "GROUP BY LEAST(sender_phone, receiver_phone), GREATEST(sender_phone, receiver_phone)) p " +
+                    "WHERE NOT EXISTS (SELECT 1 FROM conversations c WHERE (c.user1_phone = p.user1 AND c.user2_phone = p.user2) " +
+                    "OR (c.user1_phone = p.user2 AND c.user2_phone = p.user1))";
+        // The count triggers write conversations, so the update itself must not read it (MySQL error 1442):
+        // ids are looked up per pair first, then stamped with a constant
+        String pairsSql = "SELECT DISTINCT m.sender_phone, m.receiver_phone, (SELECT c.id FROM conversations c " +
+                    "WHERE (c.user1_phone = m.sender_phone AND c.user2_phone = m.receiver_phone) " +
+                    "OR (c.user1_phone = m.receiver_phone AND c.user2_phone = m.sender_phone) " +
+                    "ORDER BY c.id LIMIT 1) FROM messages m WHERE m.conversation_id IS NULL";
+        String updateSql = "UPDATE messages SET conversation_id = ? " +
+                    "WHERE sender_phone = ? AND receiver_phone = ? AND conversation_id IS NULL LIMIT ?";
+        
+        int total = 0;
+        try (Connection conn = com.p2pchat.storage.DatabaseConnection.getConnection();
+             Statement create = conn.createStatement();
+             PreparedStatement update = conn.prepareStatement(updateSql)) {
+            
+            int created = create.executeUpdate(createSql);
+            if (created > 0) {
+                System.out.println("✅ Created " + created + " conversations for existing messages");
+            }
+            
+            List<Object[]> pairs = new ArrayList<>();
+            try (ResultSet rs = create.executeQuery(pairsSql)) {
+                while (rs.next()) {
+                    long conversationId = rs.getLong(3);
+                    if (!rs.wasNull()) {
+                        pairs.add(new Object[]{rs.getString(1), rs.getString(2), conversationId});
+                    }
+                }
+            }
+            
+            // Batches keep each statement's row locks short
+            update.setInt(4, batchSize);
+            for (Object[] pair : pairs) {
+                update.setLong(1, (Long) pair[2]);
+                update.setString(2, (String) pair[0]);
+                update.setString(3, (String) pair[1]);
+                int updated;
+                do {
+                    updated = update.executeUpdate();
+                    total += updated;
+                } while (updated == batchSize);
+            }
+            
+            if (total > 0) {
+                System.out.println("✅ Backfilled conversation_id on " + total + " messages");
+            }
+            
+        } catch (SQLException e) {
+            System.err.println("❌ Error backfilling conversation ids: " + e.getMessage());
+        }
+        
+        return total;
+    }
+    
+    // Kept by trigger in table_counts; COUNT(*) would scan the whole table
     public int getMessageCount() {
-        String sql = "SELECT COUNT(*) FROM messages";
+        String sql = "SELECT row_count FROM table_counts WHERE table_name = 'messages'";
         try (Connection conn = com.p2pchat.storage.DatabaseConnection.getConnection();
              Statement stmt = conn.createStatement();
              ResultSet rs = stmt.executeQuery(sql)) {
@@ -164,18 +493,26 @@ public class MessageDAO {
     }
     
     public int getUnreadMessageCount(String receiverPhone) {
-        String sql = "SELECT COUNT(*) FROM messages WHERE receiver_phone = ? AND status = 'DELIVERED'";
+        return (int) getUserStats(receiverPhone).getUnread();
+    }
+    
+    // One primary-key lookup in user_message_stats, maintained by trigger
+    public UserStats getUserStats(String userPhone) {
+        String sql = "SELECT sent_count, received_count, unread_count FROM user_message_stats WHERE phone = ?";
         try (Connection conn = com.p2pchat.storage.DatabaseConnection.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
-            pstmt.setString(1, receiverPhone);
-            ResultSet rs = pstmt.executeQuery();
-            return rs.next() ? rs.getInt(1) : 0;
+            pstmt.setString(1, userPhone);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return new UserStats(rs.getLong("sent_count"), rs.getLong("received_count"), rs.getLong("unread_count"));
+                }
+            }
             
         } catch (SQLException e) {
-            System.err.println("❌ Error getting unread message count: " + e.getMessage());
-            return 0;
+            System.err.println("❌ Error getting message statistics: " + e.getMessage());
         }
+        return new UserStats(0, 0, 0);
     }
     
     public boolean deleteMessage(String messageId) {
@@ -193,36 +530,120 @@ public class MessageDAO {
         }
     }
     
+    // First page of up to SEARCH_LIMIT matches, most relevant first
     public List<Message> searchMessages(String userPhone, String query) {
-        List<Message> messages = new ArrayList<>();
-        String sql = "SELECT id, sender_phone, receiver_phone, message_type, content, " +
-                    "file_name, file_size, file_path, file_id, file_type, status, created_at " +
-                    "FROM messages WHERE (sender_phone = ? OR receiver_phone = ?) " +
-                    "AND (content LIKE ? OR file_name LIKE ?) " +
-                    "ORDER BY created_at DESC";
+        SearchPage page = searchMessages(userPhone, query, 0, SEARCH_LIMIT);
+        System.out.println("✅ Found " + page.getMessages().size() + " messages matching: " + query);
+        return page.getMessages();
+    }
+    
+    // One page of matches for a user (or all users when userPhone is null), most relevant first.
+    // Words (letters, digits and _, as InnoDB splits them) of FULLTEXT_MIN_WORD or more go through
+    // the ft_messages_text index as required prefixes; shorter ones only filter those rows.
+    // Falls back to the LIKE scan when the index is missing.
+    public SearchPage searchMessages(String userPhone, String query, int offset, int limit) {
+        List<String> words = new ArrayList<>();
+        List<String> shortWords = new ArrayList<>();
+        for (String word : query.split("[^\\p{L}\\p{N}_]+")) {
+            if (word.length() >= FULLTEXT_MIN_WORD) {
+                words.add(word);
+            } else if (!word.isEmpty()) {
+                shortWords.add(word);
+            }
+        }
+        if (words.isEmpty()) {
+            return searchMessagesLike(userPhone, query, offset, limit);
+        }
+        
+        StringBuilder against = new StringBuilder();
+        for (String word : words) {
+            against.append(against.length() > 0 ? " +" : "+").append(word).append('*');
+        }
+        StringBuilder sql = new StringBuilder("SELECT " + MESSAGE_COLUMNS + ", " +
+                    "MATCH(content, file_name) AGAINST (? IN BOOLEAN MODE) AS relevance " +
+                    "FROM messages WHERE MATCH(content, file_name) AGAINST (? IN BOOLEAN MODE)");
+        if (userPhone != null) {
+            sql.append(" AND (sender_phone = ? OR receiver_phone = ?)");
+        }
+        for (int i = 0; i < shortWords.size(); i++) {
+            sql.append(" AND (content LIKE ? OR file_name LIKE ?)");
+        }
+        sql.append(" ORDER BY relevance DESC, created_at DESC, id DESC LIMIT ? OFFSET ?");
         
         try (Connection conn = com.p2pchat.storage.DatabaseConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+             PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
             
-            pstmt.setString(1, userPhone);
-            pstmt.setString(2, userPhone);
-            pstmt.setString(3, "%" + query + "%");
-            pstmt.setString(4, "%" + query + "%");
+            int index = 1;
+            pstmt.setString(index++, against.toString());
+            pstmt.setString(index++, against.toString());
+            if (userPhone != null) {
+                pstmt.setString(index++, userPhone);
+                pstmt.setString(index++, userPhone);
+            }
+            for (String word : shortWords) {
+                pstmt.setString(index++, "%" + escapeLike(word) + "%");
+                pstmt.setString(index++, "%" + escapeLike(word) + "%");
+            }
+            pstmt.setInt(index++, limit + 1);
+            pstmt.setInt(index, offset);
             
-            ResultSet rs = pstmt.executeQuery();
+            return readSearchPage(pstmt, offset, limit);
             
-            while (rs.next()) {
-                Message message = createMessageFromResultSet(rs);
-                messages.add(message);
+        } catch (SQLException e) {
+            if (e.getErrorCode() == NO_FULLTEXT_INDEX) {
+                System.err.println("⚠️  FULLTEXT index ft_messages_text missing, searching with LIKE");
+                return searchMessagesLike(userPhone, query, offset, limit);
+            }
+            System.err.println("❌ Error searching messages: " + e.getMessage());
+            return new SearchPage(new ArrayList<>(), -1);
+        }
+    }
+    
+    // The original substring search; scans every message of the user
+    private SearchPage searchMessagesLike(String userPhone, String query, int offset, int limit) {
+        String sql = "SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE " +
+                    (userPhone != null ? "(sender_phone = ? OR receiver_phone = ?) AND " : "") +
+                    "(content LIKE ? OR file_name LIKE ?) " +
+                    "ORDER BY created_at DESC, id DESC LIMIT ? OFFSET ?";
+        
+        try (Connection conn = com.p2pchat.storage.DatabaseConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            int index = 1;
+            if (userPhone != null) {
+                pstmt.setString(index++, userPhone);
+                pstmt.setString(index++, userPhone);
             }
+            pstmt.setString(index++, "%" + escapeLike(query.trim()) + "%");
+            pstmt.setString(index++, "%" + escapeLike(query.trim()) + "%");
+            pstmt.setInt(index++, limit + 1);
+            pstmt.setInt(index, offset);
             
-            System.out.println("✅ Found " + messages.size() + " messages matching: " + query);
+            return readSearchPage(pstmt, offset, limit);
             
         } catch (SQLException e) {
             System.err.println("❌ Error searching messages: " + e.getMessage());
+            return new SearchPage(new ArrayList<>(), -1);
         }
-        
-        return messages;
+    }
+    
+    private SearchPage readSearchPage(PreparedStatement pstmt, int offset, int limit) throws SQLException {
+        List<Message> messages = new ArrayList<>();
+        boolean more = false;
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                if (messages.size() == limit) {
+                    more = true;
+                    break;
+                }
+                messages.add(createMessageFromResultSet(rs));
+            }
+        }
+        return new SearchPage(messages, more ? offset + limit : -1);
+    }
+    
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
     }
     
     // Helper method to create Message object from ResultSet
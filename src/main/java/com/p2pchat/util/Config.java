@@ -31,10 +31,44 @@ public class Config {
         properties.setProperty("database.url", "jdbc:mysql://localhost:3306/p2pchat");
         properties.setProperty("database.username", "root");
         properties.setProperty("database.password", "saiyash1234");
+        properties.setProperty("database.pool.maxSize", String.valueOf(Constants.MAX_DB_CONNECTIONS));
+        properties.setProperty("database.pool.minIdle", "2");
+        properties.setProperty("database.pool.idleTimeoutMs", "600000");
+        properties.setProperty("database.pool.maxLifetimeMs", "1800000");
+        properties.setProperty("database.pool.leakDetectionMs", "60000");
         
         // File storage
         properties.setProperty("storage.basePath", "p2pchat_files/");
         properties.setProperty("storage.chunkSize", "1048576"); // 1MB
+        properties.setProperty("storage.walPath", "p2pchat_wal/");
+        properties.setProperty("storage.writeBehind.batchSize", "200");
+        properties.setProperty("storage.writeBehind.flushMs", "100");
+        properties.setProperty("storage.writeBehind.maxBacklog", "10000");
+        
+        // Server settings
+        properties.setProperty("server.mode", "blocking"); // blocking | nio
+        properties.setProperty("server.executor", "cached"); // cached | virtual
+        properties.setProperty("peer.executor", "cached");   // cached | virtual
+        properties.setProperty("peer.transferTimeoutMs", "30000");
+        properties.setProperty("peer.transferStreams", "4");
+        properties.setProperty("client.sendWindow", "256");
+        properties.setProperty("client.ackTimeoutMs", "5000");
+        properties.setProperty("client.maxRetransmits", "5");
+        properties.setProperty("client.pageSize", "20");
+        properties.setProperty("client.cache.maxMessages", "10000");
+        properties.setProperty("client.cache.maxBytes", "16777216"); // 16MB
+        properties.setProperty("client.cache.conversationCapacity", "200");
+        properties.setProperty("client.searchIndexPath", "p2pchat_index/");
+        properties.setProperty("client.searchIndex.snapshotEvery", "1000");
+        properties.setProperty("server.eventLoopThreads", "2");
+        properties.setProperty("server.nioBufferSize", "4096");
+        properties.setProperty("server.outboundQueueLimit", "1024");
+        properties.setProperty("server.slowConsumerPolicy", "disconnect"); // disconnect | reject
+        properties.setProperty("server.presenceWindowMs", "50");
+        properties.setProperty("server.offlineStorePath", "p2pchat_offline/");
+        properties.setProperty("server.offlineSegmentBytes", "8388608"); // 8MB
+        properties.setProperty("server.offlineBatchSize", "100");
+        properties.setProperty("server.offlineSyncMs", "100");
         
         // Network settings
         properties.setProperty("network.timeout", "30000");
@@ -95,6 +129,24 @@ public class Config {
         return Integer.parseInt(properties.getProperty("storage.chunkSize"));
     }
     
+    // Local log of message writes not yet flushed to MySQL
+    public String getStorageWalPath() {
+        return properties.getProperty("storage.walPath", "p2pchat_wal/");
+    }
+    
+    public int getWriteBehindBatchSize() {
+        return Integer.parseInt(properties.getProperty("storage.writeBehind.batchSize", "200"));
+    }
+    
+    public long getWriteBehindFlushMs() {
+        return Long.parseLong(properties.getProperty("storage.writeBehind.flushMs", "100"));
+    }
+    
+    // Unflushed writes allowed before writers block, then fall back to synchronous writes
+    public int getWriteBehindMaxBacklog() {
+        return Integer.parseInt(properties.getProperty("storage.writeBehind.maxBacklog", "10000"));
+    }
+    
     public int getNetworkTimeout() {
         return Integer.parseInt(properties.getProperty("network.timeout"));
     }
@@ -103,6 +155,133 @@ public class Config {
         return Integer.parseInt(properties.getProperty("network.retryCount"));
     }
     
+    // Server execution settings
+    public String getServerMode() {
+        return properties.getProperty("server.mode", "blocking");
+    }
+    
+    public String getServerExecutor() {
+        return properties.getProperty("server.executor", "cached");
+    }
+    
+    public String getPeerExecutor() {
+        return properties.getProperty("peer.executor", "cached");
+    }
+    
+    // Connect timeout, and how long a transfer may make no progress before it is dropped
+    public int getPeerTransferTimeoutMs() {
+        return Integer.parseInt(properties.getProperty("peer.transferTimeoutMs", "30000"));
+    }
+    
+    // Upper bound on parallel connections per download; 1 keeps a single stream
+    public int getPeerTransferStreams() {
+        return Integer.parseInt(properties.getProperty("peer.transferStreams", "4"));
+    }
+    
+    public int getServerEventLoopThreads() {
+        return Integer.parseInt(properties.getProperty("server.eventLoopThreads", "2"));
+    }
+    
+    public int getServerNioBufferSize() {
+        return Integer.parseInt(properties.getProperty("server.nioBufferSize", "4096"));
+    }
+    
+    // Per-connection outbound queue high-water mark, in frames
+    public int getServerOutboundQueueLimit() {
+        return Integer.parseInt(properties.getProperty("server.outboundQueueLimit", "1024"));
+    }
+    
+    public String getServerSlowConsumerPolicy() {
+        return properties.getProperty("server.slowConsumerPolicy", "disconnect");
+    }
+    
+    // Presence changes within this window are coalesced into one delta
+    public long getServerPresenceWindowMs() {
+        return Long.parseLong(properties.getProperty("server.presenceWindowMs", "50"));
+    }
+    
+    public String getServerOfflineStorePath() {
+        return properties.getProperty("server.offlineStorePath", "p2pchat_offline/");
+    }
+    
+    public long getServerOfflineSegmentBytes() {
+        return Long.parseLong(properties.getProperty("server.offlineSegmentBytes", "8388608"));
+    }
+    
+    public int getServerOfflineBatchSize() {
+        return Integer.parseInt(properties.getProperty("server.offlineBatchSize", "100"));
+    }
+    
+    // Offline appends are forced to disk at this interval
+    public long getServerOfflineSyncMs() {
+        return Long.parseLong(properties.getProperty("server.offlineSyncMs", "100"));
+    }
+    
+    public int getDatabasePoolMaxSize() {
+        return Integer.parseInt(properties.getProperty("database.pool.maxSize", String.valueOf(Constants.MAX_DB_CONNECTIONS)));
+    }
+    
+    public int getDatabasePoolMinIdle() {
+        return Integer.parseInt(properties.getProperty("database.pool.minIdle", "2"));
+    }
+    
+    public long getDatabasePoolConnectionTimeoutMs() {
+        return Long.parseLong(properties.getProperty("database.pool.connectionTimeoutMs",
+                String.valueOf(Constants.DB_CONNECTION_TIMEOUT_MS)));
+    }
+    
+    public long getDatabasePoolIdleTimeoutMs() {
+        return Long.parseLong(properties.getProperty("database.pool.idleTimeoutMs", "600000"));
+    }
+    
+    public long getDatabasePoolMaxLifetimeMs() {
+        return Long.parseLong(properties.getProperty("database.pool.maxLifetimeMs", "1800000"));
+    }
+    
+    // Connections held longer than this are reported as possible leaks (0 disables)
+    public long getDatabasePoolLeakDetectionMs() {
+        return Long.parseLong(properties.getProperty("database.pool.leakDetectionMs", "60000"));
+    }
+    
+    // Messages a client may have in flight before sendMessage waits for acks
+    public int getClientSendWindow() {
+        return Integer.parseInt(properties.getProperty("client.sendWindow", "256"));
+    }
+    
+    public long getClientAckTimeoutMs() {
+        return Long.parseLong(properties.getProperty("client.ackTimeoutMs", "5000"));
+    }
+    
+    public int getClientMaxRetransmits() {
+        return Integer.parseInt(properties.getProperty("client.maxRetransmits", "5"));
+    }
+    
+    // Messages per page in the chat and inbox views
+    public int getClientPageSize() {
+        return Integer.parseInt(properties.getProperty("client.pageSize", "20"));
+    }
+    
+    // Message cache limits: total messages, estimated bytes (0 disables), newest messages kept per conversation
+    public int getClientCacheMaxMessages() {
+        return Integer.parseInt(properties.getProperty("client.cache.maxMessages", "10000"));
+    }
+    
+    public long getClientCacheMaxBytes() {
+        return Long.parseLong(properties.getProperty("client.cache.maxBytes", "16777216"));
+    }
+    
+    public int getClientCacheConversationCapacity() {
+        return Integer.parseInt(properties.getProperty("client.cache.conversationCapacity", "200"));
+    }
+    
+    public String getClientSearchIndexPath() {
+        return properties.getProperty("client.searchIndexPath", "p2pchat_index/");
+    }
+    
+    public int getClientSearchIndexSnapshotEvery() {
+        return Integer.parseInt(properties.getProperty("client.searchIndex.snapshotEvery", "1000"));
+    }
+    
     // Update server host for different computers
     public void updateServerHost(String newHost) {
         properties.setProperty("server.host", newHost);
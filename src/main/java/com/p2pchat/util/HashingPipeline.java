@@ -0,0 +1,262 @@
+package com.p2pchat.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SHA-256 of a file with the hashing overlapped with file I/O.
+ *
+ * A reader task fills direct buffers from a shared pool; the calling
+ * thread hashes each block in order and, when copying, a writer task
+ * writes the same block out. A block goes back to the pool once every
+ * consumer is done with it, and a run holds at most as many blocks as the
+ * file has, up to IN_FLIGHT, so wall time is close to the slower of the
+ * disk and SHA-256 instead of their sum and memory stays bounded. A file
+ * of one block or less has nothing to overlap and is hashed inline.
+ */
+public final class HashingPipeline {
+    private static final int BLOCK_BYTES = 1024 * 1024;
+    private static final int IN_FLIGHT = 8;
+    // Direct buffers are costly to allocate and free; keep a few between runs
+    private static final int MAX_POOLED = 32;
+    private static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+    private static final ExecutorService WORKERS = ThreadPools.newDaemonExecutor("hash-pipeline");
+
+    private static final Block END = new Block(null, 0);
+
+    private static final class Block {
+        final ByteBuffer buffer;
+        final AtomicInteger pending;
+
+        Block(ByteBuffer buffer, int consumers) {
+            this.buffer = buffer;
+            this.pending = new AtomicInteger(consumers);
+        }
+    }
+
+    private HashingPipeline() {
+        // Utility class
+    }
+
+    // Hex SHA-256 of the file
+    public static String hash(Path file) throws IOException {
+        return run(file, null);
+    }
+
+    // Copies source to target (replacing it, forced to disk) and returns the hex SHA-256 of what was written
+    public static String copy(Path source, Path target) throws IOException {
+        return run(source, target);
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    public static ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = POOL.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BLOCK_BYTES);
+        }
+        POOLED.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public static void releaseBuffer(ByteBuffer buffer) {
+        if (POOLED.incrementAndGet() <= MAX_POOLED) {
+            POOL.offer(buffer);
+        } else {
+            POOLED.decrementAndGet();
+        }
+    }
+
+    private static String run(Path source, Path target) throws IOException {
+        long size = Files.size(source);
+        if (size <= BLOCK_BYTES) {
+            return runInline(source, target);
+        }
+        int inFlight = (int) Math.min(IN_FLIGHT, (size + BLOCK_BYTES - 1) / BLOCK_BYTES);
+        int consumers = target != null ? 2 : 1;
+        BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(inFlight);
+        BlockingQueue<Block> toHash = new ArrayBlockingQueue<>(inFlight + 1);
+        BlockingQueue<Block> toWrite = new ArrayBlockingQueue<>(inFlight + 1);
+        for (int i = 0; i < inFlight; i++) {
+            free.add(acquireBuffer());
+        }
+        IOException[] failure = new IOException[1];
+
+        Future<?> reader = WORKERS.submit(() -> {
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+                while (true) {
+                    ByteBuffer buffer = free.take();
+                    buffer.clear();
+                    // Whole blocks: fewer hand-offs per byte
+                    boolean eof = false;
+                    while (buffer.hasRemaining() && !eof) {
+                        eof = in.read(buffer) < 0;
+                    }
+                    buffer.flip();
+                    if (!buffer.hasRemaining()) {
+                        free.add(buffer);
+                        break;
+                    }
+                    Block block = new Block(buffer, consumers);
+                    toHash.put(block);
+                    if (target != null) {
+                        toWrite.put(block);
+                    }
+                    if (buffer.limit() < buffer.capacity()) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                fail(failure, e);
+            } catch (InterruptedException e) {
+                fail(failure, new IOException("interrupted"));
+            } finally {
+                toHash.add(END);
+                if (target != null) {
+                    toWrite.add(END);
+                }
+            }
+        });
+
+        Future<?> writer = target == null ? null : WORKERS.submit(() -> {
+            FileChannel out = null;
+            try {
+                out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            } catch (IOException e) {
+                fail(failure, e);
+            }
+            try {
+                for (Block block = toWrite.take(); block != END; block = toWrite.take()) {
+                    // After a failure keep draining, or the reader would wait for buffers forever
+                    if (out != null) {
+                        try {
+                            ByteBuffer data = block.buffer.duplicate();
+                            while (data.hasRemaining()) {
+                                out.write(data);
+                            }
+                        } catch (IOException e) {
+                            fail(failure, e);
+                            close(out);
+                            out = null;
+                        }
+                    }
+                    done(block, free);
+                }
+                if (out != null) {
+                    out.force(false);
+                }
+            } catch (IOException e) {
+                fail(failure, e);
+            } catch (InterruptedException e) {
+                fail(failure, new IOException("interrupted"));
+            } finally {
+                close(out);
+            }
+        });
+
+        MessageDigest digest = newDigest();
+        try {
+            for (Block block = toHash.take(); block != END; block = toHash.take()) {
+                digest.update(block.buffer.duplicate());
+                done(block, free);
+            }
+            reader.get();
+            if (writer != null) {
+                writer.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("hashing failed", e.getCause());
+        } finally {
+            for (ByteBuffer buffer = free.poll(); buffer != null; buffer = free.poll()) {
+                releaseBuffer(buffer);
+            }
+        }
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    // One block or less: read, hash and write on the calling thread
+    private static String runInline(Path source, Path target) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = acquireBuffer();
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = target == null ? null : FileChannel.open(target, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer.duplicate());
+                while (out != null && buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+            if (out != null) {
+                out.force(false);
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static void done(Block block, BlockingQueue<ByteBuffer> free) {
+        if (block.pending.decrementAndGet() == 0) {
+            free.add(block.buffer);
+        }
+    }
+
+    private static void close(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to flush
+            }
+        }
+    }
+
+    private static void fail(IOException[] failure, IOException e) {
+        synchronized (failure) {
+            if (failure[0] == null) {
+                failure[0] = e;
+            }
+        }
+    }
+}
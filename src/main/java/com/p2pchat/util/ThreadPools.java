@@ -0,0 +1,62 @@
+package com.p2pchat.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for per-connection handlers.
+ *
+ * "virtual" starts one virtual thread per task when the runtime supports it
+ * (Java 21+). The lookup is reflective so the code still compiles and runs on
+ * Java 11; older runtimes fall back to the cached platform-thread pool.
+ */
+public class ThreadPools {
+    public static final String MODE_CACHED = "cached";
+    public static final String MODE_VIRTUAL = "virtual";
+    
+    private ThreadPools() {
+        // Utility class
+    }
+    
+    public static ExecutorService newConnectionExecutor(String mode) {
+        if (MODE_VIRTUAL.equalsIgnoreCase(mode)) {
+            ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+            if (virtual != null) {
+                return virtual;
+            }
+            System.out.println("⚠️  Virtual threads not supported on Java " +
+                               System.getProperty("java.specification.version") + ", using cached thread pool");
+        }
+        return Executors.newCachedThreadPool();
+    }
+    
+    // Cached pool of daemon threads named name-0, name-1, ...; for short-lived work that must not keep the JVM up
+    public static ExecutorService newDaemonExecutor(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+    
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.p2pchat.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.p2pchat.net.Frame;
+import com.p2pchat.net.FrameCodec;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Loopback check of the binary switch on the blocking server: IDENTIFY with
+ * BIN1 is answered as a text line, and the client's very next frame, a
+ * binary SEND, must be read as a frame and answered in binary. The
+ * handler's writer runs late on purpose, so the reader reaches the SEND
+ * before the reply to IDENTIFY is written.
+ */
+class ClientHandlerBinaryTest {
+    private static final int SERVER_PORT = 8080;
+    private static final int TIMEOUT_MS = 5000;
+    private static final long WRITER_DELAY_MS = 500;
+
+    private static ScheduledExecutorService delay;
+
+    // The running server sets up the registry, presence and offline store the handler uses
+    @BeforeAll
+    static void startServer() throws Exception {
+        Thread server = new Thread(ServerApp::startServer, "test-server");
+        server.setDaemon(true);
+        server.start();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), SERVER_PORT).close();
+                break;
+            } catch (IOException e) {
+                if (attempt >= 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+        delay = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "test-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @AfterAll
+    static void stopServer() {
+        ServerApp.stopServer();
+        delay.shutdownNow();
+    }
+
+    @Test
+    void binarySendRightAfterIdentifyIsReadAsFrame() throws Exception {
+        Executor lateWriter = task -> delay.schedule(task, WRITER_DELAY_MS, TimeUnit.MILLISECONDS);
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket socket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort())) {
+            ClientHandler handler = new ClientHandler(listener.accept(), lateWriter, 1000, ClientHandler.POLICY_DISCONNECT);
+            Thread reader = new Thread(handler, "test-handler");
+            reader.setDaemon(true);
+            reader.start();
+
+            socket.setSoTimeout(TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+            // The SEND follows IDENTIFY at once, so the handler reads it while its reply is still queued
+            FrameCodec.writeLine(out, "IDENTIFY:9000000001:0:" + FrameCodec.VERSION_TOKEN);
+            FrameCodec.write(out, Frame.of(Frame.Type.SEND, "9000000002", "hello over frames"));
+            out.flush();
+            assertEquals("REGISTERED:9000000001:" + FrameCodec.VERSION_TOKEN, FrameCodec.readLine(in));
+
+            // Presence frames may come first
+            Frame reply = FrameCodec.read(in);
+            while (reply != null && reply.getType() != Frame.Type.QUEUED && reply.getType() != Frame.Type.DELIVERED) {
+                reply = FrameCodec.read(in);
+            }
+            assertNotNull(reply, "no binary reply to the SEND");
+            assertTrue(reply.getType() == Frame.Type.QUEUED || reply.getType() == Frame.Type.DELIVERED);
+            assertEquals("9000000002", reply.getString(0));
+        }
+    }
+}